@@ -0,0 +1,60 @@
+package com.etendoerp.copilot.openapi.purchase.webhooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploader;
+
+/**
+ * Measures storeBase64ToTempFile: the streaming base64 decode of an attachment into a temp file while its SHA-256 is
+ * calculated. It does not need a database. Run it with -prof gc to see the allocation per decoded file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AttachmentDecodeBenchmark {
+
+  @Param({ "64", "1024", "16384" })
+  public int sizeKB;
+
+  private String fileContent;
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    byte[] content = new byte[sizeKB * 1024];
+    new Random(sizeKB).nextBytes(content);
+    fileContent = Base64.getMimeEncoder().encodeToString(content);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() {
+    AttachmentUploader.deleteTempFile(file);
+  }
+
+  @Benchmark
+  public File storeBase64ToTempFile() throws IOException {
+    file = AttachFileWebhook.storeBase64ToTempFile(fileContent, "benchmark.bin", AttachmentUploader.newDigest());
+    return file;
+  }
+}
@@ -0,0 +1,254 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.provider.OBProvider;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.dal.core.DalUtil;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.businesspartner.BusinessPartner;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.pricing.pricelist.PriceListVersion;
+import org.openbravo.model.pricing.pricelist.ProductPrice;
+
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Seeds the dataset of the benchmarks: a catalog of products with prices, vendors and purchase orders.
+ * <p>
+ * The records are copies of a template product (jmh.productId) and a template vendor (jmh.vendorId) of the benchmark
+ * client, identified by the JMH- prefix of their search key. Seeding is incremental: only the records missing for
+ * the requested size are created, so a larger catalog reuses the records of the smaller ones and a second run does
+ * not seed anything. The names are built from a fixed vocabulary, so the similarity searches find realistic
+ * near-duplicates instead of random strings.
+ */
+final class BenchmarkDataset {
+
+  static final String KEY_PREFIX = "JMH-";
+  private static final int COMMIT_SIZE = 500;
+  private static final String[] BRANDS = { "Acme", "Nordic", "Golden", "Prime", "Valley", "Coastal", "Alpine",
+      "Royal" };
+  private static final String[] NOUNS = { "Tomato Sauce", "Olive Oil", "Green Tea", "Orange Juice", "Whole Milk",
+      "Rice Flour", "Dark Chocolate", "Sparkling Water", "Coffee Beans", "Wheat Pasta", "Apple Vinegar",
+      "Cane Sugar", "Sea Salt", "Peanut Butter", "Corn Flakes", "Black Pepper" };
+  private static final String[] VARIANTS = { "Organic", "Light", "Classic", "Premium", "Family Pack", "Bio",
+      "Extra", "Reduced Salt" };
+  private static final Logger log = LogManager.getLogger();
+
+  private BenchmarkDataset() {
+  }
+
+  /**
+   * Ensures the catalog has the given number of products, every one with a price in the purchase price list of the
+   * template vendor, and a tenth of that number of vendors.
+   *
+   * @param catalogSize
+   *     the number of products.
+   */
+  static void ensureCatalog(int catalogSize) {
+    int products = countByKeyPrefix(Product.class);
+    if (products < catalogSize) {
+      log.info("Seeding {} products", catalogSize - products);
+      seedProducts(products, catalogSize);
+    }
+    int vendors = countByKeyPrefix(BusinessPartner.class);
+    int vendorCount = Math.max(1, catalogSize / 10);
+    if (vendors < vendorCount) {
+      log.info("Seeding {} vendors", vendorCount - vendors);
+      seedVendors(vendors, vendorCount);
+    }
+  }
+
+  /**
+   * Returns a purchase order of the template vendor with the given number of lines, creating it if it does not
+   * exist yet.
+   *
+   * @param catalogSize
+   *     the size of the catalog, the products of the lines are spread over all of it.
+   * @param lineCount
+   *     the number of lines.
+   * @return the ID of the order.
+   */
+  static String ensureOrder(int catalogSize, int lineCount) {
+    String description = String.format("%s%d-%d", KEY_PREFIX, catalogSize, lineCount);
+    OBCriteria<Order> criteria = OBDal.getInstance().createCriteria(Order.class);
+    criteria.add(Restrictions.eq(Order.PROPERTY_DESCRIPTION, description));
+    criteria.setMaxResults(1);
+    Order order = (Order) criteria.uniqueResult();
+    if (order != null) {
+      return order.getId();
+    }
+    try {
+      WSResult result = PurchaseOrderCreationHandler.handleCreatePurchaseOrder(
+          newOrderDocument(description, getProductIds(catalogSize, lineCount)));
+      if (result.getStatus() != Status.OK) {
+        throw new OBException("Error seeding the order: " + result.getMessage());
+      }
+      OBDal.getInstance().commitAndClose();
+      return ((JSONObject) result.getData()).getString("orderId");
+    } catch (JSONException e) {
+      throw new OBException("Error seeding the order", e);
+    }
+  }
+
+  /**
+   * Builds an order document of the template vendor with one line per product, without saving anything.
+   *
+   * @param description
+   *     the description of the order.
+   * @param productIds
+   *     the products of the lines.
+   * @return the document.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  static JSONObject newOrderDocument(String description, List<String> productIds) throws JSONException {
+    JSONObject body = new JSONObject();
+    body.put("businessPartnerId", System.getProperty("jmh.vendorId"));
+    body.put("description", description);
+    JSONArray lines = new JSONArray();
+    for (int i = 0; i < productIds.size(); i++) {
+      JSONObject line = new JSONObject();
+      line.put("productId", productIds.get(i));
+      line.put("quantity", 1 + i % 12);
+      lines.put(line);
+    }
+    body.put("lines", lines);
+    return body;
+  }
+
+  /**
+   * Returns the IDs of distinct products of the catalog, evenly spread over it.
+   *
+   * @param catalogSize
+   *     the size of the catalog.
+   * @param count
+   *     the number of products, at most the size of the catalog.
+   * @return the IDs of the products.
+   */
+  static List<String> getProductIds(int catalogSize, int count) {
+    if (count > catalogSize) {
+      throw new IllegalArgumentException(String.format("Cannot pick %d distinct products from a catalog of %d", count,
+          catalogSize));
+    }
+    List<String> keys = new ArrayList<>(count);
+    int step = Math.max(1, catalogSize / count);
+    for (int i = 0; i < count; i++) {
+      keys.add(searchKey((i * step) % catalogSize));
+    }
+    OBCriteria<Product> criteria = OBDal.getInstance().createCriteria(Product.class);
+    criteria.add(Restrictions.in(Product.PROPERTY_SEARCHKEY, keys));
+    List<String> productIds = new ArrayList<>(count);
+    for (Product product : criteria.list()) {
+      productIds.add(product.getId());
+    }
+    return productIds;
+  }
+
+  /**
+   * Returns search terms that resemble the names of the catalog, misspelled and lowercased like the ones extracted
+   * from a scanned document.
+   *
+   * @param count
+   *     the number of terms.
+   * @return the search terms.
+   */
+  static List<String> searchTerms(int count) {
+    List<String> terms = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String name = productName(i * 7919).toLowerCase();
+      int swap = 1 + i % (name.length() - 2);
+      terms.add(name.substring(0, swap) + name.charAt(swap + 1) + name.charAt(swap) + name.substring(swap + 2));
+    }
+    return terms;
+  }
+
+  static String productName(int index) {
+    return String.format("%s %s %s %dg", BRANDS[index % BRANDS.length],
+        NOUNS[(index / BRANDS.length) % NOUNS.length],
+        VARIANTS[(index / (BRANDS.length * NOUNS.length)) % VARIANTS.length], 100 + (index % 19) * 50);
+  }
+
+  private static void seedProducts(int from, int to) {
+    OBDal obDal = OBDal.getInstance();
+    Product template = obDal.get(Product.class, System.getProperty("jmh.productId"));
+    PriceListVersion priceListVersion = getPriceListVersion();
+    for (int i = from; i < to; i++) {
+      Product product = (Product) DalUtil.copy(template, false);
+      product.setSearchKey(searchKey(i));
+      product.setName(productName(i));
+      product.setUPCEAN(String.format("84%011d", i));
+      obDal.save(product);
+      ProductPrice price = OBProvider.getInstance().get(ProductPrice.class);
+      price.setClient(priceListVersion.getClient());
+      price.setOrganization(priceListVersion.getOrganization());
+      price.setPriceListVersion(priceListVersion);
+      price.setProduct(product);
+      BigDecimal listPrice = BigDecimal.valueOf(100 + (i % 400) * 25L, 2);
+      price.setListPrice(listPrice);
+      price.setStandardPrice(listPrice);
+      price.setPriceLimit(listPrice);
+      obDal.save(price);
+      if ((i + 1) % COMMIT_SIZE == 0) {
+        obDal.commitAndClose();
+        template = obDal.get(Product.class, template.getId());
+        priceListVersion = obDal.get(PriceListVersion.class, priceListVersion.getId());
+      }
+    }
+    obDal.commitAndClose();
+  }
+
+  private static void seedVendors(int from, int to) {
+    OBDal obDal = OBDal.getInstance();
+    BusinessPartner template = obDal.get(BusinessPartner.class, System.getProperty("jmh.vendorId"));
+    for (int i = from; i < to; i++) {
+      BusinessPartner vendor = (BusinessPartner) DalUtil.copy(template, false);
+      vendor.setSearchKey(searchKey(i));
+      vendor.setName(String.format("%s %s Supplies %d", BRANDS[i % BRANDS.length],
+          NOUNS[(i / BRANDS.length) % NOUNS.length], i));
+      obDal.save(vendor);
+      if ((i + 1) % COMMIT_SIZE == 0) {
+        obDal.commitAndClose();
+        template = obDal.get(BusinessPartner.class, template.getId());
+      }
+    }
+    obDal.commitAndClose();
+  }
+
+  private static PriceListVersion getPriceListVersion() {
+    BusinessPartner vendor = OBDal.getInstance().get(BusinessPartner.class, System.getProperty("jmh.vendorId"));
+    OBCriteria<PriceListVersion> criteria = OBDal.getInstance().createCriteria(PriceListVersion.class);
+    criteria.add(Restrictions.eq(PriceListVersion.PROPERTY_PRICELIST, vendor.getPurchasePricelist()));
+    criteria.add(Restrictions.le(PriceListVersion.PROPERTY_VALIDFROMDATE, new Date()));
+    criteria.addOrderBy(PriceListVersion.PROPERTY_VALIDFROMDATE, false);
+    criteria.setMaxResults(1);
+    PriceListVersion priceListVersion = (PriceListVersion) criteria.uniqueResult();
+    if (priceListVersion == null) {
+      throw new OBException("The purchase price list of the template vendor has no valid version");
+    }
+    return priceListVersion;
+  }
+
+  private static int countByKeyPrefix(Class<? extends BaseOBObject> entityClass) {
+    OBCriteria<?> criteria = OBDal.getInstance().createCriteria(entityClass);
+    criteria.add(Restrictions.like("searchKey", KEY_PREFIX + "%"));
+    return criteria.count();
+  }
+
+  private static String searchKey(int index) {
+    return String.format("%s%07d", KEY_PREFIX, index);
+  }
+}
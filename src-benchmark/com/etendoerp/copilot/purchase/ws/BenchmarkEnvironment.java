@@ -0,0 +1,91 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.weld.environment.se.Weld;
+import org.jboss.weld.environment.se.WeldContainer;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.base.weld.WeldUtils;
+import org.openbravo.dal.core.DalLayerInitializer;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+/**
+ * Boots the DAL and the Weld container once per benchmark JVM, against the database configured in
+ * Openbravo.properties.
+ * <p>
+ * The location of Openbravo.properties is read from the jmh.openbravoProperties system property, by default
+ * config/Openbravo.properties relative to the working directory. The benchmarks run with the user, role, client and
+ * organization of the jmh.userId, jmh.roleId, jmh.clientId and jmh.orgId system properties. Every system property
+ * starting with copilot.purchase. overrides the module configuration, so the caches and indexes of the module can be
+ * switched on and off without editing Openbravo.properties.
+ */
+final class BenchmarkEnvironment {
+
+  static final String PROPERTIES_FILE_PROPERTY = "jmh.openbravoProperties";
+  private static final String MODULE_PROPERTY_PREFIX = "copilot.purchase.";
+  private static final Logger log = LogManager.getLogger();
+
+  private static WeldContainer container;
+
+  private BenchmarkEnvironment() {
+  }
+
+  /**
+   * Initializes the DAL and the Weld container, if they are not initialized yet in this JVM.
+   *
+   * @param overrides
+   *     module properties applied on top of Openbravo.properties and the system properties, before the beans that
+   *     read them are created.
+   */
+  static synchronized void start(Map<String, String> overrides) {
+    if (container != null) {
+      return;
+    }
+    OBPropertiesProvider.getInstance()
+        .setProperties(System.getProperty(PROPERTIES_FILE_PROPERTY, "config/Openbravo.properties"));
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith(MODULE_PROPERTY_PREFIX)) {
+        properties.setProperty(name, System.getProperty(name));
+      }
+    }
+    properties.putAll(overrides);
+    DalLayerInitializer.getInstance().initialize(true);
+    container = new Weld().initialize();
+    WeldUtils.setStaticInstanceBeanManager(container.getBeanManager());
+    setContext();
+    checkTrigramExtension();
+    OBDal.getInstance().commitAndClose();
+    log.info("Benchmark environment started with {}", overrides);
+  }
+
+  /**
+   * Sets the OBContext of the benchmarks in the current thread.
+   */
+  static void setContext() {
+    OBContext.setOBContext(System.getProperty("jmh.userId", "100"), System.getProperty("jmh.roleId", "0"),
+        System.getProperty("jmh.clientId", "0"), System.getProperty("jmh.orgId", "0"));
+  }
+
+  /**
+   * Ends the transaction of the current thread, discarding its changes.
+   */
+  static void rollback() {
+    OBDal.getInstance().rollbackAndClose();
+  }
+
+  private static void checkTrigramExtension() {
+    Object count = OBDal.getInstance().getSession()
+        .createNativeQuery("select count(*) from pg_extension where extname = 'pg_trgm'")
+        .uniqueResult();
+    if (((BigInteger) count).intValue() == 0) {
+      throw new OBException("The pg_trgm extension is not installed in the benchmark database");
+    }
+  }
+}
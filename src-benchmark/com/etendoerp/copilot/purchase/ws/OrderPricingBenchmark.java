@@ -0,0 +1,99 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.order.OrderLine;
+import org.openbravo.model.common.plm.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.smf.securewebservices.utils.WSResult;
+
+/**
+ * Measures the pricing paths of purchase orders: recalcTaxes of a single line, recalcOrderTaxes of a whole order,
+ * getProductPrice and the dry-run preview of calcTaxes. The changes made by an iteration are rolled back at its end,
+ * so every iteration starts from the seeded order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class OrderPricingBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int catalogSize;
+
+  @Param({ "10", "100" })
+  public int lineCount;
+
+  private String orderId;
+  private List<String> productIds;
+  private JSONObject previewBody;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws JSONException {
+    if (lineCount > catalogSize) {
+      throw new IllegalArgumentException(String.format("The order cannot have %d lines of distinct products, the "
+          + "catalog has %d", lineCount, catalogSize));
+    }
+    BenchmarkEnvironment.start(Collections.emptyMap());
+    BenchmarkEnvironment.setContext();
+    BenchmarkDataset.ensureCatalog(catalogSize);
+    orderId = BenchmarkDataset.ensureOrder(catalogSize, lineCount);
+    productIds = BenchmarkDataset.getProductIds(catalogSize, lineCount);
+    previewBody = BenchmarkDataset.newOrderDocument(null, productIds);
+    previewBody.put("preview", true);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    BenchmarkEnvironment.rollback();
+  }
+
+  @Benchmark
+  public String recalcTaxes() {
+    Order order = OBDal.getInstance().get(Order.class, orderId);
+    List<OrderLine> orderLines = order.getOrderLineList();
+    OrderLine orderLine = orderLines.get(next++ % orderLines.size());
+    return CopilotWSServlet.recalcTaxes(orderLine);
+  }
+
+  @Benchmark
+  public Map<OrderLine, String> recalcOrderTaxes() {
+    return CopilotWSServlet.recalcOrderTaxes(OBDal.getInstance().get(Order.class, orderId));
+  }
+
+  @Benchmark
+  public String getProductPrice() {
+    Order order = OBDal.getInstance().get(Order.class, orderId);
+    Product product = OBDal.getInstance().get(Product.class, productIds.get(next++ % productIds.size()));
+    return CopilotWSServlet.getProductPrice(new Date(), order.getPriceList(), product);
+  }
+
+  @Benchmark
+  public WSResult previewPrices() throws JSONException {
+    return PricePreviewHandler.handlePreview(previewBody);
+  }
+}
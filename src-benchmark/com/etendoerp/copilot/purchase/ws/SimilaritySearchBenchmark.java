@@ -0,0 +1,77 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.etendoerp.copilot.openapi.purchase.search.SimilarityIndexManager;
+import com.etendoerp.copilot.openapi.purchase.search.SimilaritySearchCache;
+import com.smf.securewebservices.utils.WSResult;
+
+/**
+ * Measures handleSimSearch over the product catalog. The indexed mode runs the trigram query over ETCPOPP_SIM_IDX and
+ * the legacy mode runs searchEntities, which computes the similarity of every product. The similarity search cache
+ * and the in-memory index are disabled, so every invocation reaches the database. The DAL session is discarded after
+ * every iteration, so the entities loaded by the legacy mode do not pile up in it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SimilaritySearchBenchmark {
+
+  private static final int SEARCH_TERMS = 64;
+
+  @Param({ "1000", "10000", "100000" })
+  public int catalogSize;
+
+  @Param({ CopilotWSServlet.SEARCH_MODE_INDEXED, CopilotWSServlet.SEARCH_MODE_LEGACY })
+  public String searchMode;
+
+  private List<String> searchTerms;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Map<String, String> overrides = new HashMap<>();
+    overrides.put(SimilaritySearchCache.SIZE_PROPERTY, "0");
+    overrides.put(SimilarityIndexManager.ENABLED_PROPERTY, "false");
+    BenchmarkEnvironment.start(overrides);
+    BenchmarkEnvironment.setContext();
+    BenchmarkDataset.ensureCatalog(catalogSize);
+    searchTerms = BenchmarkDataset.searchTerms(SEARCH_TERMS);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    BenchmarkEnvironment.rollback();
+  }
+
+  @Benchmark
+  public WSResult searchProduct() throws JSONException {
+    Map<String, String> params = new HashMap<>();
+    params.put("searchTerm", searchTerms.get(next++ % SEARCH_TERMS));
+    params.put("entityName", "Product");
+    params.put("qtyResults", "5");
+    params.put("searchMode", searchMode);
+    return CopilotWSServlet.handleSimSearch(params);
+  }
+}
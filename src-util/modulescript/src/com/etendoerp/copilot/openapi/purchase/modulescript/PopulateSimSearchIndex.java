@@ -0,0 +1,39 @@
+package com.etendoerp.copilot.openapi.purchase.modulescript;
+
+import java.sql.PreparedStatement;
+
+import org.openbravo.database.ConnectionProvider;
+import org.openbravo.modulescript.ModuleScript;
+
+/**
+ * Fills the ETCPOPP_SIM_IDX shadow table with the records that existed before the similarity search
+ * triggers were installed. Records already present in the index are skipped, so the script can be
+ * executed on every update.database.
+ */
+public class PopulateSimSearchIndex extends ModuleScript {
+
+  private static final String[][] INDEXED_TABLES = {
+      { "m_product", "m_product_id" },
+      { "c_bpartner", "c_bpartner_id" },
+      { "c_paymentterm", "c_paymentterm_id" },
+      { "c_doctype", "c_doctype_id" } };
+
+  private static final String POPULATE_SQL = "select etcpopp_sim_idx_sync('%1$s', t.%2$s, t.ad_client_id, t.ad_org_id, t.isactive, t.updatedby) "
+      + " from %1$s t "
+      + " where not exists (select 1 from etcpopp_sim_idx i where i.tablename = '%1$s' and i.record_id = t.%2$s)";
+
+  @Override
+  public void execute() {
+    try {
+      ConnectionProvider cp = getConnectionProvider();
+      for (String[] indexedTable : INDEXED_TABLES) {
+        PreparedStatement ps = cp.getPreparedStatement(
+            String.format(POPULATE_SQL, indexedTable[0], indexedTable[1]));
+        ps.executeQuery();
+        cp.releasePreparedStatement(ps);
+      }
+    } catch (Exception e) {
+      handleError(e);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.etendoerp.copilot.openapi.purchase.modulescript;
+
+import java.sql.PreparedStatement;
+
+import org.openbravo.database.ConnectionProvider;
+import org.openbravo.modulescript.ModuleScript;
+
+/**
+ * Fills the ETCPOPP_VENDOR_PRODUCT vendor catalog with the approved vendors and the completed purchase orders that
+ * existed before the vendor catalog triggers were installed. Pairs already present in the catalog are skipped, so
+ * the script can be executed on every update.database.
+ */
+public class PopulateVendorCatalog extends ModuleScript {
+
+  private static final String POPULATE_SQL = "select etcpopp_vendor_product_sync(s.c_bpartner_id, s.m_product_id, '0') "
+      + " from (select po.c_bpartner_id, po.m_product_id from m_product_po po where po.isactive = 'Y' "
+      + "   union "
+      + "   select o.c_bpartner_id, l.m_product_id from c_orderline l join c_order o on o.c_order_id = l.c_order_id "
+      + "   where o.issotrx = 'N' and o.docstatus in ('CO', 'CL') and l.m_product_id is not null) s "
+      + " where not exists (select 1 from etcpopp_vendor_product vp "
+      + "   where vp.c_bpartner_id = s.c_bpartner_id and vp.m_product_id = s.m_product_id)";
+
+  @Override
+  public void execute() {
+    try {
+      ConnectionProvider cp = getConnectionProvider();
+      PreparedStatement ps = cp.getPreparedStatement(POPULATE_SQL);
+      ps.executeQuery();
+      cp.releasePreparedStatement(ps);
+    } catch (Exception e) {
+      handleError(e);
+    }
+  }
+}
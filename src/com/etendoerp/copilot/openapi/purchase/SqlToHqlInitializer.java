@@ -15,6 +15,8 @@ public class SqlToHqlInitializer implements SQLFunctionRegister {
 
     sqlFunctions.put("etcpopp_sim_search",
         new StandardSQLFunction("etcpopp_sim_search", StandardBasicTypes.BIG_DECIMAL));
+    sqlFunctions.put("etcpopp_similarity",
+        new StandardSQLFunction("similarity", StandardBasicTypes.BIG_DECIMAL));
     return sqlFunctions;
   }
 }
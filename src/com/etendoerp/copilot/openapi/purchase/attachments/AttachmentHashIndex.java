@@ -0,0 +1,126 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.utility.Attachment;
+
+/**
+ * Keeps the SHA-256 of the content of the attachments created through the Copilot, in the ETCPOPP_ATTACH_HASH
+ * table. The rows are deleted with their attachments by the foreign key to C_FILE.
+ * <p>
+ * Lookups only return attachments of the clients and organizations readable by the current user, so the content of
+ * an attachment is never reused for a user that could not download it.
+ */
+class AttachmentHashIndex {
+
+  //@formatter:off
+  private static final String FIND_SQL = new StringBuilder()
+      .append("select h.c_file_id ")
+      .append(" from etcpopp_attach_hash h ")
+      .append(" join c_file f on f.c_file_id = h.c_file_id ")
+      .append(" where h.sha256 = :sha256 ")
+      .append(" and h.ad_client_id in (:clientIds) ")
+      .append(" and f.ad_org_id in (:orgIds) ")
+      .toString();
+
+  private static final String FIND_IN_RECORD_SQL = new StringBuilder()
+      .append(FIND_SQL)
+      .append(" and h.ad_table_id = :tableId ")
+      .append(" and h.ad_record_id = :recordId ")
+      .toString();
+
+  private static final String FIND_ANY_SQL = new StringBuilder()
+      .append(FIND_SQL)
+      .append(" order by h.created desc")
+      .toString();
+
+  private static final String DELETE_SQL = "delete from etcpopp_attach_hash where c_file_id = :fileId";
+
+  private static final String INSERT_SQL = new StringBuilder()
+      .append("insert into etcpopp_attach_hash ")
+      .append(" (etcpopp_attach_hash_id, ad_client_id, ad_org_id, isactive, created, createdby, updated, updatedby, ")
+      .append("  c_file_id, ad_table_id, ad_record_id, sha256, filesize) ")
+      .append(" values (:id, :clientId, :orgId, 'Y', now(), :userId, now(), :userId, ")
+      .append("  :fileId, :tableId, :recordId, :sha256, :size)")
+      .toString();
+  //@formatter:on
+
+  private AttachmentHashIndex() {
+  }
+
+  /**
+   * Finds an attachment of a record with the given content.
+   *
+   * @param tableId
+   *     the table of the record.
+   * @param recordId
+   *     the ID of the record.
+   * @param sha256
+   *     the hex encoded SHA-256 of the content.
+   * @return the ID of the attachment, or null if the record has no attachment with that content.
+   */
+  static String findInRecord(String tableId, String recordId, String sha256) {
+    List<?> ids = createQuery(FIND_IN_RECORD_SQL, sha256)
+        .setParameter("tableId", tableId)
+        .setParameter("recordId", recordId)
+        .setMaxResults(1)
+        .list();
+    return ids.isEmpty() ? null : (String) ids.get(0);
+  }
+
+  /**
+   * Finds the most recent attachment of any record with the given content.
+   *
+   * @param sha256
+   *     the hex encoded SHA-256 of the content.
+   * @return the ID of the attachment, or null if no readable attachment has that content.
+   */
+  static String findAny(String sha256) {
+    List<?> ids = createQuery(FIND_ANY_SQL, sha256)
+        .setMaxResults(1)
+        .list();
+    return ids.isEmpty() ? null : (String) ids.get(0);
+  }
+
+  /**
+   * Stores the SHA-256 of an attachment, replacing the previous one when the attachment was overwritten.
+   *
+   * @param attachment
+   *     the attachment.
+   * @param sha256
+   *     the hex encoded SHA-256 of its content.
+   * @param size
+   *     the size of its content in bytes.
+   */
+  static void register(Attachment attachment, String sha256, long size) {
+    Session session = OBDal.getInstance().getSession();
+    session.createNativeQuery(DELETE_SQL)
+        .setParameter("fileId", attachment.getId())
+        .executeUpdate();
+    session.createNativeQuery(INSERT_SQL)
+        .setParameter("id", UUID.randomUUID().toString().replace("-", "").toUpperCase())
+        .setParameter("clientId", attachment.getClient().getId())
+        .setParameter("orgId", attachment.getOrganization().getId())
+        .setParameter("userId", OBContext.getOBContext().getUser().getId())
+        .setParameter("fileId", attachment.getId())
+        .setParameter("tableId", attachment.getTable().getId())
+        .setParameter("recordId", attachment.getRecord())
+        .setParameter("sha256", sha256)
+        .setParameter("size", size)
+        .executeUpdate();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static NativeQuery createQuery(String sql, String sha256) {
+    OBContext obContext = OBContext.getOBContext();
+    return OBDal.getInstance().getSession().createNativeQuery(sql)
+        .setParameter("sha256", sha256)
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations());
+  }
+}
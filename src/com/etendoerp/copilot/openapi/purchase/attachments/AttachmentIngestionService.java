@@ -0,0 +1,218 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Processes attachment uploads in the background, so the request that receives them returns a job id right away
+ * instead of holding a servlet thread until the attachment is stored.
+ * <p>
+ * Jobs run on a bounded pool of worker threads (copilot.purchase.attach.async.threads) fed by a bounded queue
+ * (copilot.purchase.attach.async.queueSize). The content held by the queued jobs is also bounded
+ * (copilot.purchase.attach.async.maxPendingMB). When any of the limits is reached new jobs are rejected with an
+ * {@link AttachmentQueueFullException}, pushing the back-pressure to the clients instead of piling up content in
+ * memory. Every job runs with an OBContext for the user, role, client and organization of the request that submitted
+ * it, and its own DAL session and transaction.
+ * <p>
+ * Finished jobs are kept copilot.purchase.attach.async.retentionMinutes minutes so their status can be polled.
+ */
+@ApplicationScoped
+public class AttachmentIngestionService {
+
+  public static final String THREADS_PROPERTY = "copilot.purchase.attach.async.threads";
+  public static final String QUEUE_SIZE_PROPERTY = "copilot.purchase.attach.async.queueSize";
+  public static final String MAX_PENDING_PROPERTY = "copilot.purchase.attach.async.maxPendingMB";
+  public static final String RETENTION_PROPERTY = "copilot.purchase.attach.async.retentionMinutes";
+  private static final int DEFAULT_THREADS = 2;
+  private static final int DEFAULT_QUEUE_SIZE = 50;
+  private static final long DEFAULT_MAX_PENDING_MB = 256;
+  private static final long DEFAULT_RETENTION_MINUTES = 60;
+  private static final String QUEUE_FULL_MESSAGE = "Too many attachments being processed, try again later.";
+  private static final Logger log = LogManager.getLogger();
+
+  /**
+   * The work of a job, run in a worker thread with the OBContext of the request that submitted it.
+   */
+  @FunctionalInterface
+  public interface AttachmentTask {
+    /**
+     * Stores the attachment.
+     *
+     * @return the attachment holding the content.
+     * @throws Exception
+     *     if the attachment cannot be stored, the job fails with its message.
+     */
+    AttachmentUploadResult run() throws Exception;
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final long maxPendingBytes = PurchaseConfig.getLong(MAX_PENDING_PROPERTY, DEFAULT_MAX_PENDING_MB)
+      * 1024 * 1024;
+  private final long retentionMillis = PurchaseConfig.getLong(RETENTION_PROPERTY, DEFAULT_RETENTION_MINUTES)
+      * 60 * 1000;
+  private final Map<String, AttachmentJob> jobs = new ConcurrentHashMap<>();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder processingMillis = new LongAdder();
+  private final LongAdder queueMillis = new LongAdder();
+  private final LongAccumulator maxProcessingMillis = new LongAccumulator(Math::max, 0);
+
+  public AttachmentIngestionService() {
+    int threads = Math.max(1, PurchaseConfig.getInt(THREADS_PROPERTY, DEFAULT_THREADS));
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(PurchaseConfig.getInt(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE)), runnable -> {
+          Thread thread = new Thread(runnable, "copilot-purchase-attach-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Queues an attachment upload for the current user.
+   *
+   * @param fileName
+   *     the name of the attachment, shown in the status of the job.
+   * @param size
+   *     the bytes of content held in memory by the task until it runs, counted against the pending limit.
+   * @param task
+   *     the work of the job.
+   * @return the queued job.
+   * @throws AttachmentQueueFullException
+   *     if the queue or the pending content are at their limit.
+   */
+  public AttachmentJob submit(String fileName, long size, AttachmentTask task) {
+    removeExpiredJobs();
+    long pending = pendingBytes.addAndGet(size);
+    // a single job bigger than the limit is accepted when nothing else is pending
+    if (pending > maxPendingBytes && pending != size) {
+      pendingBytes.addAndGet(-size);
+      rejected.increment();
+      throw new AttachmentQueueFullException(QUEUE_FULL_MESSAGE);
+    }
+    OBContext obContext = OBContext.getOBContext();
+    String userId = obContext.getUser().getId();
+    String roleId = obContext.getRole().getId();
+    String clientId = obContext.getCurrentClient().getId();
+    String orgId = obContext.getCurrentOrganization().getId();
+    AttachmentJob job = new AttachmentJob(UUID.randomUUID().toString().replace("-", ""), userId, fileName, size);
+    jobs.put(job.getJobId(), job);
+    try {
+      executor.execute(() -> run(job, task, userId, roleId, clientId, orgId));
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getJobId());
+      pendingBytes.addAndGet(-size);
+      rejected.increment();
+      throw new AttachmentQueueFullException(QUEUE_FULL_MESSAGE);
+    }
+    submitted.increment();
+    log.debug("Queued attachment job {} for {}, {} jobs waiting", job.getJobId(), fileName,
+        executor.getQueue().size());
+    return job;
+  }
+
+  /**
+   * Returns a job of the current user.
+   *
+   * @param jobId
+   *     the ID of the job.
+   * @return the job, or null if it does not exist, has expired or belongs to another user.
+   */
+  public AttachmentJob getJob(String jobId) {
+    AttachmentJob job = jobId != null ? jobs.get(jobId) : null;
+    if (job == null || !StringUtils.equals(job.getUserId(), OBContext.getOBContext().getUser().getId())) {
+      return null;
+    }
+    return job;
+  }
+
+  /**
+   * @return a JSONObject with the queue depth, the running jobs, the pending content and the counters and timings of
+   *     the jobs processed since startup.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject getStats() throws JSONException {
+    long finished = completed.sum() + failed.sum();
+    JSONObject stats = new JSONObject();
+    stats.put("queueDepth", executor.getQueue().size());
+    stats.put("running", executor.getActiveCount());
+    stats.put("threads", executor.getMaximumPoolSize());
+    stats.put("pendingBytes", pendingBytes.get());
+    stats.put("submitted", submitted.sum());
+    stats.put("completed", completed.sum());
+    stats.put("failed", failed.sum());
+    stats.put("rejected", rejected.sum());
+    stats.put("avgQueueMillis", finished == 0 ? 0 : queueMillis.sum() / finished);
+    stats.put("avgProcessingMillis", finished == 0 ? 0 : processingMillis.sum() / finished);
+    stats.put("maxProcessingMillis", maxProcessingMillis.get());
+    return stats;
+  }
+
+  private void run(AttachmentJob job, AttachmentTask task, String userId, String roleId, String clientId,
+      String orgId) {
+    job.started();
+    OBContext.setOBContext(userId, roleId, clientId, orgId);
+    try {
+      AttachmentUploadResult result = task.run();
+      OBDal.getInstance().commitAndClose();
+      job.done(result);
+      completed.increment();
+    } catch (Exception e) {
+      log.error("Error processing attachment job {} for {}", job.getJobId(), job.getFileName(), e);
+      OBDal.getInstance().rollbackAndClose();
+      job.failed(e.getMessage());
+      failed.increment();
+    } finally {
+      OBContext.setOBContext((OBContext) null);
+      pendingBytes.addAndGet(-job.getSize());
+      queueMillis.add(job.getQueueMillis());
+      processingMillis.add(job.getProcessingMillis());
+      maxProcessingMillis.accumulate(job.getProcessingMillis());
+      log.debug("Attachment job {} {} in {} ms after waiting {} ms", job.getJobId(), job.getStatus().getValue(),
+          job.getProcessingMillis(), job.getQueueMillis());
+    }
+  }
+
+  private void removeExpiredJobs() {
+    long limit = System.currentTimeMillis() - retentionMillis;
+    Iterator<AttachmentJob> iterator = jobs.values().iterator();
+    while (iterator.hasNext()) {
+      AttachmentJob job = iterator.next();
+      if (job.isFinished() && job.getFinishedMillis() < limit) {
+        iterator.remove();
+      }
+    }
+  }
+}
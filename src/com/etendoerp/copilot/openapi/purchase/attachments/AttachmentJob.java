@@ -0,0 +1,124 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * An attachment upload processed in the background by the {@link AttachmentIngestionService}.
+ */
+public class AttachmentJob {
+
+  /**
+   * Lifecycle of a job.
+   */
+  public enum Status {
+    QUEUED, RUNNING, DONE, FAILED;
+
+    public String getValue() {
+      return name().toLowerCase();
+    }
+  }
+
+  private final String jobId;
+  private final String userId;
+  private final String fileName;
+  private final long size;
+  private final long submittedMillis = System.currentTimeMillis();
+  private volatile Status status = Status.QUEUED;
+  private volatile long startedMillis;
+  private volatile long finishedMillis;
+  private volatile AttachmentUploadResult result;
+  private volatile String error;
+
+  AttachmentJob(String jobId, String userId, String fileName, long size) {
+    this.jobId = jobId;
+    this.userId = userId;
+    this.fileName = fileName;
+    this.size = size;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * @return the bytes of content held by the job until it finishes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public long getFinishedMillis() {
+    return finishedMillis;
+  }
+
+  public boolean isFinished() {
+    return status == Status.DONE || status == Status.FAILED;
+  }
+
+  void started() {
+    startedMillis = System.currentTimeMillis();
+    status = Status.RUNNING;
+  }
+
+  void done(AttachmentUploadResult uploadResult) {
+    result = uploadResult;
+    finishedMillis = System.currentTimeMillis();
+    status = Status.DONE;
+  }
+
+  void failed(String message) {
+    error = message;
+    finishedMillis = System.currentTimeMillis();
+    status = Status.FAILED;
+  }
+
+  /**
+   * @return the milliseconds the job waited in the queue, up to now if it has not started.
+   */
+  long getQueueMillis() {
+    return (startedMillis > 0 ? startedMillis : System.currentTimeMillis()) - submittedMillis;
+  }
+
+  /**
+   * @return the milliseconds the job has been running, or 0 if it has not started.
+   */
+  long getProcessingMillis() {
+    if (startedMillis == 0) {
+      return 0;
+    }
+    return (finishedMillis > 0 ? finishedMillis : System.currentTimeMillis()) - startedMillis;
+  }
+
+  /**
+   * Builds the JSON returned to the clients polling the job.
+   *
+   * @return a JSONObject with the job id, its status and timings, and the attachment or the error once finished.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject toJson() throws JSONException {
+    JSONObject json = result != null ? result.toJson() : new JSONObject();
+    json.put("jobId", jobId);
+    json.put("status", status.getValue());
+    json.put("fileName", fileName);
+    json.put("queueMillis", getQueueMillis());
+    json.put("processingMillis", getProcessingMillis());
+    if (error != null) {
+      json.put("error", error);
+    }
+    return json;
+  }
+}
@@ -0,0 +1,16 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import org.openbravo.base.exception.OBException;
+
+/**
+ * Thrown when an attachment cannot be queued because the {@link AttachmentIngestionService} is at its capacity. The
+ * upload should be retried later.
+ */
+public class AttachmentQueueFullException extends OBException {
+
+  private static final long serialVersionUID = 1L;
+
+  public AttachmentQueueFullException(String message) {
+    super(message);
+  }
+}
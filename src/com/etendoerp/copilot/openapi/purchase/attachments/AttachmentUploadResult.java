@@ -0,0 +1,77 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Outcome of an attachment upload: the attachment that holds the content and whether the content was deduplicated.
+ */
+public class AttachmentUploadResult {
+
+  /**
+   * How the content of an upload was deduplicated.
+   */
+  public enum Dedup {
+    /** The content was not found, it was stored. */
+    NONE("none", "Attachment created successfully"),
+    /** The record already had an attachment with the same content, nothing was stored. */
+    SAME_RECORD("sameRecord", "The record already has an attachment with the same content"),
+    /** The content was taken from the attachment store instead of being sent again. */
+    STORED_CONTENT("storedContent", "Attachment created from stored content");
+
+    private final String type;
+    private final String message;
+
+    Dedup(String type, String message) {
+      this.type = type;
+      this.message = message;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  private final String attachmentId;
+  private final Dedup dedup;
+
+  AttachmentUploadResult(String attachmentId, Dedup dedup) {
+    this.attachmentId = attachmentId;
+    this.dedup = dedup;
+  }
+
+  public String getAttachmentId() {
+    return attachmentId;
+  }
+
+  public Dedup getDedup() {
+    return dedup;
+  }
+
+  /**
+   * @return true if the content was not received and stored again.
+   */
+  public boolean isDedupHit() {
+    return dedup != Dedup.NONE;
+  }
+
+  /**
+   * Builds the JSON returned to the clients.
+   *
+   * @return a JSONObject with the message, the attachment ID and the dedup and dedupType properties.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("message", dedup.getMessage());
+    json.put("attachmentId", attachmentId);
+    json.put("dedup", isDedupHit());
+    json.put("dedupType", dedup.getType());
+    return json;
+  }
+}
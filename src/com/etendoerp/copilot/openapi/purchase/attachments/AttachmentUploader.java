@@ -0,0 +1,242 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.weld.WeldUtils;
+import org.openbravo.client.application.attachment.AttachImplementationManager;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBCriteria;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.ui.Tab;
+import org.openbravo.model.ad.utility.Attachment;
+
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploadResult.Dedup;
+
+/**
+ * Utility class to store the content of an attachment in a temp file and hand it to the attachment store. The
+ * content is always copied with fixed-size buffers, so the heap used by an upload does not depend on the size of the
+ * file.
+ * <p>
+ * The SHA-256 of the content is computed while it is copied and kept in {@link AttachmentHashIndex}, so the same
+ * content is not stored twice in a record, and it can be attached to other records from the attachment store without
+ * being sent again.
+ */
+public class AttachmentUploader {
+
+  /**
+   * Size of the buffers used to copy the content, it bounds the heap used by an upload.
+   */
+  public static final int BUFFER_SIZE = 64 * 1024;
+  private static final Logger log = LogManager.getLogger();
+
+  private AttachmentUploader() {
+  }
+
+  /**
+   * Copies a stream into a new temp file, updating the digest with the content. The temp file is deleted if the copy
+   * fails.
+   *
+   * @param content
+   *     the content of the file, it is not closed.
+   * @param fileName
+   *     the name of the file, used as the suffix of the temp file.
+   * @param digest
+   *     the digest updated with the content while it is copied, see {@link #newDigest()}.
+   * @return the temp file.
+   * @throws IOException
+   *     if there is an error reading the content or writing the file.
+   */
+  public static File copyToTempFile(InputStream content, String fileName,
+      MessageDigest digest) throws IOException {
+    long allocatedBefore = getAllocatedBytes();
+    File tempFile = Files.createTempFile(null, fileName).toFile();
+    long size = 0;
+    try (OutputStream fos = new DigestOutputStream(new FileOutputStream(tempFile), digest)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = content.read(buffer)) != -1) {
+        fos.write(buffer, 0, read);
+        size += read;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      deleteTempFile(tempFile);
+      throw new IOException("Error storing the content of " + fileName, e);
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Stored {} bytes of {} into {}, {} bytes allocated while copying", size, fileName,
+          tempFile.getName(), allocatedBefore < 0 ? "unknown" : getAllocatedBytes() - allocatedBefore);
+    }
+    return tempFile;
+  }
+
+  /**
+   * Attaches a file to a record, unless the record already has an attachment with the same content. The transaction
+   * is rolled back if the upload fails.
+   *
+   * @param adTabId
+   *     the tab of the record.
+   * @param recordId
+   *     the ID of the record.
+   * @param fileName
+   *     the name of the attachment.
+   * @param file
+   *     the content of the attachment.
+   * @param sha256
+   *     the hex encoded SHA-256 of the content.
+   * @return the attachment holding the content, with a SAME_RECORD dedup if it already existed.
+   */
+  public static AttachmentUploadResult upload(String adTabId, String recordId, String fileName, File file,
+      String sha256) {
+    try {
+      String tableId = getTableId(adTabId);
+      String existingId = AttachmentHashIndex.findInRecord(tableId, recordId, sha256);
+      if (existingId != null) {
+        log.debug("Record {} already has attachment {} with the content of {}", recordId, existingId, fileName);
+        return new AttachmentUploadResult(existingId, Dedup.SAME_RECORD);
+      }
+      Attachment attachment = store(adTabId, tableId, recordId, fileName, file);
+      AttachmentHashIndex.register(attachment, sha256, file.length());
+      return new AttachmentUploadResult(attachment.getId(), Dedup.NONE);
+    } catch (Exception e) {
+      OBDal.getInstance().rollbackAndClose();
+      throw e;
+    }
+  }
+
+  /**
+   * Attaches to a record the content of an attachment already stored, without receiving it again. The content is
+   * looked up by its SHA-256 among the attachments readable by the current user. The transaction is rolled back if
+   * the upload fails.
+   *
+   * @param adTabId
+   *     the tab of the record.
+   * @param recordId
+   *     the ID of the record.
+   * @param fileName
+   *     the name of the attachment.
+   * @param sha256
+   *     the hex encoded SHA-256 of the content.
+   * @return the attachment holding the content, or null if the content is not stored, so it must be sent.
+   * @throws IOException
+   *     if there is an error copying the stored content.
+   */
+  public static AttachmentUploadResult uploadStoredContent(String adTabId, String recordId, String fileName,
+      String sha256) throws IOException {
+    File file = null;
+    try {
+      String tableId = getTableId(adTabId);
+      String existingId = AttachmentHashIndex.findInRecord(tableId, recordId, sha256);
+      if (existingId != null) {
+        return new AttachmentUploadResult(existingId, Dedup.SAME_RECORD);
+      }
+      String storedId = AttachmentHashIndex.findAny(sha256);
+      if (storedId == null) {
+        return null;
+      }
+      MessageDigest digest = newDigest();
+      file = Files.createTempFile(null, fileName).toFile();
+      try (OutputStream out = new DigestOutputStream(new FileOutputStream(file), digest)) {
+        getAttachImplementationManager().download(storedId, out);
+      }
+      if (!StringUtils.equalsIgnoreCase(sha256, Hex.encodeHexString(digest.digest()))) {
+        // the stored file was modified after it was attached
+        log.warn("The content of attachment {} does not match its SHA-256, it is not reused", storedId);
+        return null;
+      }
+      Attachment attachment = store(adTabId, tableId, recordId, fileName, file);
+      AttachmentHashIndex.register(attachment, sha256, file.length());
+      log.debug("Attached the content of attachment {} to record {} as {}", storedId, recordId, attachment.getId());
+      return new AttachmentUploadResult(attachment.getId(), Dedup.STORED_CONTENT);
+    } catch (Exception e) {
+      OBDal.getInstance().rollbackAndClose();
+      throw e;
+    } finally {
+      deleteTempFile(file);
+    }
+  }
+
+  /**
+   * @return a new SHA-256 digest.
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new OBException(e);
+    }
+  }
+
+  /**
+   * Deletes a temp file, logging instead of failing if it cannot be deleted.
+   *
+   * @param file
+   *     the file to delete, can be null.
+   */
+  public static void deleteTempFile(File file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      log.warn("Temp file {} could not be deleted", file, e);
+    }
+  }
+
+  private static Attachment store(String adTabId, String tableId, String recordId, String fileName, File file) {
+    getAttachImplementationManager().upload(new HashMap<>(), adTabId, recordId, fileName, file);
+    // the attachment manager does not return the attachment, it is the last one updated in the record
+    OBCriteria<Attachment> criteria = OBDal.getInstance().createCriteria(Attachment.class);
+    criteria.add(Restrictions.eq(Attachment.PROPERTY_TABLE + ".id", tableId));
+    criteria.add(Restrictions.eq(Attachment.PROPERTY_RECORD, recordId));
+    criteria.addOrderBy(Attachment.PROPERTY_UPDATED, false);
+    criteria.setMaxResults(1);
+    return (Attachment) criteria.uniqueResult();
+  }
+
+  private static String getTableId(String adTabId) {
+    try {
+      OBContext.setAdminMode(true);
+      Tab tab = OBDal.getInstance().get(Tab.class, adTabId);
+      if (tab == null) {
+        throw new OBException("Tab not found: " + adTabId);
+      }
+      return tab.getTable().getId();
+    } finally {
+      OBContext.restorePreviousMode();
+    }
+  }
+
+  private static AttachImplementationManager getAttachImplementationManager() {
+    return WeldUtils.getInstanceFromStaticBeanManager(AttachImplementationManager.class);
+  }
+
+  /**
+   * @return the bytes allocated in the heap by the current thread, or -1 if the JVM does not measure them.
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,131 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * State of a chunked upload: the target of the attachment, the bytes received so far and the SHA-256 of every
+ * acknowledged chunk. The state is stored next to the staged content, so an upload can be resumed after a restart.
+ */
+public class ChunkedUpload {
+
+  private final String uploadId;
+  private final String userId;
+  private final String adTabId;
+  private final String recordId;
+  private final String fileName;
+  private final long expectedSize;
+  private final List<String> chunkChecksums = new ArrayList<>();
+  private long offset;
+
+  ChunkedUpload(String uploadId, String userId, String adTabId, String recordId, String fileName,
+      long expectedSize) {
+    this.uploadId = uploadId;
+    this.userId = userId;
+    this.adTabId = adTabId;
+    this.recordId = recordId;
+    this.fileName = fileName;
+    this.expectedSize = expectedSize;
+  }
+
+  public String getUploadId() {
+    return uploadId;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public String getAdTabId() {
+    return adTabId;
+  }
+
+  public String getRecordId() {
+    return recordId;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * @return the size of the file announced when the upload was initiated, or -1 if it is unknown.
+   */
+  public long getExpectedSize() {
+    return expectedSize;
+  }
+
+  /**
+   * @return the number of bytes received, which is the offset of the next chunk.
+   */
+  public synchronized long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the number of chunks received.
+   */
+  public synchronized int getChunkCount() {
+    return chunkChecksums.size();
+  }
+
+  synchronized void addChunk(long size, String checksum) {
+    offset += size;
+    chunkChecksums.add(checksum);
+  }
+
+  /**
+   * Builds the JSON returned to the clients, with the information needed to resume the upload.
+   *
+   * @return a JSONObject with the upload id, the offset and the number of chunks received.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public synchronized JSONObject toStatusJson() throws JSONException {
+    JSONObject status = new JSONObject();
+    status.put("uploadId", uploadId);
+    status.put("offset", offset);
+    status.put("chunks", chunkChecksums.size());
+    status.put("expectedSize", expectedSize);
+    return status;
+  }
+
+  synchronized void save(File stateFile) throws IOException {
+    try {
+      JSONObject state = toStatusJson();
+      state.put("userId", userId);
+      state.put("adTabId", adTabId);
+      state.put("recordId", recordId);
+      state.put("fileName", fileName);
+      state.put("chunkChecksums", new JSONArray(chunkChecksums));
+      Files.write(stateFile.toPath(), state.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (JSONException e) {
+      throw new IOException("Error saving the state of upload " + uploadId, e);
+    }
+  }
+
+  static ChunkedUpload load(File stateFile) throws IOException {
+    try {
+      JSONObject state = new JSONObject(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8));
+      ChunkedUpload upload = new ChunkedUpload(state.getString("uploadId"), state.getString("userId"),
+          state.getString("adTabId"), state.getString("recordId"), state.getString("fileName"),
+          state.getLong("expectedSize"));
+      upload.offset = state.getLong("offset");
+      JSONArray checksums = state.getJSONArray("chunkChecksums");
+      for (int i = 0; i < checksums.length(); i++) {
+        upload.chunkChecksums.add(checksums.getString(i));
+      }
+      return upload;
+    } catch (JSONException e) {
+      throw new IOException("Error reading the state of upload " + stateFile.getName(), e);
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import org.openbravo.base.exception.OBException;
+
+/**
+ * Error of a chunked upload request, with the HTTP status to answer it with.
+ */
+public class ChunkedUploadException extends OBException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int status;
+
+  public ChunkedUploadException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  /**
+   * @return the HTTP status of the error.
+   */
+  public int getStatus() {
+    return status;
+  }
+}
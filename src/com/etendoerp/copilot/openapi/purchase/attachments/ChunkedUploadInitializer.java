@@ -0,0 +1,21 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.openbravo.client.kernel.ApplicationInitializer;
+
+/**
+ * Starts the periodic deletion of the abandoned chunked uploads when the application starts.
+ */
+@ApplicationScoped
+public class ChunkedUploadInitializer implements ApplicationInitializer {
+
+  @Inject
+  private ChunkedUploadManager chunkedUploadManager;
+
+  @Override
+  public void initialize() {
+    chunkedUploadManager.scheduleGarbageCollection();
+  }
+}
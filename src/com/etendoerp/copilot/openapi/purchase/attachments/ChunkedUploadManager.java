@@ -0,0 +1,306 @@
+package com.etendoerp.copilot.openapi.purchase.attachments;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Stages chunked uploads on local disk and attaches them once they are complete.
+ * <p>
+ * The protocol has three steps: an upload is initiated with the target of the attachment, its chunks are appended in
+ * order, each one at the offset acknowledged for the previous one, and it is completed, which hands the assembled
+ * file to the attachment store in a single upload. A chunk sent again after a lost acknowledgement is accepted
+ * without being appended twice, so clients can resume from the offset returned by the status of the upload.
+ * <p>
+ * The content of every upload is staged in a .part file and its state in a .json file, in the directory set in
+ * copilot.purchase.upload.stagingDir (a folder of the temp directory by default). Uploads not updated for
+ * copilot.purchase.upload.ttlMinutes minutes are deleted by a periodic clean up.
+ */
+@ApplicationScoped
+public class ChunkedUploadManager {
+
+  public static final String STAGING_DIR_PROPERTY = "copilot.purchase.upload.stagingDir";
+  public static final String TTL_PROPERTY = "copilot.purchase.upload.ttlMinutes";
+  private static final long DEFAULT_TTL_MINUTES = 24 * 60L;
+  private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("[0-9a-f]{32}");
+  private static final String PART_EXTENSION = ".part";
+  private static final String STATE_EXTENSION = ".json";
+  private static final Logger log = LogManager.getLogger();
+
+  private final File stagingDir = new File(PurchaseConfig.getString(STAGING_DIR_PROPERTY,
+      new File(System.getProperty("java.io.tmpdir"), "etcpopp-uploads").getPath()));
+  private final long ttlMillis = PurchaseConfig.getLong(TTL_PROPERTY, DEFAULT_TTL_MINUTES) * 60 * 1000;
+  private final Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+  private ScheduledExecutorService cleaner;
+
+  /**
+   * Starts the periodic deletion of the abandoned uploads.
+   */
+  public synchronized void scheduleGarbageCollection() {
+    if (cleaner != null) {
+      return;
+    }
+    cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "copilot-purchase-upload-cleaner");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(60_000L, ttlMillis / 4);
+    cleaner.scheduleWithFixedDelay(this::collectGarbage, 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (cleaner != null) {
+      cleaner.shutdownNow();
+    }
+  }
+
+  /**
+   * Starts a chunked upload for the current user.
+   *
+   * @param adTabId
+   *     the tab of the record to attach the file to.
+   * @param recordId
+   *     the ID of the record to attach the file to.
+   * @param fileName
+   *     the name of the attachment.
+   * @param expectedSize
+   *     the size of the file, or -1 if it is unknown.
+   * @return the new upload.
+   * @throws IOException
+   *     if the staging files cannot be created.
+   */
+  public ChunkedUpload initiate(String adTabId, String recordId, String fileName,
+      long expectedSize) throws IOException {
+    if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+      throw new IOException("The staging directory " + stagingDir + " cannot be created");
+    }
+    String uploadId = UUID.randomUUID().toString().replace("-", "");
+    ChunkedUpload upload = new ChunkedUpload(uploadId, OBContext.getOBContext().getUser().getId(), adTabId,
+        recordId, fileName, expectedSize);
+    if (!getPartFile(uploadId).createNewFile()) {
+      throw new IOException("The staging file of upload " + uploadId + " already exists");
+    }
+    upload.save(getStateFile(uploadId));
+    uploads.put(uploadId, upload);
+    return upload;
+  }
+
+  /**
+   * Returns an upload of the current user.
+   *
+   * @param uploadId
+   *     the ID of the upload.
+   * @return the upload.
+   * @throws ChunkedUploadException
+   *     if the upload does not exist, has expired or belongs to another user.
+   */
+  public ChunkedUpload getUpload(String uploadId) {
+    if (uploadId == null || !UPLOAD_ID_PATTERN.matcher(uploadId).matches()) {
+      throw new ChunkedUploadException(HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+    }
+    ChunkedUpload upload = uploads.computeIfAbsent(uploadId, this::loadUpload);
+    if (upload == null || !StringUtils.equals(upload.getUserId(), OBContext.getOBContext().getUser().getId())) {
+      throw new ChunkedUploadException(HttpServletResponse.SC_NOT_FOUND, "Upload not found");
+    }
+    return upload;
+  }
+
+  /**
+   * Appends a chunk to an upload. A chunk whose offset has already been acknowledged is ignored, so it can be sent
+   * again safely when its acknowledgement was lost. The chunk is discarded if it cannot be stored completely or its
+   * checksum does not match.
+   *
+   * @param uploadId
+   *     the ID of the upload.
+   * @param offset
+   *     the position of the chunk in the file.
+   * @param content
+   *     the content of the chunk, it is not closed.
+   * @param sha256
+   *     the hex encoded SHA-256 of the chunk, or null to skip the verification.
+   * @return the upload, with the offset of the next chunk.
+   * @throws IOException
+   *     if there is an error storing the chunk.
+   */
+  public ChunkedUpload appendChunk(String uploadId, long offset, InputStream content,
+      String sha256) throws IOException {
+    ChunkedUpload upload = getUpload(uploadId);
+    synchronized (upload) {
+      long currentOffset = upload.getOffset();
+      if (offset < currentOffset) {
+        return upload;
+      }
+      if (offset > currentOffset) {
+        throw new ChunkedUploadException(HttpServletResponse.SC_CONFLICT,
+            String.format("Chunk at offset %d received, the next expected offset is %d", offset, currentOffset));
+      }
+      File partFile = getPartFile(uploadId);
+      MessageDigest digest = AttachmentUploader.newDigest();
+      long size = 0;
+      InputStream digestStream = new DigestInputStream(content, digest);
+      try (OutputStream out = new FileOutputStream(partFile, true)) {
+        byte[] buffer = new byte[AttachmentUploader.BUFFER_SIZE];
+        int read;
+        while ((read = digestStream.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          size += read;
+        }
+      } catch (IOException e) {
+        truncate(partFile, currentOffset);
+        throw e;
+      }
+      String checksum = Hex.encodeHexString(digest.digest());
+      String error = null;
+      if (sha256 != null && !StringUtils.equalsIgnoreCase(sha256, checksum)) {
+        error = "The checksum of the chunk does not match";
+      } else if (upload.getExpectedSize() >= 0 && currentOffset + size > upload.getExpectedSize()) {
+        error = "The chunk exceeds the size of the file";
+      }
+      if (error != null) {
+        truncate(partFile, currentOffset);
+        throw new ChunkedUploadException(HttpServletResponse.SC_BAD_REQUEST, error);
+      }
+      upload.addChunk(size, checksum);
+      upload.save(getStateFile(uploadId));
+      return upload;
+    }
+  }
+
+  /**
+   * Completes an upload, attaching the assembled file to its record unless the record already has an attachment with
+   * the same content. The staging files are deleted once the file is attached; if the attachment fails they are
+   * kept, so the completion can be retried.
+   *
+   * @param uploadId
+   *     the ID of the upload.
+   * @param sha256
+   *     the hex encoded SHA-256 of the whole file, or null to skip the verification.
+   * @return the attachment holding the content of the upload.
+   * @throws IOException
+   *     if there is an error reading the staged file.
+   */
+  public AttachmentUploadResult complete(String uploadId, String sha256) throws IOException {
+    ChunkedUpload upload = getUpload(uploadId);
+    synchronized (upload) {
+      if (upload.getExpectedSize() >= 0 && upload.getOffset() != upload.getExpectedSize()) {
+        throw new ChunkedUploadException(HttpServletResponse.SC_BAD_REQUEST,
+            String.format("The upload is incomplete, %d of %d bytes received", upload.getOffset(),
+                upload.getExpectedSize()));
+      }
+      File partFile = getPartFile(uploadId);
+      String checksum = checksum(partFile);
+      if (sha256 != null && !StringUtils.equalsIgnoreCase(sha256, checksum)) {
+        throw new ChunkedUploadException(HttpServletResponse.SC_BAD_REQUEST,
+            "The checksum of the file does not match");
+      }
+      AttachmentUploadResult result = AttachmentUploader.upload(upload.getAdTabId(), upload.getRecordId(),
+          upload.getFileName(), partFile, checksum);
+      delete(uploadId);
+      return result;
+    }
+  }
+
+  /**
+   * Deletes the uploads that have not been updated within the configured time to live.
+   *
+   * @return the number of uploads deleted.
+   */
+  public int collectGarbage() {
+    File[] stateFiles = stagingDir.listFiles((dir, name) -> name.endsWith(STATE_EXTENSION));
+    if (stateFiles == null) {
+      return 0;
+    }
+    long limit = System.currentTimeMillis() - ttlMillis;
+    int deleted = 0;
+    for (File stateFile : stateFiles) {
+      if (stateFile.lastModified() < limit) {
+        delete(StringUtils.removeEnd(stateFile.getName(), STATE_EXTENSION));
+        deleted++;
+      }
+    }
+    // part files whose state could not be written
+    File[] partFiles = stagingDir.listFiles((dir, name) -> name.endsWith(PART_EXTENSION));
+    for (File partFile : partFiles != null ? partFiles : new File[0]) {
+      String uploadId = StringUtils.removeEnd(partFile.getName(), PART_EXTENSION);
+      if (partFile.lastModified() < limit && !getStateFile(uploadId).exists()) {
+        AttachmentUploader.deleteTempFile(partFile);
+      }
+    }
+    if (deleted > 0) {
+      log.info("Deleted {} abandoned uploads from {}", deleted, stagingDir);
+    }
+    return deleted;
+  }
+
+  private ChunkedUpload loadUpload(String uploadId) {
+    File stateFile = getStateFile(uploadId);
+    if (!stateFile.exists() || !getPartFile(uploadId).exists()) {
+      return null;
+    }
+    try {
+      return ChunkedUpload.load(stateFile);
+    } catch (IOException e) {
+      log.warn("The state of upload {} cannot be read", uploadId, e);
+      return null;
+    }
+  }
+
+  private void delete(String uploadId) {
+    uploads.remove(uploadId);
+    AttachmentUploader.deleteTempFile(getPartFile(uploadId));
+    AttachmentUploader.deleteTempFile(getStateFile(uploadId));
+  }
+
+  private File getPartFile(String uploadId) {
+    return new File(stagingDir, uploadId + PART_EXTENSION);
+  }
+
+  private File getStateFile(String uploadId) {
+    return new File(stagingDir, uploadId + STATE_EXTENSION);
+  }
+
+  private static void truncate(File file, long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(size);
+    }
+  }
+
+  private static String checksum(File file) throws IOException {
+    MessageDigest digest = AttachmentUploader.newDigest();
+    try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+      byte[] buffer = new byte[AttachmentUploader.BUFFER_SIZE];
+      while (in.read(buffer) != -1) {
+        // the digest is updated while reading
+      }
+    }
+    return Hex.encodeHexString(digest.digest());
+  }
+}
@@ -0,0 +1,179 @@
+package com.etendoerp.copilot.openapi.purchase.context;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.model.common.enterprise.Warehouse;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Cache of the context returned by getContext: the legal entity, the warehouse and the organization of a session.
+ * <p>
+ * Entries are keyed by the user, role, organization and warehouse of the session, in a bounded LRU map whose size and
+ * time to live are read from copilot.purchase.context.cache.size (0 disables it) and
+ * copilot.purchase.context.cache.ttlSeconds. The legal entity of every organization is memoized separately, per
+ * client organization tree, so the sessions of different users in the same organization resolve it once.
+ * {@link ContextCacheObserver} clears both when the organization tree changes through the DAL; the time to live
+ * bounds how long a change made by a database process can go unnoticed.
+ */
+@ApplicationScoped
+public class ContextCache {
+
+  public static final String SIZE_PROPERTY = "copilot.purchase.context.cache.size";
+  public static final String TTL_PROPERTY = "copilot.purchase.context.cache.ttlSeconds";
+  private static final int DEFAULT_SIZE = 1000;
+  private static final long DEFAULT_TTL_SECONDS = 600;
+
+  private final int maxSize = PurchaseConfig.getInt(SIZE_PROPERTY, DEFAULT_SIZE);
+  private final long ttlMillis = PurchaseConfig.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS) * 1000;
+  private final AtomicLong generation = new AtomicLong();
+  private final Map<String, CacheEntry<String>> legalEntities = new ConcurrentHashMap<>();
+  private final Map<String, CacheEntry<SessionContext>> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<SessionContext>> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * @return true if the cache is enabled.
+   */
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns the context of a session, resolving it when it is not cached.
+   *
+   * @param obContext
+   *     the context of the session.
+   * @return the context.
+   * @throws OBException
+   *     if the session has no warehouse or its organization has no legal entity.
+   */
+  public SessionContext get(OBContext obContext) {
+    Organization org = obContext.getCurrentOrganization();
+    Warehouse warehouse = obContext.getWarehouse();
+    if (warehouse == null) {
+      throw new OBException("Warehouse not found");
+    }
+    String key = String.join("|", obContext.getUser().getId(), obContext.getRole().getId(), org.getId(),
+        warehouse.getId());
+    if (isEnabled()) {
+      synchronized (entries) {
+        CacheEntry<SessionContext> cached = entries.get(key);
+        if (cached != null && !cached.isExpired()) {
+          return cached.value;
+        }
+      }
+    }
+
+    long loadGeneration = generation.get();
+    SessionContext context = new SessionContext(getLegalEntityId(obContext, loadGeneration), warehouse.getId(),
+        org.getId());
+    if (isEnabled()) {
+      synchronized (entries) {
+        // contexts resolved while the organization tree changed could be stale, they are not kept
+        if (loadGeneration == generation.get()) {
+          entries.put(key, new CacheEntry<>(context, System.currentTimeMillis() + ttlMillis));
+        }
+      }
+    }
+    return context;
+  }
+
+  /**
+   * Removes all the cached contexts and legal entities.
+   */
+  public void invalidate() {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.clear();
+      legalEntities.clear();
+    }
+  }
+
+  private String getLegalEntityId(OBContext obContext, long loadGeneration) {
+    String clientId = obContext.getCurrentClient().getId();
+    Organization org = obContext.getCurrentOrganization();
+    String key = clientId + "|" + org.getId();
+    CacheEntry<String> cached = legalEntities.get(key);
+    if (cached != null && !cached.isExpired()) {
+      return cached.value;
+    }
+    Organization legalEntity = obContext.getOrganizationStructureProvider(clientId).getLegalEntity(org);
+    if (legalEntity == null) {
+      throw new OBException("Legal Entity not found");
+    }
+    synchronized (entries) {
+      if (loadGeneration == generation.get()) {
+        legalEntities.put(key, new CacheEntry<>(legalEntity.getId(), System.currentTimeMillis() + ttlMillis));
+      }
+    }
+    return legalEntity.getId();
+  }
+
+  private static class CacheEntry<T> {
+    private final T value;
+    private final long expiresAt;
+
+    private CacheEntry(T value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired() {
+      return expiresAt < System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * The cached part of the context of a session, everything but the current date.
+   */
+  public static class SessionContext {
+    private final String legalEntityId;
+    private final String warehouseId;
+    private final String organizationId;
+    private final String eTagPrefix;
+
+    private SessionContext(String legalEntityId, String warehouseId, String organizationId) {
+      this.legalEntityId = legalEntityId;
+      this.warehouseId = warehouseId;
+      this.organizationId = organizationId;
+      String value = String.join("|", legalEntityId, warehouseId, organizationId);
+      this.eTagPrefix = "W/\"" + Integer.toHexString(value.hashCode()) + "-" + Integer.toHexString(value.length());
+    }
+
+    public String getLegalEntityId() {
+      return legalEntityId;
+    }
+
+    public String getWarehouseId() {
+      return warehouseId;
+    }
+
+    public String getOrganizationId() {
+      return organizationId;
+    }
+
+    /**
+     * @return a weak entity tag of the context and the current day, so a client that already has the context can
+     *     keep using it while the tag does not change, and a response from a previous day is never reused.
+     */
+    public String getETag() {
+      return eTagPrefix + "-" + LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + "\"";
+    }
+  }
+}
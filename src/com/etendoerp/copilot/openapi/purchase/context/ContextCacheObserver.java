@@ -0,0 +1,86 @@
+package com.etendoerp.copilot.openapi.purchase.context;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang.StringUtils;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.ad.utility.TreeNode;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.model.common.enterprise.OrganizationType;
+
+/**
+ * Clears the {@link ContextCache} when the organization tree changes through the DAL: an organization or an
+ * organization type is created, updated or deleted, or a node of an organization tree is moved. These changes are
+ * rare, so the whole cache is cleared once the transaction is committed.
+ */
+public class ContextCacheObserver extends EntityPersistenceEventObserver {
+
+  private static final String ORGANIZATION_TREE = "OO";
+  private static final Entity[] entities = {
+      ModelProvider.getInstance().getEntity(Organization.ENTITY_NAME),
+      ModelProvider.getInstance().getEntity(OrganizationType.ENTITY_NAME),
+      ModelProvider.getInstance().getEntity(TreeNode.ENTITY_NAME) };
+
+  @Inject
+  private ContextCache contextCache;
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  public void onSave(@Observes EntityNewEvent event) {
+    if (!isValidEvent(event) || !isOrganizationTreeChange(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (!isValidEvent(event) || !isOrganizationTreeChange(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event) || !isOrganizationTreeChange(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  private static boolean isOrganizationTreeChange(EntityPersistenceEvent event) {
+    if (!(event.getTargetInstance() instanceof TreeNode)) {
+      return true;
+    }
+    TreeNode treeNode = (TreeNode) event.getTargetInstance();
+    return StringUtils.equals(ORGANIZATION_TREE, treeNode.getTree().getTypeArea());
+  }
+
+  private void invalidateAfterCommit() {
+    OBDal.getInstance().getSession().getTransaction().registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // the cache is cleared after the commit
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status == Status.STATUS_COMMITTED) {
+          contextCache.invalidate();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,145 @@
+package com.etendoerp.copilot.openapi.purchase.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Per-endpoint metrics of the Copilot purchase web services: request and error counts, a latency histogram, the SQL
+ * statements per request, the flushes and the number of results, exposed in the Prometheus text format.
+ * <p>
+ * Recording a request allocates only its {@link RequestRecorder}; the counters and histogram buckets of every
+ * endpoint are created the first time the endpoint is called and updated with LongAdders afterwards, so the metrics
+ * can stay enabled in production. They can be disabled with copilot.purchase.metrics.enabled=false.
+ */
+@ApplicationScoped
+public class EndpointMetrics {
+
+  public static final String ENABLED_PROPERTY = "copilot.purchase.metrics.enabled";
+  private static final String PREFIX = "copilot_purchase_";
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final Logger log = LogManager.getLogger();
+
+  private final boolean enabled = PurchaseConfig.getBoolean(ENABLED_PROPERTY, true);
+  private final Map<String, Map<String, EndpointStats>> endpointsByMethod = new ConcurrentHashMap<>();
+
+  /**
+   * @return true if the metrics are recorded.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts recording a request, counting the statements and flushes of the current DAL session from now on.
+   *
+   * @param method
+   *     the HTTP method of the request, or WEBHOOK for the webhooks.
+   * @param endpoint
+   *     the path of the endpoint or the name of the webhook. It must be one of a fixed set of names, never a value
+   *     sent by the client, to bound the number of series.
+   * @return the recorder of the request, to be finished when the request ends.
+   */
+  public RequestRecorder start(String method, String endpoint) {
+    if (!enabled) {
+      return new RequestRecorder(null);
+    }
+    RequestRecorder recorder = new RequestRecorder(getStats(method, endpoint));
+    try {
+      OBDal.getInstance().getSession().addEventListeners(recorder);
+    } catch (RuntimeException e) {
+      log.debug("The statements of {} {} are not counted", method, endpoint, e);
+    }
+    return recorder;
+  }
+
+  /**
+   * Finishes the recording of a request answered with a WSResult. The request is an error if it did not end with the
+   * OK status, and its results are the elements of the data when it is an array, or one when it is an object.
+   *
+   * @param recorder
+   *     the recorder of the request.
+   * @param wsResult
+   *     the result of the request, or null if it failed without one.
+   */
+  public static void finish(RequestRecorder recorder, WSResult wsResult) {
+    if (wsResult == null) {
+      recorder.finish(true, 0);
+      return;
+    }
+    Object data = wsResult.getData();
+    long results = 0;
+    if (data instanceof JSONArray) {
+      results = ((JSONArray) data).length();
+    } else if (data instanceof JSONObject) {
+      results = 1;
+    }
+    recorder.finish(wsResult.getStatus() != Status.OK, results);
+  }
+
+  /**
+   * @return the metrics of every endpoint called since startup, in the Prometheus text exposition format.
+   */
+  public String toPrometheus() {
+    List<EndpointStats> endpoints = new ArrayList<>();
+    for (Map<String, EndpointStats> byEndpoint : endpointsByMethod.values()) {
+      endpoints.addAll(byEndpoint.values());
+    }
+    StringBuilder out = new StringBuilder(4096);
+    writeCounter(out, endpoints, "requests_total", "Requests handled.", EndpointStats::getRequests);
+    writeCounter(out, endpoints, "request_errors_total", "Requests that failed.", EndpointStats::getErrors);
+    writeCounter(out, endpoints, "results_total", "Results returned.", EndpointStats::getResults);
+    writeCounter(out, endpoints, "flushes_total", "DAL session flushes.", EndpointStats::getFlushes);
+    writeHeader(out, "request_duration_seconds", "Latency of the requests.", "histogram");
+    for (EndpointStats stats : endpoints) {
+      stats.getLatency().write(out, PREFIX + "request_duration_seconds", stats.getLabels(), NANOS_PER_SECOND);
+    }
+    writeHeader(out, "sql_statements", "SQL statements executed per request.", "histogram");
+    for (EndpointStats stats : endpoints) {
+      stats.getStatements().write(out, PREFIX + "sql_statements", stats.getLabels(), 1);
+    }
+    return out.toString();
+  }
+
+  private EndpointStats getStats(String method, String endpoint) {
+    // plain gets first, so recording a request of a known endpoint does not allocate a lambda
+    Map<String, EndpointStats> byEndpoint = endpointsByMethod.get(method);
+    if (byEndpoint == null) {
+      byEndpoint = endpointsByMethod.computeIfAbsent(method, k -> new ConcurrentHashMap<>());
+    }
+    EndpointStats stats = byEndpoint.get(endpoint);
+    if (stats == null) {
+      stats = byEndpoint.computeIfAbsent(endpoint, k -> new EndpointStats(method, endpoint));
+    }
+    return stats;
+  }
+
+  private static void writeCounter(StringBuilder out, List<EndpointStats> endpoints, String name, String help,
+      ToLongFunction<EndpointStats> counter) {
+    writeHeader(out, name, help, "counter");
+    for (EndpointStats stats : endpoints) {
+      out.append(PREFIX).append(name).append('{').append(stats.getLabels()).append("} ")
+          .append(counter.applyAsLong(stats)).append('\n');
+    }
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+}
@@ -0,0 +1,74 @@
+package com.etendoerp.copilot.openapi.purchase.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one endpoint.
+ */
+class EndpointStats {
+
+  private static final long[] LATENCY_BOUNDS_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+  private static final long[] STATEMENT_BOUNDS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000 };
+
+  private final String method;
+  private final String endpoint;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder results = new LongAdder();
+  private final LongAdder flushes = new LongAdder();
+  private final Histogram latency = new Histogram(toNanos(LATENCY_BOUNDS_MILLIS));
+  private final Histogram statements = new Histogram(STATEMENT_BOUNDS);
+
+  EndpointStats(String method, String endpoint) {
+    this.method = method;
+    this.endpoint = endpoint;
+  }
+
+  void record(long elapsedNanos, boolean error, int statementCount, int flushCount, long resultCount) {
+    requests.increment();
+    if (error) {
+      errors.increment();
+    }
+    results.add(resultCount);
+    flushes.add(flushCount);
+    latency.observe(elapsedNanos);
+    statements.observe(statementCount);
+  }
+
+  String getLabels() {
+    return "method=\"" + method + "\",endpoint=\"" + endpoint + "\"";
+  }
+
+  long getRequests() {
+    return requests.sum();
+  }
+
+  long getErrors() {
+    return errors.sum();
+  }
+
+  long getResults() {
+    return results.sum();
+  }
+
+  long getFlushes() {
+    return flushes.sum();
+  }
+
+  Histogram getLatency() {
+    return latency;
+  }
+
+  Histogram getStatements() {
+    return statements;
+  }
+
+  private static long[] toNanos(long[] millis) {
+    long[] nanos = new long[millis.length];
+    for (int i = 0; i < millis.length; i++) {
+      nanos[i] = TimeUnit.MILLISECONDS.toNanos(millis[i]);
+    }
+    return nanos;
+  }
+}
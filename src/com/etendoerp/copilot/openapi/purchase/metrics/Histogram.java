@@ -0,0 +1,66 @@
+package com.etendoerp.copilot.openapi.purchase.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed bucket bounds, recorded without allocating: an observation only increments the counter of its
+ * bucket and the sum.
+ */
+class Histogram {
+
+  private final long[] bounds;
+  private final LongAdder[] buckets;
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * @param bounds
+   *     the inclusive upper bounds of the buckets, in ascending order. An extra bucket counts the values above the
+   *     last bound.
+   */
+  Histogram(long[] bounds) {
+    this.bounds = bounds;
+    this.buckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  void observe(long value) {
+    int bucket = 0;
+    while (bucket < bounds.length && value > bounds[bucket]) {
+      bucket++;
+    }
+    buckets[bucket].increment();
+    sum.add(value);
+  }
+
+  /**
+   * Writes the histogram in the Prometheus text format: one cumulative _bucket sample per bound plus +Inf, and the
+   * _sum and _count samples.
+   *
+   * @param out
+   *     where the samples are written.
+   * @param name
+   *     the name of the metric.
+   * @param labels
+   *     the labels of the samples, without braces.
+   * @param scale
+   *     the divisor applied to the bounds and the sum, to convert them to the unit of the metric.
+   */
+  void write(StringBuilder out, String name, String labels, double scale) {
+    long cumulative = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      cumulative += buckets[i].sum();
+      out.append(name).append("_bucket{").append(labels).append(",le=\"").append(format(bounds[i] / scale))
+          .append("\"} ").append(cumulative).append('\n');
+    }
+    cumulative += buckets[bounds.length].sum();
+    out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+    out.append(name).append("_sum{").append(labels).append("} ").append(format(sum.sum() / scale)).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+  }
+
+  private static String format(double value) {
+    return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+  }
+}
@@ -0,0 +1,64 @@
+package com.etendoerp.copilot.openapi.purchase.metrics;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Records one request of an endpoint: its latency and the SQL statements and flushes run by the DAL session of the
+ * request, counted by Hibernate session events. Statements run after the session is closed and reopened in the same
+ * request are not counted.
+ * <p>
+ * A recorder is used by a single thread, so its counters are plain fields.
+ */
+public class RequestRecorder extends BaseSessionEventListener {
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient EndpointStats stats;
+  private final long startNanos = System.nanoTime();
+  private int statements;
+  private int flushes;
+  private boolean finished;
+
+  RequestRecorder(EndpointStats stats) {
+    this.stats = stats;
+  }
+
+  @Override
+  public void jdbcExecuteStatementEnd() {
+    if (!finished) {
+      statements++;
+    }
+  }
+
+  @Override
+  public void jdbcExecuteBatchEnd() {
+    if (!finished) {
+      statements++;
+    }
+  }
+
+  @Override
+  public void flushEnd(int numberOfEntities, int numberOfCollections) {
+    if (!finished) {
+      flushes++;
+    }
+  }
+
+  /**
+   * Ends the request and records it. Only the first call is recorded.
+   *
+   * @param error
+   *     true if the request failed.
+   * @param results
+   *     the number of results returned by the request.
+   */
+  public void finish(boolean error, long results) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (stats != null) {
+      stats.record(System.nanoTime() - startNanos, error, statements, flushes, results);
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package com.etendoerp.copilot.openapi.purchase.pricing;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.weld.WeldUtils;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.erpCommon.businessUtility.PriceAdjustment;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.order.OrderLine;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.financialmgmt.tax.TaxRate;
+import org.openbravo.model.project.Project;
+
+import com.etendoerp.copilot.openapi.purchase.pricing.PriceListIndex.ProductPriceInfo;
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+
+/**
+ * Calculates the prices, discount and tax of the lines of one order.
+ * <p>
+ * The prices of all the products of the order are read from the {@link PriceListIndex} when the calculator is
+ * created, with a single query for the ones that are not in the index yet, and the tax is resolved once per product
+ * tax category and partner location, so recalculating a whole order does not run a price query and a tax lookup per
+ * line. The calculator only updates the lines in the session: the caller flushes once after all the lines are
+ * processed.
+ */
+public class OrderPriceCalculator {
+
+  private static final Logger log = LogManager.getLogger();
+
+  private final Order order;
+  private final Map<String, ProductPriceInfo> pricesByProduct;
+  private final Map<String, TaxRate> taxByCategory = new HashMap<>();
+
+  /**
+   * Creates a calculator for the given order, loading the prices of the given products.
+   *
+   * @param order
+   *     the order whose lines are calculated.
+   * @param products
+   *     the products of the lines to calculate, null ones are ignored.
+   */
+  public OrderPriceCalculator(Order order, Collection<Product> products) {
+    this.order = order;
+    Set<String> productIds = new LinkedHashSet<>();
+    for (Product product : products) {
+      if (product != null) {
+        productIds.add(product.getId());
+      }
+    }
+    PriceListIndex priceListIndex = WeldUtils.getInstanceFromStaticBeanManager(PriceListIndex.class);
+    this.pricesByProduct = priceListIndex.getPrices(order.getPriceList().getId(), productIds,
+        order.getOrderDate());
+  }
+
+  /**
+   * Creates a calculator for all the lines of the given order.
+   *
+   * @param order
+   *     the order whose lines are calculated.
+   * @return the calculator, with the prices of the products of every line already loaded.
+   */
+  public static OrderPriceCalculator forOrder(Order order) {
+    Set<Product> products = new LinkedHashSet<>();
+    for (OrderLine orderLine : order.getOrderLineList()) {
+      if (orderLine.getProduct() != null) {
+        products.add(orderLine.getProduct());
+      }
+    }
+    return new OrderPriceCalculator(order, products);
+  }
+
+  /**
+   * Recalculates the prices, discount and tax of an order line. Everything is computed before the line is modified,
+   * so the line is left untouched if the calculation fails. The line is not flushed.
+   *
+   * @param orderLine
+   *     the line to recalculate, it must belong to the order of the calculator.
+   * @throws OBException
+   *     if the line has no product.
+   * @throws ServletException
+   *     if there is an error resolving the tax.
+   * @throws IOException
+   *     if there is an error resolving the tax.
+   */
+  public void recalculate(OrderLine orderLine) throws ServletException, IOException {
+    Product product = orderLine.getProduct();
+    if (product == null) {
+      throw new OBException(String.format("Order line %s has no product", orderLine.getLineNo()));
+    }
+    LinePrices linePrices = calculatePrices(product, orderLine.getOrderedQuantity(),
+        orderLine.isCancelPriceAdjustment());
+    TaxRate tax = resolveTax(product);
+
+    if (linePrices.isPriceIncludesTax()) {
+      orderLine.setGrossUnitPrice(linePrices.getPriceActual());
+      orderLine.setGrossListPrice(linePrices.getGrossListPrice());
+      orderLine.setBaseGrossUnitPrice(linePrices.getGrossBaseUnitPrice());
+    } else {
+      orderLine.setListPrice(linePrices.getNetListPrice());
+      orderLine.setPriceLimit(linePrices.getPriceLimit());
+      orderLine.setStandardPrice(linePrices.getStandardPrice());
+      orderLine.setUnitPrice(linePrices.getPriceActual());
+    }
+    if (linePrices.getDiscount().compareTo(orderLine.getDiscount()) != 0) {
+      orderLine.setDiscount(linePrices.getDiscount());
+    }
+    log.debug("TaxRate: {}", tax.getName());
+    orderLine.setTax(tax);
+    OBDal.getInstance().save(orderLine);
+  }
+
+  /**
+   * Calculates the prices and discount of a product in the order, applying the price adjustments. Nothing is
+   * written to the database.
+   *
+   * @param product
+   *     the product, its prices must have been loaded by the calculator.
+   * @param orderedQuantity
+   *     the quantity ordered, used to select the price adjustments.
+   * @param cancelPriceAdjustment
+   *     true to skip the price adjustments.
+   * @return the calculated prices.
+   */
+  public LinePrices calculatePrices(Product product, BigDecimal orderedQuantity, boolean cancelPriceAdjustment) {
+    ProductPriceInfo productPrice = pricesByProduct.get(product.getId());
+    BigDecimal priceList = productPrice != null ? productPrice.getListPrice() : BigDecimal.ZERO;
+    BigDecimal priceStd = productPrice != null ? productPrice.getStandardPrice() : BigDecimal.ZERO;
+    BigDecimal priceLimit = productPrice != null ? productPrice.getPriceLimit() : BigDecimal.ZERO;
+    boolean isTaxIncludedPriceList = order.getPriceList().isPriceIncludesTax();
+
+    BigDecimal netPriceList = priceList;
+    BigDecimal grossPriceList = priceList;
+    BigDecimal grossBaseUnitPrice = priceStd;
+    BigDecimal priceActual;
+    if (!cancelPriceAdjustment) {
+      if (isTaxIncludedPriceList) {
+        priceActual = PriceAdjustment.calculatePriceActual(order, product, orderedQuantity, grossBaseUnitPrice);
+        netPriceList = BigDecimal.ZERO;
+      } else {
+        priceActual = PriceAdjustment.calculatePriceActual(order, product, orderedQuantity, priceStd);
+        grossPriceList = BigDecimal.ZERO;
+      }
+    } else {
+      priceActual = isTaxIncludedPriceList ? grossBaseUnitPrice : priceList;
+    }
+
+    BigDecimal discount = BigDecimal.ZERO;
+    BigDecimal price = isTaxIncludedPriceList ? grossPriceList : netPriceList;
+    if (!BigDecimal.ZERO.equals(price)) {
+      int precision = order.getCurrency().getPricePrecision().intValue();
+      discount = price.subtract(priceActual).multiply(BigDecimal.valueOf(100)).divide(price, precision,
+          RoundingMode.HALF_UP);
+    }
+    return new LinePrices(isTaxIncludedPriceList, productPrice != null, netPriceList, grossPriceList,
+        grossBaseUnitPrice, priceStd, priceLimit, priceActual, discount);
+  }
+
+  /**
+   * Resolves the tax of a product in the order. The tax only depends on the tax category of the product for a given
+   * order, so it is looked up once per tax category and partner location, through the {@link TaxResolutionCache}
+   * shared by all the orders.
+   *
+   * @param product
+   *     the product.
+   * @return the tax rate to apply.
+   * @throws ServletException
+   *     if there is an error resolving the tax.
+   * @throws IOException
+   *     if there is an error resolving the tax.
+   */
+  public TaxRate resolveTax(Product product) throws ServletException, IOException {
+    String locationId = order.getPartnerAddress().getId();
+    String key = product.getTaxCategory().getId() + "|" + locationId;
+    TaxRate tax = taxByCategory.get(key);
+    if (tax != null) {
+      return tax;
+    }
+    Project project = order.getProject();
+    TaxResolutionCache taxResolutionCache = WeldUtils.getInstanceFromStaticBeanManager(TaxResolutionCache.class);
+    String strCTaxID = taxResolutionCache.getTaxId(product.getId(), product.getTaxCategory().getId(),
+        order.getOrderDate(), order.getOrganization().getId(), order.getWarehouse().getId(), locationId,
+        project != null ? project.getId() : null, order.isSalesTransaction());
+    if (StringUtils.isEmpty(strCTaxID)) {
+      throw new OBException(String.format("No tax found for product %s", product.getIdentifier()));
+    }
+    tax = ReadReplicaRouter.get(TaxRate.class, strCTaxID);
+    taxByCategory.put(key, tax);
+    return tax;
+  }
+
+  /**
+   * Prices and discount calculated for a line.
+   */
+  public static class LinePrices {
+    private final boolean priceIncludesTax;
+    private final boolean priceFound;
+    private final BigDecimal netListPrice;
+    private final BigDecimal grossListPrice;
+    private final BigDecimal grossBaseUnitPrice;
+    private final BigDecimal standardPrice;
+    private final BigDecimal priceLimit;
+    private final BigDecimal priceActual;
+    private final BigDecimal discount;
+
+    private LinePrices(boolean priceIncludesTax, boolean priceFound, BigDecimal netListPrice,
+        BigDecimal grossListPrice, BigDecimal grossBaseUnitPrice, BigDecimal standardPrice, BigDecimal priceLimit,
+        BigDecimal priceActual, BigDecimal discount) {
+      this.priceIncludesTax = priceIncludesTax;
+      this.priceFound = priceFound;
+      this.netListPrice = netListPrice;
+      this.grossListPrice = grossListPrice;
+      this.grossBaseUnitPrice = grossBaseUnitPrice;
+      this.standardPrice = standardPrice;
+      this.priceLimit = priceLimit;
+      this.priceActual = priceActual;
+      this.discount = discount;
+    }
+
+    /**
+     * @return true if the price list of the order includes taxes, so the gross prices apply.
+     */
+    public boolean isPriceIncludesTax() {
+      return priceIncludesTax;
+    }
+
+    /**
+     * @return true if the product has a price in the price list of the order, otherwise the prices are zero.
+     */
+    public boolean isPriceFound() {
+      return priceFound;
+    }
+
+    public BigDecimal getNetListPrice() {
+      return netListPrice;
+    }
+
+    public BigDecimal getGrossListPrice() {
+      return grossListPrice;
+    }
+
+    public BigDecimal getGrossBaseUnitPrice() {
+      return grossBaseUnitPrice;
+    }
+
+    public BigDecimal getStandardPrice() {
+      return standardPrice;
+    }
+
+    public BigDecimal getPriceLimit() {
+      return priceLimit;
+    }
+
+    /**
+     * @return the unit price after the price adjustments.
+     */
+    public BigDecimal getPriceActual() {
+      return priceActual;
+    }
+
+    public BigDecimal getDiscount() {
+      return discount;
+    }
+  }
+}
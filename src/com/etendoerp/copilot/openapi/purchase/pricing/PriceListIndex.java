@@ -0,0 +1,318 @@
+package com.etendoerp.copilot.openapi.purchase.pricing;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * In-memory index of the product prices of the price lists, keyed by price list and product.
+ * <p>
+ * Every entry holds the active versions of the price list that price the product, sorted by their valid from date,
+ * so the price in force on a date is found with a binary search. Entries are loaded on demand: a cold entry is read
+ * with the same HQL the prices were always read with, and kept for the next lookups. {@link PriceListIndexObserver}
+ * evicts the entries affected by the changes in product prices, price list versions and price lists, so they are
+ * reloaded on their next use. It only sees the changes made through the DAL of this JVM, so every entry also expires
+ * after a time to live, bounding how long the prices written by database processes, direct SQL or other nodes of a
+ * cluster are served stale.
+ * <p>
+ * The maximum number of entries and their time to live are read from Openbravo.properties
+ * (copilot.purchase.pricelist.index.size and copilot.purchase.pricelist.index.ttlSeconds). A size of 0 disables the
+ * index, and every lookup runs the HQL.
+ */
+@ApplicationScoped
+public class PriceListIndex {
+
+  public static final String SIZE_PROPERTY = "copilot.purchase.pricelist.index.size";
+  public static final String TTL_PROPERTY = "copilot.purchase.pricelist.index.ttlSeconds";
+  private static final int DEFAULT_SIZE = 50000;
+  private static final long DEFAULT_TTL_SECONDS = 300;
+  private static final Logger log = LogManager.getLogger();
+  private static final String KEY_SEPARATOR = "|";
+
+  //@formatter:off
+  private static final String PRICES_HQL = new StringBuilder()
+      .append("select pp.product.id, pp.id, plv.validFromDate, pp.listPrice, pp.standardPrice, pp.priceLimit ")
+      .append(" from PricingProductPrice as pp ")
+      .append(" join pp.priceListVersion as plv ")
+      .append(" join plv.priceList as pl ")
+      .append(" where pp.product.id in (:productIds) ")
+      .append(" and pl.id = :pricelistId ")
+      .append(" and pl.active = true ")
+      .append(" and pp.active = true ")
+      .append(" and plv.active = true ")
+      .append(" order by pp.product.id, plv.validFromDate, pp.id")
+      .toString();
+  //@formatter:on
+
+  private final int maxSize = PurchaseConfig.getInt(SIZE_PROPERTY, DEFAULT_SIZE);
+  private final long ttlMillis = PurchaseConfig.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS) * 1000;
+  private final AtomicLong generation = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final Map<String, PriceVersions> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PriceVersions> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * @return true if the index is enabled.
+   */
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns the price of a product in a price list on a date.
+   *
+   * @param priceListId
+   *     the ID of the price list.
+   * @param productId
+   *     the ID of the product.
+   * @param date
+   *     the date the price must be valid on.
+   * @return the price, or null if the product is not priced in the price list on that date.
+   */
+  public ProductPriceInfo getPrice(String priceListId, String productId, Date date) {
+    return getPrices(priceListId, Arrays.asList(productId), date).get(productId);
+  }
+
+  /**
+   * Returns the prices of several products in a price list on a date. The cold entries are loaded with a single
+   * query.
+   *
+   * @param priceListId
+   *     the ID of the price list.
+   * @param productIds
+   *     the IDs of the products.
+   * @param date
+   *     the date the prices must be valid on.
+   * @return the prices by product ID, without the products that are not priced in the price list on that date.
+   */
+  public Map<String, ProductPriceInfo> getPrices(String priceListId, Collection<String> productIds, Date date) {
+    Map<String, ProductPriceInfo> prices = new HashMap<>();
+    Set<String> coldProductIds = new LinkedHashSet<>();
+    if (isEnabled()) {
+      long now = System.currentTimeMillis();
+      synchronized (entries) {
+        for (String productId : productIds) {
+          String key = priceListId + KEY_SEPARATOR + productId;
+          PriceVersions versions = entries.get(key);
+          if (versions != null && versions.expiresAt < now) {
+            entries.remove(key);
+            versions = null;
+          }
+          if (versions == null) {
+            coldProductIds.add(productId);
+          } else {
+            putIfPriced(prices, productId, versions.find(date));
+          }
+        }
+      }
+      hits.add((long) productIds.size() - coldProductIds.size());
+      misses.add(coldProductIds.size());
+    } else {
+      coldProductIds.addAll(productIds);
+    }
+    if (coldProductIds.isEmpty()) {
+      return prices;
+    }
+
+    long loadGeneration = generation.get();
+    Map<String, PriceVersions> loaded = load(priceListId, coldProductIds, System.currentTimeMillis() + ttlMillis);
+    for (Map.Entry<String, PriceVersions> entry : loaded.entrySet()) {
+      putIfPriced(prices, entry.getKey(), entry.getValue().find(date));
+    }
+    if (isEnabled()) {
+      synchronized (entries) {
+        // entries read while a price changed could be stale, they are not kept
+        if (loadGeneration == generation.get()) {
+          for (Map.Entry<String, PriceVersions> entry : loaded.entrySet()) {
+            entries.put(priceListId + KEY_SEPARATOR + entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    }
+    return prices;
+  }
+
+  /**
+   * Evicts the entry of a product in a price list.
+   *
+   * @param priceListId
+   *     the ID of the price list.
+   * @param productId
+   *     the ID of the product.
+   */
+  public void invalidate(String priceListId, String productId) {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.remove(priceListId + KEY_SEPARATOR + productId);
+    }
+  }
+
+  /**
+   * Evicts all the entries of a price list.
+   *
+   * @param priceListId
+   *     the ID of the price list.
+   */
+  public void invalidatePriceList(String priceListId) {
+    String prefix = priceListId + KEY_SEPARATOR;
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+  }
+
+  /**
+   * Builds a summary of the usage of the index, to help sizing it.
+   *
+   * @return a JSONObject with the size and the hit and miss counters.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject getStats() throws JSONException {
+    JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("maxSize", maxSize);
+    stats.put("ttlSeconds", ttlMillis / 1000);
+    synchronized (entries) {
+      stats.put("size", entries.size());
+    }
+    stats.put("hits", hits.sum());
+    stats.put("misses", misses.sum());
+    return stats;
+  }
+
+  private static void putIfPriced(Map<String, ProductPriceInfo> prices, String productId, ProductPriceInfo price) {
+    if (price != null) {
+      prices.put(productId, price);
+    }
+  }
+
+  private Map<String, PriceVersions> load(String priceListId, Set<String> productIds, long expiresAt) {
+    List<Object[]> rows;
+    try {
+      OBContext.setAdminMode(true);
+      rows = OBDal.getInstance().getSession().createQuery(PRICES_HQL, Object[].class)
+          .setParameterList("productIds", productIds)
+          .setParameter("pricelistId", priceListId)
+          .list();
+    } finally {
+      OBContext.restorePreviousMode();
+    }
+    Map<String, List<Object[]>> rowsByProduct = new HashMap<>();
+    for (Object[] row : rows) {
+      rowsByProduct.computeIfAbsent((String) row[0], k -> new ArrayList<>()).add(row);
+    }
+    // products without prices are kept as empty entries, so they are not queried again
+    Map<String, PriceVersions> loaded = new HashMap<>();
+    for (String productId : productIds) {
+      loaded.put(productId, new PriceVersions(rowsByProduct.getOrDefault(productId, new ArrayList<>()), expiresAt));
+    }
+    log.debug("Loaded the prices of {} products of price list {}", productIds.size(), priceListId);
+    return loaded;
+  }
+
+  /**
+   * The prices of a product in the versions of a price list, sorted by valid from date.
+   */
+  private static class PriceVersions {
+    private final long[] validFrom;
+    private final ProductPriceInfo[] prices;
+    private final long expiresAt;
+
+    private PriceVersions(List<Object[]> rows, long expiresAt) {
+      this.expiresAt = expiresAt;
+      validFrom = new long[rows.size()];
+      prices = new ProductPriceInfo[rows.size()];
+      for (int i = 0; i < rows.size(); i++) {
+        Object[] row = rows.get(i);
+        validFrom[i] = ((Date) row[2]).getTime();
+        prices[i] = new ProductPriceInfo((String) row[1], (BigDecimal) row[3], (BigDecimal) row[4],
+            (BigDecimal) row[5]);
+      }
+    }
+
+    /**
+     * @return the price of the latest version valid on the date, or null if no version is valid on the date.
+     */
+    private ProductPriceInfo find(Date date) {
+      long time = date.getTime();
+      int low = 0;
+      int high = validFrom.length - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (validFrom[mid] <= time) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return found < 0 ? null : prices[found];
+    }
+  }
+
+  /**
+   * The price of a product in a price list version.
+   */
+  public static class ProductPriceInfo {
+    private final String productPriceId;
+    private final BigDecimal listPrice;
+    private final BigDecimal standardPrice;
+    private final BigDecimal priceLimit;
+
+    ProductPriceInfo(String productPriceId, BigDecimal listPrice, BigDecimal standardPrice, BigDecimal priceLimit) {
+      this.productPriceId = productPriceId;
+      this.listPrice = listPrice;
+      this.standardPrice = standardPrice;
+      this.priceLimit = priceLimit;
+    }
+
+    /**
+     * @return the ID of the PricingProductPrice record.
+     */
+    public String getProductPriceId() {
+      return productPriceId;
+    }
+
+    public BigDecimal getListPrice() {
+      return listPrice;
+    }
+
+    public BigDecimal getStandardPrice() {
+      return standardPrice;
+    }
+
+    public BigDecimal getPriceLimit() {
+      return priceLimit;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.etendoerp.copilot.openapi.purchase.pricing;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.model.Property;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.pricing.pricelist.PriceList;
+import org.openbravo.model.pricing.pricelist.PriceListVersion;
+import org.openbravo.model.pricing.pricelist.ProductPrice;
+
+/**
+ * Evicts the entries of the {@link PriceListIndex} affected by the changes made through the DAL on product prices,
+ * price list versions and price lists. Updates evict the entries of both the previous and the new values of the
+ * references, so moving a product price to another version or product is handled too. The entries are evicted once
+ * the transaction is committed, so they are not reloaded with the previous prices.
+ */
+public class PriceListIndexObserver extends EntityPersistenceEventObserver {
+
+  private static final Entity productPriceEntity = ModelProvider.getInstance().getEntity(ProductPrice.ENTITY_NAME);
+  private static final Entity priceListVersionEntity = ModelProvider.getInstance()
+      .getEntity(PriceListVersion.ENTITY_NAME);
+  private static final Entity priceListEntity = ModelProvider.getInstance().getEntity(PriceList.ENTITY_NAME);
+  private static final Entity[] entities = { productPriceEntity, priceListVersionEntity, priceListEntity };
+  private static final Property productPriceVersionProperty = productPriceEntity.getProperty(
+      ProductPrice.PROPERTY_PRICELISTVERSION);
+  private static final Property productPriceProductProperty = productPriceEntity.getProperty(
+      ProductPrice.PROPERTY_PRODUCT);
+  private static final Property versionPriceListProperty = priceListVersionEntity.getProperty(
+      PriceListVersion.PROPERTY_PRICELIST);
+
+  @Inject
+  private PriceListIndex priceListIndex;
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  public void onSave(@Observes EntityNewEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit(event, false);
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit(event, true);
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit(event, false);
+  }
+
+  private void invalidateAfterCommit(EntityPersistenceEvent event, boolean update) {
+    Set<String> priceListIds = new HashSet<>();
+    List<String[]> productKeys = new ArrayList<>();
+    Entity entity = event.getTargetInstance().getEntity();
+    if (entity == productPriceEntity) {
+      addProductKey(productKeys, (PriceListVersion) event.getCurrentState(productPriceVersionProperty),
+          (Product) event.getCurrentState(productPriceProductProperty));
+      if (update) {
+        EntityUpdateEvent updateEvent = (EntityUpdateEvent) event;
+        addProductKey(productKeys, (PriceListVersion) updateEvent.getPreviousState(productPriceVersionProperty),
+            (Product) updateEvent.getPreviousState(productPriceProductProperty));
+      }
+    } else if (entity == priceListVersionEntity) {
+      addPriceList(priceListIds, (PriceList) event.getCurrentState(versionPriceListProperty));
+      if (update) {
+        addPriceList(priceListIds,
+            (PriceList) ((EntityUpdateEvent) event).getPreviousState(versionPriceListProperty));
+      }
+    } else {
+      priceListIds.add((String) event.getTargetInstance().getId());
+    }
+
+    OBDal.getInstance().getSession().getTransaction().registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // entries are evicted after the commit
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status != Status.STATUS_COMMITTED) {
+          return;
+        }
+        for (String priceListId : priceListIds) {
+          priceListIndex.invalidatePriceList(priceListId);
+        }
+        for (String[] productKey : productKeys) {
+          priceListIndex.invalidate(productKey[0], productKey[1]);
+        }
+      }
+    });
+  }
+
+  private static void addProductKey(List<String[]> productKeys, PriceListVersion version, Product product) {
+    if (version != null && product != null) {
+      productKeys.add(new String[] { version.getPriceList().getId(), product.getId() });
+    }
+  }
+
+  private static void addPriceList(Set<String> priceListIds, PriceList priceList) {
+    if (priceList != null) {
+      priceListIds.add(priceList.getId());
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package com.etendoerp.copilot.openapi.purchase.pricing;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.servlet.ServletException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.erpCommon.businessUtility.Tax;
+import org.openbravo.service.db.DalConnectionProvider;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Bounded cache of the taxes resolved by {@link Tax#get}, with a time to live per entry.
+ * <p>
+ * The tax of a line only depends on the tax category of its product, not on the product itself, so entries are
+ * keyed by the tax category, date, organization, warehouse, partner location, project and transaction type, and
+ * are shared by all the products of the same category in every order. {@link TaxResolutionCacheObserver} clears the
+ * cache when tax rates or tax categories change.
+ * <p>
+ * The size and time to live are read from Openbravo.properties (copilot.purchase.tax.cache.size and
+ * copilot.purchase.tax.cache.ttlSeconds). A size of 0 disables the cache. The hit ratio and the time saved by the
+ * hits are logged at debug level and returned by {@link #getStats()}.
+ */
+@ApplicationScoped
+public class TaxResolutionCache {
+
+  public static final String SIZE_PROPERTY = "copilot.purchase.tax.cache.size";
+  public static final String TTL_PROPERTY = "copilot.purchase.tax.cache.ttlSeconds";
+  private static final int DEFAULT_SIZE = 5000;
+  private static final long DEFAULT_TTL_SECONDS = 600;
+  private static final Logger log = LogManager.getLogger();
+
+  private final int maxSize = PurchaseConfig.getInt(SIZE_PROPERTY, DEFAULT_SIZE);
+  private final long ttlMillis = PurchaseConfig.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS) * 1000;
+  private final AtomicLong generation = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder missNanos = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+  private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * @return true if the cache is enabled.
+   */
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns the ID of the tax to apply to a product, resolving it with {@link Tax#get} when it is not cached.
+   *
+   * @param productId
+   *     the product, only used to resolve the tax on a cache miss.
+   * @param taxCategoryId
+   *     the tax category of the product.
+   * @param date
+   *     the date of the document.
+   * @param orgId
+   *     the organization of the document.
+   * @param warehouseId
+   *     the warehouse of the document.
+   * @param locationId
+   *     the partner location of the document, used as both the shipping and the invoicing location.
+   * @param projectId
+   *     the project of the document, or null.
+   * @param isSOTrx
+   *     true for sales documents.
+   * @return the ID of the tax, or an empty string if no tax applies.
+   * @throws ServletException
+   *     if there is an error resolving the tax.
+   * @throws IOException
+   *     if there is an error resolving the tax.
+   */
+  public String getTaxId(String productId, String taxCategoryId, Date date, String orgId, String warehouseId,
+      String locationId, String projectId, boolean isSOTrx) throws ServletException, IOException {
+    String key = String.join("|", taxCategoryId, String.valueOf(date.getTime()), orgId, warehouseId, locationId,
+        String.valueOf(projectId), String.valueOf(isSOTrx));
+    if (isEnabled()) {
+      CacheEntry entry;
+      synchronized (entries) {
+        entry = entries.get(key);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+          entries.remove(key);
+          entry = null;
+        }
+      }
+      if (entry != null) {
+        hits.increment();
+        logUsage(true);
+        return entry.taxId;
+      }
+    }
+
+    long loadGeneration = generation.get();
+    long start = System.nanoTime();
+    // Tax.get expects the date in the java date format of the instance
+    String dateFormat = OBPropertiesProvider.getInstance().getOpenbravoProperties().getProperty("dateFormat.java");
+    String strDate = new SimpleDateFormat(dateFormat).format(date);
+    String taxId = Tax.get(new DalConnectionProvider(false), productId, strDate, orgId, warehouseId, locationId,
+        locationId, projectId, isSOTrx);
+    missNanos.add(System.nanoTime() - start);
+    misses.increment();
+    logUsage(false);
+
+    if (isEnabled()) {
+      CacheEntry entry = new CacheEntry(taxId, System.currentTimeMillis() + ttlMillis);
+      synchronized (entries) {
+        // taxes resolved while the tax configuration changed could be stale, they are not kept
+        if (loadGeneration == generation.get()) {
+          entries.put(key, entry);
+        }
+      }
+    }
+    return taxId;
+  }
+
+  /**
+   * Removes all the cached taxes.
+   */
+  public void invalidate() {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.clear();
+    }
+    invalidations.increment();
+  }
+
+  /**
+   * Builds a summary of the usage of the cache, to help sizing it.
+   *
+   * @return a JSONObject with the hit, miss and invalidation counters and the time saved by the hits.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject getStats() throws JSONException {
+    JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("maxSize", maxSize);
+    stats.put("ttlSeconds", ttlMillis / 1000);
+    synchronized (entries) {
+      stats.put("size", entries.size());
+    }
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("hitRatio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+    stats.put("avgResolutionMillis", getAverageMissNanos() / 1_000_000d);
+    stats.put("savedMillis", hitCount * getAverageMissNanos() / 1_000_000d);
+    stats.put("invalidations", invalidations.sum());
+    return stats;
+  }
+
+  private double getAverageMissNanos() {
+    long missCount = misses.sum();
+    return missCount == 0 ? 0 : (double) missNanos.sum() / missCount;
+  }
+
+  private void logUsage(boolean hit) {
+    if (!log.isDebugEnabled()) {
+      return;
+    }
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    log.debug("Tax resolution cache {}: {} hits, {} misses, hit ratio {}, approximately {} ms saved",
+        hit ? "hit" : "miss", hitCount, missCount, String.format("%.2f", (double) hitCount / (hitCount + missCount)),
+        Math.round(hitCount * getAverageMissNanos() / 1_000_000d));
+  }
+
+  private static class CacheEntry {
+    private final String taxId;
+    private final long expiresAt;
+
+    private CacheEntry(String taxId, long expiresAt) {
+      this.taxId = taxId;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
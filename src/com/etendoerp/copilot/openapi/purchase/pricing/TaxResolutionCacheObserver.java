@@ -0,0 +1,72 @@
+package com.etendoerp.copilot.openapi.purchase.pricing;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.financialmgmt.tax.TaxCategory;
+import org.openbravo.model.financialmgmt.tax.TaxRate;
+
+/**
+ * Clears the {@link TaxResolutionCache} when tax rates or tax categories are changed through the DAL. Tax changes
+ * are rare, so the whole cache is cleared once the transaction is committed.
+ */
+public class TaxResolutionCacheObserver extends EntityPersistenceEventObserver {
+
+  private static final Entity[] entities = {
+      ModelProvider.getInstance().getEntity(TaxRate.ENTITY_NAME),
+      ModelProvider.getInstance().getEntity(TaxCategory.ENTITY_NAME) };
+
+  @Inject
+  private TaxResolutionCache taxResolutionCache;
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    return entities;
+  }
+
+  public void onSave(@Observes EntityNewEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    invalidateAfterCommit();
+  }
+
+  private void invalidateAfterCommit() {
+    OBDal.getInstance().getSession().getTransaction().registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // the cache is cleared after the commit
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status == Status.STATUS_COMMITTED) {
+          taxResolutionCache.invalidate();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,225 @@
+package com.etendoerp.copilot.openapi.purchase.replica;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.servlet.http.HttpServletRequest;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.Transaction;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.client.kernel.RequestContext;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Routes the reads of the read-only endpoints to the read-only DAL pool, {@link OBDal#getReadOnlyInstance()}, so the
+ * searches of the agents do not compete with the writes on the primary database. It is disabled by default and
+ * enabled with copilot.purchase.readReplica.enabled=true; without a read-only pool configured in
+ * Openbravo.properties the read-only instance is the primary one.
+ * <p>
+ * A replica can lag behind the primary, so a conversation that has just written reads from the primary for
+ * copilot.purchase.readReplica.stickySeconds after its last write: the records it created are then always found.
+ * Every DAL write is recorded by {@link ReadReplicaWriteObserver}, whether it comes from this module, obRest or any
+ * other service, under the user and, when the request sends the X-Conversation-Id header, under the conversation
+ * too. A read sticks to the primary if either its user or its conversation has written recently. Besides,
+ * {@link #get(Class, String)} falls back to the primary when a record is not found in the replica.
+ * <p>
+ * The web service enters the conversation of every request with {@link #enterConversation(HttpServletRequest)} and
+ * opens a {@link ReadScope} around the reads to route, which use {@link #getReadDal()} instead of
+ * {@link OBDal#getInstance()}.
+ */
+@ApplicationScoped
+public class ReadReplicaRouter {
+
+  public static final String ENABLED_PROPERTY = "copilot.purchase.readReplica.enabled";
+  public static final String STICKY_SECONDS_PROPERTY = "copilot.purchase.readReplica.stickySeconds";
+  public static final String CONVERSATION_HEADER = "X-Conversation-Id";
+  private static final String CONVERSATION_KEY_PREFIX = "conversation:";
+  private static final String USER_KEY_PREFIX = "user:";
+  private static final long DEFAULT_STICKY_SECONDS = 60;
+  private static final int MAX_CONVERSATIONS = 10000;
+  private static final ThreadLocal<String> conversation = new ThreadLocal<>();
+  private static final ThreadLocal<Boolean> routed = new ThreadLocal<>();
+  private static final ThreadLocal<Transaction> pendingTransaction = new ThreadLocal<>();
+
+  private final boolean enabled = PurchaseConfig.getBoolean(ENABLED_PROPERTY, false);
+  private final long stickyMillis = PurchaseConfig.getLong(STICKY_SECONDS_PROPERTY, DEFAULT_STICKY_SECONDS) * 1000;
+  private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+
+  /**
+   * @return true if the reads of the read-only endpoints are routed to the read-only pool.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets the conversation of the request handled by the current thread, until {@link #leaveConversation()}.
+   *
+   * @param request
+   *     the HTTP request.
+   */
+  public void enterConversation(HttpServletRequest request) {
+    String conversationId = request.getHeader(CONVERSATION_HEADER);
+    if (StringUtils.isBlank(conversationId)) {
+      conversation.remove();
+    } else {
+      conversation.set(conversationId);
+    }
+  }
+
+  /**
+   * Clears the conversation of the current thread.
+   */
+  public void leaveConversation() {
+    conversation.remove();
+  }
+
+  /**
+   * Records, once the current transaction is committed, that the user and the conversation of the current thread
+   * have written, so their reads go to the primary for a while. It is recorded once per transaction, however many
+   * records it writes, and rolled back transactions are not recorded. Outside the requests of this module, the
+   * conversation is read from the header of the request being handled, if any.
+   */
+  public void recordWriteOnCommit() {
+    if (!enabled) {
+      return;
+    }
+    Transaction transaction = OBDal.getInstance().getSession().getTransaction();
+    if (pendingTransaction.get() == transaction) {
+      return;
+    }
+    pendingTransaction.set(transaction);
+    String conversationKey = getConversationKey(true);
+    String userKey = getUserKey();
+    transaction.registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // the write is recorded after the commit
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        pendingTransaction.remove();
+        if (status == Status.STATUS_COMMITTED) {
+          recordWrite(conversationKey, userKey);
+        }
+      }
+    });
+  }
+
+  private void recordWrite(String conversationKey, String userKey) {
+    long now = System.currentTimeMillis();
+    if (conversationKey != null) {
+      lastWrites.put(conversationKey, now);
+    }
+    if (userKey != null) {
+      lastWrites.put(userKey, now);
+    }
+    if (lastWrites.size() > MAX_CONVERSATIONS) {
+      // the writes older than the sticky window no longer route anything
+      lastWrites.values().removeIf(lastWrite -> now - lastWrite >= stickyMillis);
+    }
+  }
+
+  /**
+   * Starts routing the reads of the current thread to the read-only pool, unless routing is disabled or the user
+   * or the conversation of the thread have written recently.
+   *
+   * @return the scope, to be closed when the reads end.
+   */
+  public ReadScope openReadScope() {
+    if (!enabled) {
+      return new ReadScope(false);
+    }
+    String conversationKey = getConversationKey(false);
+    String userKey = getUserKey();
+    if (conversationKey == null && userKey == null) {
+      // a request that cannot be identified could have written, the primary is always used
+      return new ReadScope(false);
+    }
+    return new ReadScope(!hasWrittenRecently(conversationKey) && !hasWrittenRecently(userKey));
+  }
+
+  private boolean hasWrittenRecently(String key) {
+    if (key == null) {
+      return false;
+    }
+    Long lastWrite = lastWrites.get(key);
+    return lastWrite != null && System.currentTimeMillis() - lastWrite < stickyMillis;
+  }
+
+  private static String getConversationKey(boolean fromCurrentRequest) {
+    String conversationId = conversation.get();
+    if (conversationId == null && fromCurrentRequest) {
+      HttpServletRequest request = RequestContext.get().getRequest();
+      conversationId = request != null ? StringUtils.trimToNull(request.getHeader(CONVERSATION_HEADER)) : null;
+    }
+    return conversationId != null ? CONVERSATION_KEY_PREFIX + conversationId : null;
+  }
+
+  private static String getUserKey() {
+    OBContext obContext = OBContext.getOBContext();
+    return obContext != null && obContext.getUser() != null ? USER_KEY_PREFIX + obContext.getUser().getId() : null;
+  }
+
+  /**
+   * @return true if the reads of the current thread are routed to the read-only pool.
+   */
+  public static boolean isRouted() {
+    return Boolean.TRUE.equals(routed.get());
+  }
+
+  /**
+   * @return the DAL instance the reads of the current thread must use: the read-only one inside a routed
+   *     {@link ReadScope}, the primary one otherwise.
+   */
+  public static OBDal getReadDal() {
+    return isRouted() ? OBDal.getReadOnlyInstance() : OBDal.getInstance();
+  }
+
+  /**
+   * Reads a record with {@link #getReadDal()}, reading it again from the primary if the replica does not have it
+   * yet.
+   *
+   * @param entityClass
+   *     the class of the record.
+   * @param id
+   *     the ID of the record.
+   * @return the record, or null if it does not exist in the primary either.
+   */
+  public static <T extends BaseOBObject> T get(Class<T> entityClass, String id) {
+    if (!isRouted()) {
+      return OBDal.getInstance().get(entityClass, id);
+    }
+    T entity = OBDal.getReadOnlyInstance().get(entityClass, id);
+    return entity != null ? entity : OBDal.getInstance().get(entityClass, id);
+  }
+
+  /**
+   * The reads routed to the read-only pool, from its opening until it is closed.
+   */
+  public static class ReadScope implements AutoCloseable {
+    private final Boolean previous;
+
+    private ReadScope(boolean routeReads) {
+      this.previous = routed.get();
+      routed.set(routeReads);
+    }
+
+    @Override
+    public void close() {
+      if (previous == null) {
+        routed.remove();
+      } else {
+        routed.set(previous);
+      }
+    }
+  }
+}
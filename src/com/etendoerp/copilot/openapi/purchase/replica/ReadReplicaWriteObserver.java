@@ -0,0 +1,47 @@
+package com.etendoerp.copilot.openapi.purchase.replica;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+
+/**
+ * Records every committed DAL write in the {@link ReadReplicaRouter}, so the reads of the user and the conversation
+ * that made it stick to the primary database while the replica may not have it yet. It observes all the entities, as
+ * the agents also write through obRest and other services that never reach the web service of this module. Nothing
+ * is done while the routing is disabled, and a transaction is recorded once, when it is committed.
+ */
+public class ReadReplicaWriteObserver extends EntityPersistenceEventObserver {
+
+  private volatile Entity[] entities;
+
+  @Inject
+  private ReadReplicaRouter readReplicaRouter;
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    if (entities == null) {
+      entities = ModelProvider.getInstance().getModel().toArray(new Entity[0]);
+    }
+    return entities;
+  }
+
+  // all the entities are observed, so the events are not checked with isValidEvent, which scans all of them
+
+  public void onSave(@Observes EntityNewEvent event) {
+    readReplicaRouter.recordWriteOnCommit();
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    readReplicaRouter.recordWriteOnCommit();
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    readReplicaRouter.recordWriteOnCommit();
+  }
+}
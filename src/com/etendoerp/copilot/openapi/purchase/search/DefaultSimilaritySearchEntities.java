@@ -0,0 +1,34 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.model.common.businesspartner.BusinessPartner;
+import org.openbravo.model.common.enterprise.DocumentType;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.financialmgmt.payment.PaymentTerm;
+
+/**
+ * Entities searchable by similarity out of the box. Their tables have triggers that keep ETCPOPP_SIM_IDX up to date.
+ */
+@ApplicationScoped
+public class DefaultSimilaritySearchEntities implements SimilaritySearchEntityProvider {
+
+  @Override
+  public Map<String, Class<? extends BaseOBObject>> getSearchableEntities() {
+    Map<String, Class<? extends BaseOBObject>> entities = new LinkedHashMap<>();
+    entities.put("Product", Product.class);
+    entities.put("BusinessPartner", BusinessPartner.class);
+    entities.put("PaymentTerm", PaymentTerm.class);
+    entities.put("DocumentType", DocumentType.class);
+    return entities;
+  }
+
+  @Override
+  public boolean isIndexed() {
+    return true;
+  }
+}
@@ -0,0 +1,27 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.openbravo.client.kernel.ApplicationInitializer;
+
+/**
+ * Loads the in-memory similarity index when the application starts, if it is enabled. The load runs in a background
+ * thread so it does not delay the startup; searches use the database until it finishes.
+ */
+@ApplicationScoped
+public class SimilarityIndexInitializer implements ApplicationInitializer {
+
+  @Inject
+  private SimilarityIndexManager similarityIndexManager;
+
+  @Override
+  public void initialize() {
+    if (!similarityIndexManager.isEnabled()) {
+      return;
+    }
+    Thread loader = new Thread(similarityIndexManager::load, "copilot-purchase-similarity-index");
+    loader.setDaemon(true);
+    loader.start();
+  }
+}
@@ -0,0 +1,259 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+
+import com.etendoerp.copilot.openapi.purchase.search.TrigramIndex.SimilarityHit;
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Keeps an in-memory trigram index of the identifiers of the entities supported by the similarity search, with one
+ * {@link TrigramIndex} per table and client. The index is loaded from the ETCPOPP_SIM_IDX table at startup by
+ * {@link SimilarityIndexInitializer} and kept current by {@link SimilarityIndexObserver}.
+ * <p>
+ * It is disabled by default, set copilot.purchase.simsearch.inMemory=true in Openbravo.properties to enable it.
+ * While it is disabled or loading, searches fall back to the database. The changes committed while the index is
+ * loading are queued and applied once the load ends, so none of them is lost.
+ */
+@ApplicationScoped
+public class SimilarityIndexManager {
+
+  public static final String ENABLED_PROPERTY = "copilot.purchase.simsearch.inMemory";
+  private static final Logger log = LogManager.getLogger();
+  private static final String KEY_SEPARATOR = "|";
+
+  //@formatter:off
+  private static final String LOAD_SQL = new StringBuilder()
+      .append("select i.tablename, i.ad_client_id, i.ad_org_id, i.record_id, i.identifier ")
+      .append(" from etcpopp_sim_idx i ")
+      .append(" where i.isactive = 'Y'")
+      .toString();
+  //@formatter:on
+
+  private final Map<String, TrigramIndex> indexes = new ConcurrentHashMap<>();
+  private final Object changesLock = new Object();
+  private List<Runnable> pendingChanges;
+  private volatile boolean ready = false;
+
+  /**
+   * @return true if the in-memory index is enabled in Openbravo.properties.
+   */
+  public boolean isEnabled() {
+    return PurchaseConfig.getBoolean(ENABLED_PROPERTY, false);
+  }
+
+  /**
+   * @return true if the index has been loaded and can answer searches.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Loads the index from the ETCPOPP_SIM_IDX table. It runs with its own admin context and DAL session, so it can be
+   * executed in a background thread.
+   */
+  public void load() {
+    long start = System.currentTimeMillis();
+    synchronized (changesLock) {
+      pendingChanges = new ArrayList<>();
+    }
+    OBContext.setOBContext("0", "0", "0", "0");
+    try {
+      ScrollableResults scroll = OBDal.getInstance().getSession().createNativeQuery(LOAD_SQL)
+          .setFetchSize(1000)
+          .scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        while (scroll.next()) {
+          put((String) scroll.get(0), (String) scroll.get(1), (String) scroll.get(2), (String) scroll.get(3),
+              (String) scroll.get(4));
+        }
+      } finally {
+        scroll.close();
+      }
+      OBDal.getInstance().commitAndClose();
+      synchronized (changesLock) {
+        // the changes committed while the table was read may be missing from it, or older than it
+        pendingChanges.forEach(Runnable::run);
+        log.debug("Applied {} changes committed while loading the similarity index", pendingChanges.size());
+        pendingChanges = null;
+        ready = true;
+      }
+      log.info("Copilot similarity index loaded in {} ms: {} records, approximately {} KB",
+          System.currentTimeMillis() - start, getRecordCount(), estimateMemoryBytes() / 1024);
+    } catch (Exception e) {
+      log.error("Error loading the Copilot similarity index, searches will use the database", e);
+      synchronized (changesLock) {
+        pendingChanges = null;
+      }
+      OBDal.getInstance().rollbackAndClose();
+    } finally {
+      OBContext.setOBContext((OBContext) null);
+    }
+  }
+
+  /**
+   * Applies a committed change of a record to the index. While the index is loading the change is queued, and it is
+   * applied after the load. Changes committed before the load starts are ignored, they are read from ETCPOPP_SIM_IDX.
+   *
+   * @param tableName
+   *     the lowercased name of the table of the record.
+   * @param clientId
+   *     the client of the record.
+   * @param orgId
+   *     the organization of the record.
+   * @param recordId
+   *     the ID of the record.
+   * @param identifier
+   *     the identifier of the record as stored in ETCPOPP_SIM_IDX, or null if the record is no longer indexed.
+   */
+  public void applyChange(String tableName, String clientId, String orgId, String recordId, String identifier) {
+    Runnable change = identifier != null ? () -> put(tableName, clientId, orgId, recordId, identifier)
+        : () -> remove(tableName, clientId, recordId);
+    synchronized (changesLock) {
+      if (pendingChanges != null) {
+        pendingChanges.add(change);
+        return;
+      }
+      if (ready) {
+        change.run();
+      }
+    }
+  }
+
+  /**
+   * Adds or replaces a record in the index.
+   *
+   * @param tableName
+   *     the lowercased name of the table of the record.
+   * @param clientId
+   *     the client of the record.
+   * @param orgId
+   *     the organization of the record.
+   * @param recordId
+   *     the ID of the record.
+   * @param identifier
+   *     the identifier of the record.
+   */
+  public void put(String tableName, String clientId, String orgId, String recordId, String identifier) {
+    indexes.computeIfAbsent(tableName + KEY_SEPARATOR + clientId, k -> new TrigramIndex())
+        .put(recordId, orgId, identifier);
+  }
+
+  /**
+   * Removes a record from the index.
+   *
+   * @param tableName
+   *     the lowercased name of the table of the record.
+   * @param clientId
+   *     the client of the record.
+   * @param recordId
+   *     the ID of the record.
+   */
+  public void remove(String tableName, String clientId, String recordId) {
+    TrigramIndex index = indexes.get(tableName + KEY_SEPARATOR + clientId);
+    if (index != null) {
+      index.remove(recordId);
+    }
+  }
+
+  /**
+   * Searches the records of a table similar to the search term. The rows have the same shape as the ones of the
+   * database search: ID, identifier and similarity percent.
+   *
+   * @param tableName
+   *     the lowercased name of the table to search.
+   * @param searchTerm
+   *     the search term.
+   * @param minSimPercent
+   *     the similarity percent a record must exceed to be returned.
+   * @param qtyResults
+   *     the maximum number of results.
+   * @param clientIds
+   *     the clients whose records can be returned.
+   * @param orgIds
+   *     the organizations whose records can be returned.
+   * @return the hits sorted from the most similar one.
+   */
+  public List<Object[]> search(String tableName, String searchTerm, int minSimPercent, int qtyResults,
+      String[] clientIds, String[] orgIds) {
+    long[] queryTrigrams = TrigramIndex.trigrams(searchTerm);
+    Set<String> readableOrgs = new HashSet<>(Arrays.asList(orgIds));
+    List<SimilarityHit> hits = new ArrayList<>();
+    for (String clientId : clientIds) {
+      TrigramIndex index = indexes.get(tableName + KEY_SEPARATOR + clientId);
+      if (index != null) {
+        hits.addAll(index.search(queryTrigrams, minSimPercent / 100.0, qtyResults, readableOrgs));
+      }
+    }
+    hits.sort(Comparator.comparingDouble(SimilarityHit::getSimilarity).reversed()
+        .thenComparing(SimilarityHit::getRecordId));
+    List<Object[]> rows = new ArrayList<>(Math.min(qtyResults, hits.size()));
+    for (SimilarityHit hit : hits.subList(0, Math.min(qtyResults, hits.size()))) {
+      rows.add(new Object[] { hit.getRecordId(), hit.getIdentifier(),
+          BigDecimal.valueOf(hit.getSimilarity() * 100) });
+    }
+    return rows;
+  }
+
+  /**
+   * @return the number of records in all the indexes.
+   */
+  public long getRecordCount() {
+    return indexes.values().stream().mapToLong(TrigramIndex::size).sum();
+  }
+
+  /**
+   * @return the approximate heap used by all the indexes, in bytes.
+   */
+  public long estimateMemoryBytes() {
+    return indexes.values().stream().mapToLong(TrigramIndex::estimateMemoryBytes).sum();
+  }
+
+  /**
+   * Builds a summary of the state of the index, with the size and memory footprint of every table and client.
+   *
+   * @return a JSONObject with the statistics of the index.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject getStats() throws JSONException {
+    JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("ready", ready);
+    stats.put("records", getRecordCount());
+    stats.put("memoryBytes", estimateMemoryBytes());
+    JSONArray indexStats = new JSONArray();
+    for (Map.Entry<String, TrigramIndex> entry : indexes.entrySet()) {
+      String[] key = entry.getKey().split("\\" + KEY_SEPARATOR);
+      JSONObject indexJson = new JSONObject();
+      indexJson.put("table", key[0]);
+      indexJson.put("client", key[1]);
+      indexJson.put("records", entry.getValue().size());
+      indexJson.put("trigrams", entry.getValue().trigramCount());
+      indexJson.put("memoryBytes", entry.getValue().estimateMemoryBytes());
+      indexStats.put(indexJson);
+    }
+    stats.put("indexes", indexStats);
+    return stats;
+  }
+}
@@ -0,0 +1,125 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang.StringUtils;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.base.structure.ClientEnabled;
+import org.openbravo.client.kernel.event.EntityDeleteEvent;
+import org.openbravo.client.kernel.event.EntityNewEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEvent;
+import org.openbravo.client.kernel.event.EntityPersistenceEventObserver;
+import org.openbravo.client.kernel.event.EntityUpdateEvent;
+import org.openbravo.dal.service.OBDal;
+/**
+ * Keeps the in-memory similarity index and the similarity search cache in sync with the changes made through the
+ * DAL on the entities registered in the {@link SimilaritySearchPlanRegistry}. The changes are applied once the
+ * transaction is committed, so rolled back changes never reach the index nor invalidate the cache. The identifiers
+ * are read from ETCPOPP_SIM_IDX before the commit, as computed by its trigger.
+ */
+public class SimilarityIndexObserver extends EntityPersistenceEventObserver {
+
+  //@formatter:off
+  private static final String SIM_IDX_ROW_SQL = new StringBuilder()
+      .append("select i.ad_org_id, i.identifier ")
+      .append(" from etcpopp_sim_idx i ")
+      .append(" where i.tablename = :tableName ")
+      .append(" and i.record_id = :recordId ")
+      .append(" and i.isactive = 'Y'")
+      .toString();
+  //@formatter:on
+
+  private volatile Entity[] entities;
+
+  @Inject
+  private SimilaritySearchPlanRegistry similaritySearchPlanRegistry;
+
+  @Inject
+  private SimilarityIndexManager similarityIndexManager;
+
+  @Inject
+  private SimilaritySearchCache similaritySearchCache;
+
+  @Override
+  protected Entity[] getObservedEntities() {
+    if (entities == null) {
+      entities = similaritySearchPlanRegistry.getPlans().stream()
+          .map(SimilaritySearchPlan::getEntity)
+          .toArray(Entity[]::new);
+    }
+    return entities;
+  }
+
+  public void onSave(@Observes EntityNewEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    syncAfterCommit(event, false);
+  }
+
+  public void onUpdate(@Observes EntityUpdateEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    syncAfterCommit(event, false);
+  }
+
+  public void onDelete(@Observes EntityDeleteEvent event) {
+    if (!isValidEvent(event)) {
+      return;
+    }
+    syncAfterCommit(event, true);
+  }
+
+  private void syncAfterCommit(EntityPersistenceEvent event, boolean deleted) {
+    BaseOBObject bob = event.getTargetInstance();
+    String tableName = StringUtils.lowerCase(bob.getEntity().getTableName());
+    // entities that are not kept in ETCPOPP_SIM_IDX are not in the in-memory index either
+    boolean syncIndex = similarityIndexManager.isEnabled()
+        && similaritySearchPlanRegistry.getPlan(bob.getEntity()).isIndexed();
+    String clientId = ((ClientEnabled) bob).getClient().getId();
+    String recordId = (String) bob.getId();
+
+    OBDal.getInstance().getSession().getTransaction().registerSynchronization(new Synchronization() {
+      private String orgId;
+      private String identifier;
+
+      @Override
+      public void beforeCompletion() {
+        if (syncIndex && !deleted) {
+          readIndexedIdentifier();
+        }
+      }
+
+      /**
+       * Reads the identifier stored by the ETCPOPP_SIM_IDX trigger once the changes are flushed, so the in-memory
+       * index holds the same text the database search compares against.
+       */
+      private void readIndexedIdentifier() {
+        Object[] row = (Object[]) OBDal.getInstance().getSession().createNativeQuery(SIM_IDX_ROW_SQL)
+            .setParameter("tableName", tableName)
+            .setParameter("recordId", recordId)
+            .uniqueResult();
+        if (row != null) {
+          orgId = (String) row[0];
+          identifier = (String) row[1];
+        }
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status != Status.STATUS_COMMITTED) {
+          return;
+        }
+        similaritySearchCache.invalidate(tableName);
+        if (syncIndex) {
+          similarityIndexManager.applyChange(tableName, clientId, orgId, recordId, identifier);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,210 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Bounded LRU cache of similarity search results, with a time to live per entry.
+ * <p>
+ * Entries are keyed by the readable clients and organizations of the user, the table, the normalized search term,
+ * the number of results and the minimum similarity. Every table has a version that {@link SimilarityIndexObserver}
+ * increments when one of its records changes; entries stored with an older version are discarded, so the
+ * invalidation of a table does not need to scan the cache.
+ * <p>
+ * The size and time to live are read from Openbravo.properties (copilot.purchase.simsearch.cache.size and
+ * copilot.purchase.simsearch.cache.ttlSeconds). A size of 0 disables the cache.
+ */
+@ApplicationScoped
+public class SimilaritySearchCache {
+
+  public static final String SIZE_PROPERTY = "copilot.purchase.simsearch.cache.size";
+  public static final String TTL_PROPERTY = "copilot.purchase.simsearch.cache.ttlSeconds";
+  private static final int DEFAULT_SIZE = 1000;
+  private static final long DEFAULT_TTL_SECONDS = 300;
+
+  private final int maxSize = PurchaseConfig.getInt(SIZE_PROPERTY, DEFAULT_SIZE);
+  private final long ttlMillis = PurchaseConfig.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS) * 1000;
+  private final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+  private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      boolean evict = size() > maxSize;
+      if (evict) {
+        evictions.increment();
+      }
+      return evict;
+    }
+  };
+
+  /**
+   * @return true if the cache is enabled.
+   */
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Builds the key of a search.
+   *
+   * @param clientIds
+   *     the readable clients of the user.
+   * @param orgIds
+   *     the readable organizations of the user.
+   * @param tableName
+   *     the lowercased name of the searched table.
+   * @param searchTerm
+   *     the search term, it is normalized so equivalent terms share the entry.
+   * @param qtyResults
+   *     the maximum number of results.
+   * @param minSimPercent
+   *     the minimum similarity percent.
+   * @return the key of the search.
+   */
+  public String buildKey(String[] clientIds, String[] orgIds, String tableName, String searchTerm, int qtyResults,
+      int minSimPercent) {
+    String[] sortedClients = clientIds.clone();
+    String[] sortedOrgs = orgIds.clone();
+    Arrays.sort(sortedClients);
+    Arrays.sort(sortedOrgs);
+    String normalizedTerm = StringUtils.normalizeSpace(StringUtils.defaultString(searchTerm)).toLowerCase(
+        Locale.ROOT);
+    return String.join(",", sortedClients) + "|" + String.join(",", sortedOrgs) + "|" + tableName + "|"
+        + qtyResults + "|" + minSimPercent + "|" + normalizedTerm;
+  }
+
+  /**
+   * Returns the cached rows of a search.
+   *
+   * @param tableName
+   *     the lowercased name of the searched table.
+   * @param key
+   *     the key built with {@link #buildKey}.
+   * @return the cached rows, or null if the search is not cached or its entry is no longer valid.
+   */
+  public List<Object[]> get(String tableName, String key) {
+    if (!isEnabled()) {
+      return null;
+    }
+    CacheEntry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && (entry.expiresAt < System.currentTimeMillis()
+          || entry.tableVersion != getTableVersion(tableName).get())) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.rows;
+  }
+
+  /**
+   * Stores the rows of a search.
+   *
+   * @param tableName
+   *     the lowercased name of the searched table.
+   * @param key
+   *     the key built with {@link #buildKey}.
+   * @param tableVersion
+   *     the version of the table read before running the search, so results computed while the table changed are
+   *     not kept.
+   * @param rows
+   *     the rows returned by the search.
+   */
+  public void put(String tableName, String key, long tableVersion, List<Object[]> rows) {
+    if (!isEnabled() || tableVersion != getTableVersion(tableName).get()) {
+      return;
+    }
+    CacheEntry entry = new CacheEntry(Collections.unmodifiableList(rows), tableVersion,
+        System.currentTimeMillis() + ttlMillis);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  /**
+   * @param tableName
+   *     the lowercased name of a table.
+   * @return the current version of the table, to be passed to {@link #put}.
+   */
+  public long currentVersion(String tableName) {
+    return getTableVersion(tableName).get();
+  }
+
+  /**
+   * Invalidates all the cached searches of a table.
+   *
+   * @param tableName
+   *     the lowercased name of the table.
+   */
+  public void invalidate(String tableName) {
+    getTableVersion(tableName).incrementAndGet();
+    invalidations.increment();
+  }
+
+  /**
+   * Builds a summary of the usage of the cache, to help sizing it.
+   *
+   * @return a JSONObject with the hit, miss, eviction and invalidation counters.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONObject getStats() throws JSONException {
+    JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("maxSize", maxSize);
+    stats.put("ttlSeconds", ttlMillis / 1000);
+    synchronized (entries) {
+      stats.put("size", entries.size());
+    }
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("hitRatio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+    stats.put("evictions", evictions.sum());
+    stats.put("invalidations", invalidations.sum());
+    return stats;
+  }
+
+  private AtomicLong getTableVersion(String tableName) {
+    return tableVersions.computeIfAbsent(tableName, k -> new AtomicLong());
+  }
+
+  private static class CacheEntry {
+    private final List<Object[]> rows;
+    private final long tableVersion;
+    private final long expiresAt;
+
+    private CacheEntry(List<Object[]> rows, long tableVersion, long expiresAt) {
+      this.rows = rows;
+      this.tableVersion = tableVersion;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
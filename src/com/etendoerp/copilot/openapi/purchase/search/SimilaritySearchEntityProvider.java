@@ -0,0 +1,31 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.Map;
+
+import org.openbravo.base.structure.BaseOBObject;
+
+/**
+ * Extension point to make entities searchable through the searchBySimilarity endpoints. Implementations are
+ * discovered through CDI, so any module can register its entities by providing an {@code @ApplicationScoped} bean
+ * implementing this interface, without changes in the web service.
+ * <p>
+ * The similarity search plan of every entity is compiled once, when the {@link SimilaritySearchPlanRegistry} is
+ * first used.
+ */
+public interface SimilaritySearchEntityProvider {
+
+  /**
+   * @return the entities to register, by the name used in the entityName parameter of the requests.
+   */
+  Map<String, Class<? extends BaseOBObject>> getSearchableEntities();
+
+  /**
+   * Tells whether the tables of the entities are kept in the ETCPOPP_SIM_IDX table by database triggers. Entities
+   * that are not indexed are searched by computing the similarity of every record.
+   *
+   * @return true if the entities are indexed in ETCPOPP_SIM_IDX.
+   */
+  default boolean isIndexed() {
+    return false;
+  }
+}
@@ -0,0 +1,146 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.model.ModelProvider;
+import org.openbravo.base.model.Property;
+import org.openbravo.base.structure.BaseOBObject;
+
+/**
+ * Precompiled similarity search of one entity: its class, table, identifier columns and the HQL of the search that
+ * computes the similarity of every record. Plans are built once by {@link SimilaritySearchPlanRegistry}, so the
+ * searches do not need reflection nor string formatting, and the HQL, with every value bound as a parameter, is
+ * always the same string and is served from the Hibernate query plan cache.
+ */
+public class SimilaritySearchPlan {
+
+  private final String name;
+  private final Class<? extends BaseOBObject> entityClass;
+  private final Entity entity;
+  private final String tableName;
+  private final List<String> identifierColumns;
+  private final boolean indexed;
+  private final boolean scanUsesTableName;
+  private final String scanHql;
+  private final String scanPageHql;
+
+  SimilaritySearchPlan(String name, Class<? extends BaseOBObject> entityClass, boolean indexed) {
+    this.name = name;
+    this.entityClass = entityClass;
+    this.entity = ModelProvider.getInstance().getEntity(entityClass);
+    this.tableName = StringUtils.lowerCase(entity.getTableName());
+    this.indexed = indexed;
+
+    List<String> columns = new ArrayList<>();
+    List<String> identifierPaths = new ArrayList<>();
+    boolean textIdentifier = true;
+    for (Property property : entity.getIdentifierProperties()) {
+      columns.add(StringUtils.lowerCase(property.getColumnName()));
+      identifierPaths.add("coalesce(e." + property.getName() + ", '')");
+      textIdentifier &= property.isPrimitive() && String.class.equals(property.getPrimitiveObjectType());
+    }
+    this.identifierColumns = Collections.unmodifiableList(columns);
+
+    // Identifiers made only of text columns are compared directly, otherwise they are computed by the database
+    String scoreExpression;
+    if (textIdentifier && !identifierPaths.isEmpty()) {
+      String identifierExpression = identifierPaths.size() == 1 ? identifierPaths.get(0)
+          : "concat(" + String.join(", ' - ', ", identifierPaths) + ")";
+      scoreExpression = "etcpopp_similarity(" + identifierExpression + ", :searchTerm) * 100";
+      this.scanUsesTableName = false;
+    } else {
+      scoreExpression = "etcpopp_sim_search(:tableName, e.id, :searchTerm)";
+      this.scanUsesTableName = true;
+    }
+    //@formatter:off
+    this.scanHql = new StringBuilder()
+        .append("select e, ").append(scoreExpression)
+        .append(" from ").append(entity.getName()).append(" as e ")
+        .append(" where e.client.id in (:clientIds) ")
+        .append(" and e.organization.id in (:orgIds) ")
+        .append(" and e.active = true ")
+        .append(" and ").append(scoreExpression).append(" > :minSimPercent ")
+        .append(" order by ").append(scoreExpression).append(" desc, e.id")
+        .toString();
+    this.scanPageHql = new StringBuilder()
+        .append("select e, ").append(scoreExpression)
+        .append(" from ").append(entity.getName()).append(" as e ")
+        .append(" where e.client.id in (:clientIds) ")
+        .append(" and e.organization.id in (:orgIds) ")
+        .append(" and e.active = true ")
+        .append(" and ").append(scoreExpression).append(" > :minSimPercent ")
+        .append(" and (").append(scoreExpression).append(" < :cursorScore ")
+        .append("  or (").append(scoreExpression).append(" = :cursorScore and e.id > :cursorId)) ")
+        .append(" order by ").append(scoreExpression).append(" desc, e.id")
+        .toString();
+    //@formatter:on
+  }
+
+  /**
+   * @return the name of the entity in the requests.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the class of the entity.
+   */
+  public Class<? extends BaseOBObject> getEntityClass() {
+    return entityClass;
+  }
+
+  /**
+   * @return the DAL entity.
+   */
+  public Entity getEntity() {
+    return entity;
+  }
+
+  /**
+   * @return the lowercased name of the table of the entity.
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * @return the lowercased names of the columns that compose the identifier of the entity.
+   */
+  public List<String> getIdentifierColumns() {
+    return identifierColumns;
+  }
+
+  /**
+   * @return true if the table is kept in ETCPOPP_SIM_IDX, so it can be searched with the trigram index.
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * @return the HQL that computes the similarity of every record, selecting the entity and its similarity percent.
+   */
+  public String getScanHql() {
+    return scanHql;
+  }
+
+  /**
+   * @return the scan HQL restricted to the records that sort after a cursor, given by the cursorScore and cursorId
+   *     parameters, so a page continues where the previous one ended without ranking its records again.
+   */
+  public String getScanPageHql() {
+    return scanPageHql;
+  }
+
+  /**
+   * @return true if the tableName parameter must be bound in the scan HQL.
+   */
+  public boolean scanUsesTableName() {
+    return scanUsesTableName;
+  }
+}
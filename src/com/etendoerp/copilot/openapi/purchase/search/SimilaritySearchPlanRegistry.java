@@ -0,0 +1,95 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.base.model.Entity;
+import org.openbravo.base.structure.BaseOBObject;
+
+/**
+ * Registry of the entities searchable by similarity. The plans are compiled the first time the registry is used,
+ * from every {@link SimilaritySearchEntityProvider} available through CDI.
+ */
+@ApplicationScoped
+public class SimilaritySearchPlanRegistry {
+
+  private static final Logger log = LogManager.getLogger();
+
+  @Inject
+  @Any
+  private Instance<SimilaritySearchEntityProvider> providers;
+
+  private volatile Map<String, SimilaritySearchPlan> plansByName;
+  private volatile Map<String, SimilaritySearchPlan> plansByEntityName;
+
+  /**
+   * Returns the plan of an entity.
+   *
+   * @param name
+   *     the name of the entity in the requests.
+   * @return the plan, or null if the entity is not searchable.
+   */
+  public SimilaritySearchPlan getPlan(String name) {
+    return name == null ? null : getPlansByName().get(name);
+  }
+
+  /**
+   * Returns the plan of a DAL entity.
+   *
+   * @param entity
+   *     the DAL entity.
+   * @return the plan, or null if the entity is not searchable.
+   */
+  public SimilaritySearchPlan getPlan(Entity entity) {
+    getPlansByName();
+    return plansByEntityName.get(entity.getName());
+  }
+
+  /**
+   * @return the plans of all the searchable entities, in registration order.
+   */
+  public Collection<SimilaritySearchPlan> getPlans() {
+    return getPlansByName().values();
+  }
+
+  private Map<String, SimilaritySearchPlan> getPlansByName() {
+    if (plansByName == null) {
+      synchronized (this) {
+        if (plansByName == null) {
+          compilePlans();
+        }
+      }
+    }
+    return plansByName;
+  }
+
+  private void compilePlans() {
+    Map<String, SimilaritySearchPlan> byName = new LinkedHashMap<>();
+    Map<String, SimilaritySearchPlan> byEntityName = new LinkedHashMap<>();
+    for (SimilaritySearchEntityProvider provider : providers) {
+      for (Map.Entry<String, Class<? extends BaseOBObject>> searchable : provider.getSearchableEntities()
+          .entrySet()) {
+        SimilaritySearchPlan plan = new SimilaritySearchPlan(searchable.getKey(), searchable.getValue(),
+            provider.isIndexed());
+        SimilaritySearchPlan previous = byName.get(plan.getName());
+        // indexed registrations take precedence, so a module cannot downgrade a default entity to a scan
+        if (previous == null || !previous.isIndexed()) {
+          byName.put(plan.getName(), plan);
+          byEntityName.put(plan.getEntity().getName(), plan);
+        }
+      }
+    }
+    log.debug("Similarity search plans compiled for {}", byName.keySet());
+    plansByEntityName = Collections.unmodifiableMap(byEntityName);
+    plansByName = Collections.unmodifiableMap(byName);
+  }
+}
@@ -0,0 +1,336 @@
+package com.etendoerp.copilot.openapi.purchase.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory trigram index over the identifiers of the records of one table and client.
+ * <p>
+ * Trigrams are extracted the same way pg_trgm does: the text is lowercased, split in alphanumeric words and every
+ * word is padded with two spaces before and one after. The similarity between two texts is the number of shared
+ * trigrams divided by the number of distinct trigrams of both, so the scores match the ones of the database search.
+ * <p>
+ * Every record takes a slot; the posting list of a trigram holds the slots of the records containing it. Removed
+ * records only release their slot, their postings are skipped while searching and dropped when the index is
+ * compacted. The shared trigram counts of a search are accumulated in an array reused by every search of the same
+ * thread, and only the slots it touched are cleared afterwards, so a search costs the length of the posting lists
+ * of its trigrams instead of the size of the index.
+ */
+class TrigramIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final Comparator<SimilarityHit> HIT_ORDER = Comparator.comparingDouble(
+      SimilarityHit::getSimilarity).thenComparing(SimilarityHit::getRecordId, Comparator.reverseOrder());
+  private static final ThreadLocal<int[]> sharedCountsBuffer = ThreadLocal.withInitial(() -> new int[0]);
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Integer> slotByRecordId = new HashMap<>();
+  private final Map<Long, PostingList> postings = new HashMap<>();
+  private String[] recordIds = new String[INITIAL_CAPACITY];
+  private String[] identifiers = new String[INITIAL_CAPACITY];
+  private String[] orgIds = new String[INITIAL_CAPACITY];
+  private int[] trigramCounts = new int[INITIAL_CAPACITY];
+  private int usedSlots = 0;
+
+  /**
+   * Adds a record to the index, or replaces it if it was already indexed.
+   *
+   * @param recordId
+   *     the ID of the record.
+   * @param orgId
+   *     the organization of the record.
+   * @param identifier
+   *     the identifier of the record, used to compute its trigrams.
+   */
+  void put(String recordId, String orgId, String identifier) {
+    long[] trigrams = trigrams(identifier);
+    lock.writeLock().lock();
+    try {
+      releaseSlot(recordId);
+      if (usedSlots == recordIds.length) {
+        grow();
+      }
+      int slot = usedSlots++;
+      recordIds[slot] = recordId;
+      identifiers[slot] = identifier;
+      orgIds[slot] = orgId;
+      trigramCounts[slot] = trigrams.length;
+      slotByRecordId.put(recordId, slot);
+      for (long trigram : trigrams) {
+        postings.computeIfAbsent(trigram, k -> new PostingList()).add(slot);
+      }
+      compactIfSparse();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a record from the index. Nothing is done if the record is not indexed.
+   *
+   * @param recordId
+   *     the ID of the record.
+   */
+  void remove(String recordId) {
+    lock.writeLock().lock();
+    try {
+      releaseSlot(recordId);
+      compactIfSparse();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Searches the records whose identifier is similar to the given trigrams.
+   *
+   * @param queryTrigrams
+   *     the trigrams of the search term, as returned by {@link #trigrams(String)}.
+   * @param minSimilarity
+   *     the similarity (between 0 and 1) a record must exceed to be returned.
+   * @param limit
+   *     the maximum number of hits to return.
+   * @param readableOrgs
+   *     the organizations the records must belong to.
+   * @return the best hits, in no particular order.
+   */
+  List<SimilarityHit> search(long[] queryTrigrams, double minSimilarity, int limit, Set<String> readableOrgs) {
+    lock.readLock().lock();
+    try {
+      int[] sharedCounts = sharedCountsBuffer.get();
+      if (sharedCounts.length < usedSlots) {
+        sharedCounts = new int[Math.max(usedSlots, sharedCounts.length * 2)];
+        sharedCountsBuffer.set(sharedCounts);
+      }
+      PostingList touched = new PostingList();
+      try {
+        return collectBest(queryTrigrams, minSimilarity, limit, readableOrgs, sharedCounts, touched);
+      } finally {
+        for (int i = 0; i < touched.size; i++) {
+          sharedCounts[touched.slots[i]] = 0;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private List<SimilarityHit> collectBest(long[] queryTrigrams, double minSimilarity, int limit,
+      Set<String> readableOrgs, int[] sharedCounts, PostingList touched) {
+    for (long trigram : queryTrigrams) {
+      PostingList postingList = postings.get(trigram);
+      if (postingList == null) {
+        continue;
+      }
+      for (int i = 0; i < postingList.size; i++) {
+        int slot = postingList.slots[i];
+        if (sharedCounts[slot]++ == 0) {
+          touched.add(slot);
+        }
+      }
+    }
+    PriorityQueue<SimilarityHit> best = new PriorityQueue<>(limit + 1, HIT_ORDER);
+    for (int i = 0; i < touched.size; i++) {
+      int slot = touched.slots[i];
+      if (recordIds[slot] == null || !readableOrgs.contains(orgIds[slot])) {
+        continue;
+      }
+      int shared = sharedCounts[slot];
+      double similarity = (double) shared / (queryTrigrams.length + trigramCounts[slot] - shared);
+      if (similarity > minSimilarity) {
+        best.add(new SimilarityHit(recordIds[slot], identifiers[slot], similarity));
+        if (best.size() > limit) {
+          best.poll();
+        }
+      }
+    }
+    return new ArrayList<>(best);
+  }
+
+  /**
+   * @return the number of records in the index.
+   */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return slotByRecordId.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of distinct trigrams in the index.
+   */
+  int trigramCount() {
+    lock.readLock().lock();
+    try {
+      return postings.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Estimates the heap used by the index, assuming a 64-bit JVM with compressed references.
+   *
+   * @return the approximate size of the index in bytes.
+   */
+  long estimateMemoryBytes() {
+    lock.readLock().lock();
+    try {
+      long bytes = 4L * (16 + 4L * recordIds.length);
+      for (int slot = 0; slot < usedSlots; slot++) {
+        if (recordIds[slot] != null) {
+          // the record and org ids are shared with the slot map and other records
+          bytes += 2 * (40L + recordIds[slot].length()) + 40L + 2L * identifiers[slot].length();
+        }
+      }
+      // HashMap node, boxed key and array header of every posting list
+      bytes += postings.size() * (32L + 24L + 32L);
+      for (PostingList postingList : postings.values()) {
+        bytes += 4L * postingList.slots.length;
+      }
+      return bytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void releaseSlot(String recordId) {
+    Integer slot = slotByRecordId.remove(recordId);
+    if (slot != null) {
+      recordIds[slot] = null;
+      identifiers[slot] = null;
+      orgIds[slot] = null;
+    }
+  }
+
+  private void grow() {
+    int capacity = recordIds.length * 2;
+    recordIds = Arrays.copyOf(recordIds, capacity);
+    identifiers = Arrays.copyOf(identifiers, capacity);
+    orgIds = Arrays.copyOf(orgIds, capacity);
+    trigramCounts = Arrays.copyOf(trigramCounts, capacity);
+  }
+
+  private void compactIfSparse() {
+    if (usedSlots > INITIAL_CAPACITY && slotByRecordId.size() < usedSlots / 2) {
+      compact();
+    }
+  }
+
+  private void compact() {
+    String[] oldRecordIds = recordIds;
+    String[] oldIdentifiers = identifiers;
+    String[] oldOrgIds = orgIds;
+    int oldUsedSlots = usedSlots;
+    int capacity = Math.max(INITIAL_CAPACITY, slotByRecordId.size() * 2);
+    recordIds = new String[capacity];
+    identifiers = new String[capacity];
+    orgIds = new String[capacity];
+    trigramCounts = new int[capacity];
+    usedSlots = 0;
+    slotByRecordId.clear();
+    postings.clear();
+    for (int slot = 0; slot < oldUsedSlots; slot++) {
+      if (oldRecordIds[slot] != null) {
+        int newSlot = usedSlots++;
+        long[] trigrams = trigrams(oldIdentifiers[slot]);
+        recordIds[newSlot] = oldRecordIds[slot];
+        identifiers[newSlot] = oldIdentifiers[slot];
+        orgIds[newSlot] = oldOrgIds[slot];
+        trigramCounts[newSlot] = trigrams.length;
+        slotByRecordId.put(oldRecordIds[slot], newSlot);
+        for (long trigram : trigrams) {
+          postings.computeIfAbsent(trigram, k -> new PostingList()).add(newSlot);
+        }
+      }
+    }
+  }
+
+  /**
+   * Extracts the distinct trigrams of a text, following the rules of pg_trgm. Each trigram is packed in a long,
+   * 16 bits per character.
+   *
+   * @param text
+   *     the text to process.
+   * @return the sorted, distinct trigrams of the text.
+   */
+  static long[] trigrams(String text) {
+    if (text == null) {
+      return new long[0];
+    }
+    String lower = text.toLowerCase(Locale.ROOT);
+    long[] result = new long[lower.length() * 3 + 3];
+    int count = 0;
+    int i = 0;
+    while (i < lower.length()) {
+      while (i < lower.length() && !Character.isLetterOrDigit(lower.charAt(i))) {
+        i++;
+      }
+      int start = i;
+      while (i < lower.length() && Character.isLetterOrDigit(lower.charAt(i))) {
+        i++;
+      }
+      if (i > start) {
+        String padded = "  " + lower.substring(start, i) + " ";
+        for (int j = 0; j + 3 <= padded.length(); j++) {
+          result[count++] = ((long) padded.charAt(j) << 32) | ((long) padded.charAt(j + 1) << 16) | padded.charAt(
+              j + 2);
+        }
+      }
+    }
+    return Arrays.stream(result, 0, count).sorted().distinct().toArray();
+  }
+
+  /**
+   * Growable list of slots.
+   */
+  private static class PostingList {
+    private int[] slots = new int[4];
+    private int size = 0;
+
+    private void add(int slot) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+      }
+      slots[size++] = slot;
+    }
+  }
+
+  /**
+   * A record found by a search, with its similarity to the search term.
+   */
+  static class SimilarityHit {
+    private final String recordId;
+    private final String identifier;
+    private final double similarity;
+
+    SimilarityHit(String recordId, String identifier, double similarity) {
+      this.recordId = recordId;
+      this.identifier = identifier;
+      this.similarity = similarity;
+    }
+
+    String getRecordId() {
+      return recordId;
+    }
+
+    String getIdentifier() {
+      return identifier;
+    }
+
+    double getSimilarity() {
+      return similarity;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.etendoerp.copilot.openapi.purchase.spec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openbravo.base.exception.OBException;
+
+/**
+ * A precomputed part of the OpenAPI specification, ready to be written to a response: its JSON, the same JSON
+ * compressed with gzip and its entity tag.
+ */
+public class OpenApiSlice {
+
+  private final byte[] json;
+  private final byte[] gzip;
+  private final String eTag;
+
+  OpenApiSlice(String json) {
+    this.json = json.getBytes(StandardCharsets.UTF_8);
+    this.gzip = compress(this.json);
+    this.eTag = "\"" + sha256(this.json).substring(0, 32) + "\"";
+  }
+
+  public byte[] getJson() {
+    return json;
+  }
+
+  public byte[] getGzip() {
+    return gzip;
+  }
+
+  public String getETag() {
+    return eTag;
+  }
+
+  private static byte[] compress(byte[] content) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+      gzipOut.write(content);
+    } catch (IOException e) {
+      throw new OBException("Error compressing the OpenAPI slice", e);
+    }
+    return out.toByteArray();
+  }
+
+  private static String sha256(byte[] content) {
+    try {
+      return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new OBException(e);
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.etendoerp.copilot.openapi.purchase.spec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.session.OBPropertiesProvider;
+import org.openbravo.dal.core.DalContextListener;
+
+/**
+ * In-memory index of the OpenAPI specification of the module, so the EtendoAPITool gets the part of the
+ * specification it asks for without downloading and parsing the whole document on every call.
+ * <p>
+ * The specification is parsed once and split into precomputed {@link OpenApiSlice}s:
+ * <ul>
+ * <li>one per operation, keyed by "METHOD /path", with the servers and the operation with every $ref inlined, so it
+ * is self-contained;</li>
+ * <li>one per tag, listing the method, path, summary and description of its operations;</li>
+ * <li>an overview, with the info, servers and tags of the API and the same listing for all the operations.</li>
+ * </ul>
+ * A lookup is a map access returning bytes ready to be written, compressed or not.
+ */
+@ApplicationScoped
+public class OpenApiSpecIndex {
+
+  public static final String SPEC_PATH = "/web/com.etendoerp.copilot.openapi.purchase/doc/openapi3_1.json";
+  private static final String[] METHODS = { "get", "put", "post", "delete", "options", "head", "patch", "trace" };
+  private static final Logger log = LogManager.getLogger();
+
+  private volatile Index index;
+
+  /**
+   * Loads the specification, if it is not loaded yet.
+   */
+  public void load() {
+    getIndex();
+  }
+
+  /**
+   * Returns the slice of an operation.
+   *
+   * @param endpoint
+   *     the method and the path of the operation, separated by a space, for example "GET /path". The method is case
+   *     insensitive.
+   * @return the slice, or null if the specification has no such operation.
+   */
+  public OpenApiSlice getEndpoint(String endpoint) {
+    return getIndex().endpoints.get(normalizeEndpoint(endpoint));
+  }
+
+  /**
+   * Returns the slice listing the operations of a tag.
+   *
+   * @param tag
+   *     the tag, case insensitive.
+   * @return the slice, or null if no operation has the tag.
+   */
+  public OpenApiSlice getTag(String tag) {
+    return getIndex().tags.get(StringUtils.lowerCase(StringUtils.trim(tag), Locale.ROOT));
+  }
+
+  /**
+   * @return the slice with the general information of the API and the listing of all its operations.
+   */
+  public OpenApiSlice getOverview() {
+    return getIndex().overview;
+  }
+
+  private Index getIndex() {
+    Index current = index;
+    if (current == null) {
+      synchronized (this) {
+        current = index;
+        if (current == null) {
+          current = buildIndex(readSpec());
+          index = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private static String readSpec() {
+    ServletContext servletContext = DalContextListener.getServletContext();
+    try {
+      if (servletContext != null) {
+        try (InputStream in = servletContext.getResourceAsStream(SPEC_PATH)) {
+          if (in != null) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+          }
+        }
+      }
+      // outside a servlet container the specification is read from the sources
+      String sourcePath = OBPropertiesProvider.getInstance().getOpenbravoProperties().getProperty("source.path");
+      File file = new File(sourcePath, "modules/com.etendoerp.copilot.openapi.purchase" + SPEC_PATH);
+      try (InputStream in = new FileInputStream(file)) {
+        return IOUtils.toString(in, StandardCharsets.UTF_8);
+      }
+    } catch (IOException e) {
+      throw new OBException("Error reading the OpenAPI specification " + SPEC_PATH, e);
+    }
+  }
+
+  private static Index buildIndex(String specJson) {
+    long start = System.currentTimeMillis();
+    try {
+      JSONObject spec = new JSONObject(specJson);
+      JSONArray servers = spec.optJSONArray("servers");
+      JSONObject paths = spec.optJSONObject("paths");
+      Map<String, OpenApiSlice> endpoints = new HashMap<>();
+      Map<String, JSONArray> operationsByTag = new LinkedHashMap<>();
+      JSONArray allOperations = new JSONArray();
+      Iterator<?> pathIterator = paths != null ? paths.keys() : Collections.emptyIterator();
+      while (pathIterator.hasNext()) {
+        String path = (String) pathIterator.next();
+        JSONObject pathItem = paths.getJSONObject(path);
+        for (String method : METHODS) {
+          JSONObject operation = pathItem.optJSONObject(method);
+          if (operation == null) {
+            continue;
+          }
+          String endpoint = method.toUpperCase(Locale.ROOT) + " " + path;
+          JSONObject slice = new JSONObject();
+          slice.put("endpoint", endpoint);
+          if (servers != null) {
+            slice.put("servers", servers);
+          }
+          slice.put("operation", inline(operation, spec, new ArrayDeque<>()));
+          endpoints.put(normalizeEndpoint(endpoint), new OpenApiSlice(slice.toString()));
+
+          JSONObject summary = summarize(endpoint, operation);
+          allOperations.put(summary);
+          JSONArray tags = operation.optJSONArray("tags");
+          for (int i = 0; tags != null && i < tags.length(); i++) {
+            operationsByTag.computeIfAbsent(tags.getString(i).toLowerCase(Locale.ROOT), k -> new JSONArray())
+                .put(summary);
+          }
+        }
+      }
+
+      Map<String, OpenApiSlice> tags = new HashMap<>();
+      for (Map.Entry<String, JSONArray> tag : operationsByTag.entrySet()) {
+        JSONObject slice = new JSONObject();
+        slice.put("tag", tag.getKey());
+        slice.put("endpoints", tag.getValue());
+        tags.put(tag.getKey(), new OpenApiSlice(slice.toString()));
+      }
+
+      JSONObject overview = new JSONObject();
+      putIfPresent(overview, spec, "openapi");
+      putIfPresent(overview, spec, "info");
+      putIfPresent(overview, spec, "servers");
+      putIfPresent(overview, spec, "tags");
+      overview.put("endpoints", allOperations);
+
+      log.info("OpenAPI specification indexed in {} ms: {} endpoints, {} tags", System.currentTimeMillis() - start,
+          endpoints.size(), tags.size());
+      return new Index(endpoints, tags, new OpenApiSlice(overview.toString()));
+    } catch (JSONException e) {
+      throw new OBException("Error parsing the OpenAPI specification " + SPEC_PATH, e);
+    }
+  }
+
+  private static JSONObject summarize(String endpoint, JSONObject operation) throws JSONException {
+    JSONObject summary = new JSONObject();
+    summary.put("endpoint", endpoint);
+    putIfPresent(summary, operation, "summary");
+    putIfPresent(summary, operation, "description");
+    return summary;
+  }
+
+  /**
+   * Returns a copy of a node of the specification with every local $ref replaced by the node it points to. A $ref
+   * that points to one of the nodes being inlined is left as it is, so recursive schemas do not loop.
+   */
+  private static Object inline(Object node, JSONObject spec, Deque<String> refStack) throws JSONException {
+    if (node instanceof JSONArray) {
+      JSONArray array = (JSONArray) node;
+      JSONArray copy = new JSONArray();
+      for (int i = 0; i < array.length(); i++) {
+        copy.put(inline(array.get(i), spec, refStack));
+      }
+      return copy;
+    }
+    if (!(node instanceof JSONObject)) {
+      return node;
+    }
+    JSONObject object = (JSONObject) node;
+    String ref = object.optString("$ref", null);
+    if (ref != null && ref.startsWith("#/") && !refStack.contains(ref)) {
+      refStack.push(ref);
+      Object resolved = inline(resolvePointer(spec, ref), spec, refStack);
+      refStack.pop();
+      return resolved;
+    }
+    JSONObject copy = new JSONObject();
+    Iterator<?> keys = object.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      copy.put(key, inline(object.get(key), spec, refStack));
+    }
+    return copy;
+  }
+
+  private static Object resolvePointer(JSONObject spec, String ref) throws JSONException {
+    Object node = spec;
+    for (String token : ref.substring(2).split("/")) {
+      String key = token.replace("~1", "/").replace("~0", "~");
+      if (!(node instanceof JSONObject) || !((JSONObject) node).has(key)) {
+        throw new OBException("Unresolvable $ref " + ref + " in the OpenAPI specification");
+      }
+      node = ((JSONObject) node).get(key);
+    }
+    return node;
+  }
+
+  private static void putIfPresent(JSONObject target, JSONObject source, String key) throws JSONException {
+    if (source.has(key)) {
+      target.put(key, source.get(key));
+    }
+  }
+
+  private static String normalizeEndpoint(String endpoint) {
+    String trimmed = StringUtils.normalizeSpace(StringUtils.defaultString(endpoint));
+    int space = trimmed.indexOf(' ');
+    if (space < 0) {
+      return trimmed;
+    }
+    return trimmed.substring(0, space).toUpperCase(Locale.ROOT) + trimmed.substring(space);
+  }
+
+  private static class Index {
+    private final Map<String, OpenApiSlice> endpoints;
+    private final Map<String, OpenApiSlice> tags;
+    private final OpenApiSlice overview;
+
+    private Index(Map<String, OpenApiSlice> endpoints, Map<String, OpenApiSlice> tags, OpenApiSlice overview) {
+      this.endpoints = endpoints;
+      this.tags = tags;
+      this.overview = overview;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.etendoerp.copilot.openapi.purchase.spec;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openbravo.client.kernel.ApplicationInitializer;
+
+/**
+ * Indexes the OpenAPI specification when the application starts, so the first tool call does not pay for it.
+ */
+@ApplicationScoped
+public class OpenApiSpecInitializer implements ApplicationInitializer {
+
+  private static final Logger log = LogManager.getLogger();
+
+  @Inject
+  private OpenApiSpecIndex openApiSpecIndex;
+
+  @Override
+  public void initialize() {
+    try {
+      openApiSpecIndex.load();
+    } catch (RuntimeException e) {
+      // the index is loaded again on the first request
+      log.error("Error indexing the OpenAPI specification", e);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.etendoerp.copilot.openapi.purchase.utils;
+
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+import org.openbravo.base.session.OBPropertiesProvider;
+
+/**
+ * Utility class to read the configuration of the Copilot purchase module from Openbravo.properties.
+ * Every key is optional, so a default value must always be provided.
+ */
+public class PurchaseConfig {
+
+  private PurchaseConfig() {
+  }
+
+  /**
+   * Returns the value of a property, or the default value if it is not defined.
+   *
+   * @param key
+   *     the name of the property.
+   * @param defaultValue
+   *     the value to return when the property is not defined.
+   * @return the trimmed value of the property.
+   */
+  public static String getString(String key, String defaultValue) {
+    Properties properties = OBPropertiesProvider.getInstance().getOpenbravoProperties();
+    String value = properties.getProperty(key);
+    return StringUtils.isBlank(value) ? defaultValue : value.trim();
+  }
+
+  /**
+   * Returns the boolean value of a property, or the default value if it is not defined.
+   *
+   * @param key
+   *     the name of the property.
+   * @param defaultValue
+   *     the value to return when the property is not defined.
+   * @return true if the property is "true" (case-insensitive), false otherwise.
+   */
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+  }
+
+  /**
+   * Returns the integer value of a property, or the default value if it is not defined or is not a number.
+   *
+   * @param key
+   *     the name of the property.
+   * @param defaultValue
+   *     the value to return when the property is not defined.
+   * @return the value of the property as an int.
+   */
+  public static int getInt(String key, int defaultValue) {
+    try {
+      return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the long value of a property, or the default value if it is not defined or is not a number.
+   *
+   * @param key
+   *     the name of the property.
+   * @param defaultValue
+   *     the value to return when the property is not defined.
+   * @return the value of the property as a long.
+   */
+  public static long getLong(String key, long defaultValue) {
+    try {
+      return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
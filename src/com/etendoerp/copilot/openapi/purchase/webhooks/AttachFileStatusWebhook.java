@@ -0,0 +1,49 @@
+package com.etendoerp.copilot.openapi.purchase.webhooks;
+
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentIngestionService;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentJob;
+import com.etendoerp.webhookevents.services.BaseWebhookService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.weld.WeldUtils;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Returns the status of an attachment queued with the Async parameter of the AttachFile webhook: queued, running,
+ * done, with the attachment, or failed, with the error.
+ */
+public class AttachFileStatusWebhook extends BaseWebhookService {
+
+  private static final Logger log = LogManager.getLogger();
+
+  @Override
+  public void get(Map<String, String> parameter, Map<String, String> responseVars) {
+    String jobId = parameter.get("JobId");
+    if (jobId == null) {
+      responseVars.put("error", "Missing required parameters");
+      return;
+    }
+    AttachmentJob job = WeldUtils.getInstanceFromStaticBeanManager(AttachmentIngestionService.class)
+        .getJob(jobId);
+    if (job == null) {
+      responseVars.put("error", "Job not found");
+      return;
+    }
+    try {
+      JSONObject status = job.toJson();
+      Iterator<?> keys = status.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        responseVars.put(key, status.getString(key));
+      }
+    } catch (JSONException e) {
+      log.error("Error reading the status of attachment job {}", jobId, e);
+      responseVars.put("error", e.getMessage());
+    }
+  }
+
+}
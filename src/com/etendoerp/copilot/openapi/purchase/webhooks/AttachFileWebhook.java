@@ -1,16 +1,27 @@
 package com.etendoerp.copilot.openapi.purchase.webhooks;
 
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentIngestionService;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentJob;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentQueueFullException;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploadResult;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploader;
+import com.etendoerp.copilot.openapi.purchase.metrics.EndpointMetrics;
+import com.etendoerp.copilot.openapi.purchase.metrics.RequestRecorder;
 import com.etendoerp.webhookevents.services.BaseWebhookService;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.ReaderInputStream;
+import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openbravo.base.weld.WeldUtils;
-import org.openbravo.client.application.attachment.AttachImplementationManager;
-import org.openbravo.dal.service.OBDal;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.file.Files;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
 import java.util.Map;
 
 public class AttachFileWebhook extends BaseWebhookService {
@@ -19,6 +30,17 @@ public class AttachFileWebhook extends BaseWebhookService {
 
   @Override
   public void get(Map<String, String> parameter, Map<String, String> responseVars) {
+    RequestRecorder recorder = WeldUtils.getInstanceFromStaticBeanManager(EndpointMetrics.class)
+        .start("WEBHOOK", "AttachFile");
+    try {
+      handle(parameter, responseVars);
+    } finally {
+      boolean error = responseVars.containsKey("error");
+      recorder.finish(error, error ? 0 : 1);
+    }
+  }
+
+  private void handle(Map<String, String> parameter, Map<String, String> responseVars) {
     log.info("Executing AttachmentWebHook process");
 
     String adTabId = parameter.get("ADTabId");
@@ -31,38 +53,83 @@ public class AttachFileWebhook extends BaseWebhookService {
       return;
     }
 
+    if (StringUtils.equalsIgnoreCase("true", parameter.get("Async"))) {
+      submit(adTabId, recordId, fileName, fileContent, responseVars);
+      return;
+    }
+
     try {
-      File file = storeBase64ToTempFile(fileContent, fileName);
-      createAttachment(adTabId, recordId, fileName, file);
-      responseVars.put("message", "Attachment created successfully");
+      AttachmentUploadResult result = attach(adTabId, recordId, fileName, fileContent);
+      responseVars.put("message", result.getDedup().getMessage());
+      responseVars.put("attachmentId", result.getAttachmentId());
+      responseVars.put("dedup", String.valueOf(result.isDedupHit()));
+      responseVars.put("dedupType", result.getDedup().getType());
     } catch (Exception e) {
       log.error("Error creating attachment", e);
       responseVars.put("error", e.getMessage());
     }
   }
 
-  private File storeBase64ToTempFile(String fileContent, String fileName) {
-    File tempFile = null;
+  /**
+   * Decodes the attachment to a temp file and queues it in the {@link AttachmentIngestionService}, answering with the
+   * id of the job, which can be polled with the AttachFileStatus webhook. Only the temp file is kept until the job
+   * runs, not the base64 content, and the job deletes it when it finishes.
+   */
+  private void submit(String adTabId, String recordId, String fileName, String fileContent,
+      Map<String, String> responseVars) {
+    File file = null;
     try {
-      tempFile = Files.createTempFile(null, fileName).toFile();
-      try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-        byte[] fileBytes = javax.xml.bind.DatatypeConverter.parseBase64Binary(fileContent);
-        fos.write(fileBytes);
-      }
+      MessageDigest digest = AttachmentUploader.newDigest();
+      file = storeBase64ToTempFile(fileContent, fileName, digest);
+      String checksum = Hex.encodeHexString(digest.digest());
+      File stagedFile = file;
+      AttachmentJob job = WeldUtils.getInstanceFromStaticBeanManager(AttachmentIngestionService.class)
+          .submit(fileName, 0, () -> uploadAndDelete(adTabId, recordId, fileName, stagedFile, checksum));
+      // the job owns the temp file from now on
+      file = null;
+      responseVars.put("message", "Attachment queued");
+      responseVars.put("jobId", job.getJobId());
+      responseVars.put("status", job.getStatus().getValue());
+    } catch (AttachmentQueueFullException e) {
+      responseVars.put("error", e.getMessage());
     } catch (Exception e) {
-      log.error("Error storing base64 content to temp file", e);
+      log.error("Error staging attachment", e);
+      responseVars.put("error", e.getMessage());
+    } finally {
+      AttachmentUploader.deleteTempFile(file);
     }
-    return tempFile;
   }
 
-  private void createAttachment(String adTabId, String recordId, String fileName, File file) {
+  private static AttachmentUploadResult uploadAndDelete(String adTabId, String recordId, String fileName, File file,
+      String sha256) {
     try {
-      AttachImplementationManager aim = WeldUtils.getInstanceFromStaticBeanManager(
-          AttachImplementationManager.class);
-      aim.upload(new HashMap<>(), adTabId, recordId, fileName, file);
-    } catch (Exception e) {
-      OBDal.getInstance().rollbackAndClose();
-      throw e;
+      return AttachmentUploader.upload(adTabId, recordId, fileName, file, sha256);
+    } finally {
+      AttachmentUploader.deleteTempFile(file);
+    }
+  }
+
+  private AttachmentUploadResult attach(String adTabId, String recordId, String fileName,
+      String fileContent) throws IOException {
+    File file = null;
+    try {
+      MessageDigest digest = AttachmentUploader.newDigest();
+      file = storeBase64ToTempFile(fileContent, fileName, digest);
+      return AttachmentUploader.upload(adTabId, recordId, fileName, file, Hex.encodeHexString(digest.digest()));
+    } finally {
+      AttachmentUploader.deleteTempFile(file);
+    }
+  }
+
+  /**
+   * Decodes the base64 content into a temp file, updating the digest with the decoded content. The content is read
+   * through a decoding stream with fixed-size buffers, so the decoded file is never held in memory.
+   */
+  static File storeBase64ToTempFile(String fileContent, String fileName,
+      MessageDigest digest) throws IOException {
+    try (InputStream decoder = Base64.getMimeDecoder().wrap(new ReaderInputStream(new StringReader(fileContent),
+        StandardCharsets.US_ASCII, AttachmentUploader.BUFFER_SIZE))) {
+      return AttachmentUploader.copyToTempFile(decoder, fileName, digest);
     }
   }
 
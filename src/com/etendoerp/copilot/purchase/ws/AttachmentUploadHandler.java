@@ -0,0 +1,347 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.weld.WeldUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentIngestionService;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentJob;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentQueueFullException;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploadResult;
+import com.etendoerp.copilot.openapi.purchase.attachments.AttachmentUploader;
+import com.etendoerp.copilot.openapi.purchase.attachments.ChunkedUpload;
+import com.etendoerp.copilot.openapi.purchase.attachments.ChunkedUploadException;
+import com.etendoerp.copilot.openapi.purchase.attachments.ChunkedUploadManager;
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Handles the attachment upload endpoints of the {@link CopilotWSServlet}: the single request binary upload, the
+ * upload by content hash and the initiate, chunk, complete and status steps of the chunked uploads.
+ */
+class AttachmentUploadHandler {
+
+  static final String ERROR_PROPERTY = "error";
+  private static final Logger log = LoggerFactory.getLogger(AttachmentUploadHandler.class);
+  private static final String OCTET_STREAM = "application/octet-stream";
+
+  private AttachmentUploadHandler() {
+  }
+
+  /**
+   * Attaches the binary content of the request body to a record. The body is streamed to a temp file with
+   * fixed-size buffers, decompressing it when it is sent with gzip Content-Encoding, and handed to the attachment
+   * store, unless the record already has an attachment with the same content. The temp file is always deleted.
+   * The adTabId, recordId and fileName query parameters are required; the sha256 parameter, the hex encoded SHA-256
+   * of the file, is verified when it is sent.
+   * With async=true the body is staged and the attachment is queued in the {@link AttachmentIngestionService}: the
+   * response, with a 202 status, carries the job id, and a 503 status is returned when the queue is full.
+   *
+   * @param request
+   *     the HTTP request, with an application/octet-stream body.
+   * @param response
+   *     the HTTP response, a JSON object with the attachment and whether it was deduplicated, or an error.
+   * @throws IOException
+   *     if there is an error writing the response.
+   * @throws JSONException
+   *     if there is an error building the response.
+   */
+  static void handleBinaryAttachment(HttpServletRequest request,
+      HttpServletResponse response) throws IOException, JSONException {
+    String adTabId = request.getParameter("adTabId");
+    String recordId = request.getParameter("recordId");
+    String fileName = request.getParameter("fileName");
+    if (adTabId == null || recordId == null || fileName == null) {
+      writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing required parameters");
+      return;
+    }
+    if (!isOctetStream(request, response)) {
+      return;
+    }
+
+    File file = null;
+    try (InputStream content = openBody(request)) {
+      MessageDigest digest = AttachmentUploader.newDigest();
+      file = AttachmentUploader.copyToTempFile(content, fileName, digest);
+      String checksum = Hex.encodeHexString(digest.digest());
+      String sha256 = request.getParameter("sha256");
+      if (sha256 != null && !StringUtils.equalsIgnoreCase(sha256, checksum)) {
+        writeError(response, HttpServletResponse.SC_BAD_REQUEST, "The checksum of the file does not match");
+        return;
+      }
+      if (StringUtils.equalsIgnoreCase("true", request.getParameter("async"))) {
+        File stagedFile = file;
+        AttachmentJob job = getIngestionService().submit(fileName, 0,
+            () -> uploadAndDelete(adTabId, recordId, fileName, stagedFile, checksum));
+        // the job owns the temp file from now on
+        file = null;
+        writeJson(response, HttpServletResponse.SC_ACCEPTED, job.toJson());
+        return;
+      }
+      AttachmentUploadResult result = AttachmentUploader.upload(adTabId, recordId, fileName, file, checksum);
+      writeJson(response, HttpServletResponse.SC_OK, result.toJson());
+    } catch (AttachmentQueueFullException e) {
+      writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+    } catch (Exception e) {
+      log.error("Error creating attachment", e);
+      writeError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } finally {
+      AttachmentUploader.deleteTempFile(file);
+    }
+  }
+
+  /**
+   * Starts a chunked upload. The body contains the adTabId, recordId and fileName of the attachment, and optionally
+   * its size in bytes.
+   *
+   * @param body
+   *     the body of the request.
+   * @return a WSResult with the status of the new upload, including its uploadId.
+   * @throws JSONException
+   *     if there is an error processing the JSON data.
+   * @throws IOException
+   *     if the upload cannot be staged.
+   */
+  static WSResult handleInitiateUpload(JSONObject body) throws JSONException, IOException {
+    WSResult wsResult = new WSResult();
+    if (!body.has("adTabId") || !body.has("recordId") || !body.has("fileName")) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage("Missing required parameters");
+      return wsResult;
+    }
+    ChunkedUpload upload = getManager().initiate(body.getString("adTabId"), body.getString("recordId"),
+        body.getString("fileName"), body.optLong("size", -1));
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(upload.toStatusJson());
+    return wsResult;
+  }
+
+  /**
+   * Appends the binary content of the request body to a chunked upload. The uploadId and offset query parameters
+   * are required; the sha256 parameter, the hex encoded SHA-256 of the chunk, is verified when it is sent.
+   * A chunk whose offset is already acknowledged is ignored, and a chunk sent ahead of the next expected offset is
+   * rejected with a 409 status. The response always carries the offset of the next chunk, so clients can resume.
+   *
+   * @param request
+   *     the HTTP request, with an application/octet-stream body.
+   * @param response
+   *     the HTTP response, a JSON object with the status of the upload or an error.
+   * @throws IOException
+   *     if there is an error writing the response.
+   * @throws JSONException
+   *     if there is an error building the response.
+   */
+  static void handleUploadChunk(HttpServletRequest request,
+      HttpServletResponse response) throws IOException, JSONException {
+    String uploadId = request.getParameter("uploadId");
+    long offset = NumberUtils.toLong(request.getParameter("offset"), -1);
+    if (uploadId == null || offset < 0) {
+      writeError(response, HttpServletResponse.SC_BAD_REQUEST, "Missing required parameters");
+      return;
+    }
+    if (!isOctetStream(request, response)) {
+      return;
+    }
+    ChunkedUploadManager manager = getManager();
+    try (InputStream content = openBody(request)) {
+      ChunkedUpload upload = manager.appendChunk(uploadId, offset, content, request.getParameter("sha256"));
+      writeJson(response, HttpServletResponse.SC_OK, upload.toStatusJson());
+    } catch (ChunkedUploadException e) {
+      JSONObject result = new JSONObject();
+      result.put(ERROR_PROPERTY, e.getMessage());
+      if (e.getStatus() != HttpServletResponse.SC_NOT_FOUND) {
+        result.put("offset", manager.getUpload(uploadId).getOffset());
+      }
+      writeJson(response, e.getStatus(), result);
+    } catch (Exception e) {
+      log.error("Error storing chunk of upload {}", uploadId, e);
+      writeError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * Completes a chunked upload, attaching the assembled file. The body contains the uploadId and optionally the
+   * sha256 of the whole file, which is verified before attaching it.
+   *
+   * @param body
+   *     the body of the request.
+   * @return a WSResult with the attachment and whether it was deduplicated, or with an error if the upload is not
+   *     complete.
+   * @throws JSONException
+   *     if there is an error processing the JSON data.
+   * @throws IOException
+   *     if there is an error reading the staged file.
+   */
+  static WSResult handleCompleteUpload(JSONObject body) throws JSONException, IOException {
+    WSResult wsResult = new WSResult();
+    AttachmentUploadResult result;
+    try {
+      result = getManager().complete(body.optString("uploadId", null), body.optString("sha256", null));
+    } catch (ChunkedUploadException e) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(e.getMessage());
+      return wsResult;
+    }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(result.toJson());
+    return wsResult;
+  }
+
+  /**
+   * Attaches a file to a record by the SHA-256 of its content, without sending it. If the record already has an
+   * attachment with that content nothing is stored, and if another readable attachment has it, its stored content is
+   * attached to the record. The body contains the adTabId, recordId, fileName and sha256 of the attachment.
+   *
+   * @param body
+   *     the body of the request.
+   * @return a WSResult with the attachment and how it was deduplicated, or with dedup false if the content is not
+   *     stored and the file must be uploaded.
+   * @throws JSONException
+   *     if there is an error processing the JSON data.
+   * @throws IOException
+   *     if there is an error copying the stored content.
+   */
+  static WSResult handleAttachByHash(JSONObject body) throws JSONException, IOException {
+    WSResult wsResult = new WSResult();
+    if (!body.has("adTabId") || !body.has("recordId") || !body.has("fileName") || !body.has("sha256")) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage("Missing required parameters");
+      return wsResult;
+    }
+    AttachmentUploadResult result = AttachmentUploader.uploadStoredContent(body.getString("adTabId"),
+        body.getString("recordId"), body.getString("fileName"), StringUtils.lowerCase(body.getString("sha256")));
+    JSONObject data;
+    if (result != null) {
+      data = result.toJson();
+    } else {
+      data = new JSONObject();
+      data.put(CopilotWSServlet.MESSAGE_RESULT_PROPERTY, "The content is not stored, the file must be uploaded");
+      data.put("dedup", false);
+    }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(data);
+    return wsResult;
+  }
+
+  /**
+   * Returns the status of a chunked upload, with the offset the next chunk must be sent at.
+   *
+   * @param requestParams
+   *     the request parameters, with the uploadId.
+   * @return a WSResult with the status of the upload.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  static WSResult handleUploadStatus(Map<String, String> requestParams) throws JSONException {
+    WSResult wsResult = new WSResult();
+    try {
+      ChunkedUpload upload = getManager().getUpload(requestParams.get("uploadId"));
+      wsResult.setStatus(Status.OK);
+      wsResult.setData(upload.toStatusJson());
+    } catch (ChunkedUploadException e) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(e.getMessage());
+    }
+    return wsResult;
+  }
+
+  /**
+   * Returns the status of an attachment queued with async=true.
+   *
+   * @param requestParams
+   *     the request parameters, with the jobId.
+   * @return a WSResult with the status of the job, and the attachment or the error once it is finished.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  static WSResult handleAttachmentJobStatus(Map<String, String> requestParams) throws JSONException {
+    WSResult wsResult = new WSResult();
+    AttachmentJob job = getIngestionService().getJob(requestParams.get("jobId"));
+    if (job == null) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage("Job not found");
+      return wsResult;
+    }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(job.toJson());
+    return wsResult;
+  }
+
+  /**
+   * Returns the queue depth, the failures and the processing times of the attachments queued with async=true.
+   *
+   * @return a WSResult with the statistics of the AttachmentIngestionService.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  static WSResult handleAttachmentJobStats() throws JSONException {
+    WSResult wsResult = new WSResult();
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(getIngestionService().getStats());
+    return wsResult;
+  }
+
+  private static AttachmentIngestionService getIngestionService() {
+    return WeldUtils.getInstanceFromStaticBeanManager(AttachmentIngestionService.class);
+  }
+
+  private static ChunkedUploadManager getManager() {
+    return WeldUtils.getInstanceFromStaticBeanManager(ChunkedUploadManager.class);
+  }
+
+  private static AttachmentUploadResult uploadAndDelete(String adTabId, String recordId, String fileName, File file,
+      String sha256) {
+    try {
+      return AttachmentUploader.upload(adTabId, recordId, fileName, file, sha256);
+    } finally {
+      AttachmentUploader.deleteTempFile(file);
+    }
+  }
+
+  private static boolean isOctetStream(HttpServletRequest request,
+      HttpServletResponse response) throws IOException, JSONException {
+    if (StringUtils.startsWithIgnoreCase(request.getContentType(), OCTET_STREAM)) {
+      return true;
+    }
+    writeError(response, HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+        "The content type must be " + OCTET_STREAM);
+    return false;
+  }
+
+  private static InputStream openBody(HttpServletRequest request) throws IOException {
+    if (StringUtils.equalsIgnoreCase("gzip", request.getHeader("Content-Encoding"))) {
+      return new GZIPInputStream(request.getInputStream(), AttachmentUploader.BUFFER_SIZE);
+    }
+    return request.getInputStream();
+  }
+
+  private static void writeError(HttpServletResponse response, int status,
+      String message) throws IOException, JSONException {
+    JSONObject result = new JSONObject();
+    result.put(ERROR_PROPERTY, message);
+    writeJson(response, status, result);
+  }
+
+  private static void writeJson(HttpServletResponse response, int status, JSONObject json) throws IOException {
+    response.setStatus(status);
+    response.setContentType("application/json");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.getWriter().write(json.toString());
+  }
+}
@@ -2,49 +2,54 @@ package com.etendoerp.copilot.purchase.ws;
 
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.query.Query;
 import org.openbravo.base.exception.OBException;
-import org.openbravo.base.session.OBPropertiesProvider;
 import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.base.weld.WeldUtils;
 import org.openbravo.dal.core.OBContext;
 import org.openbravo.dal.service.OBDal;
-import org.openbravo.dal.service.OBQuery;
-import org.openbravo.erpCommon.businessUtility.PriceAdjustment;
-import org.openbravo.erpCommon.businessUtility.Tax;
 import org.openbravo.erpCommon.utility.OBMessageUtils;
-import org.openbravo.model.ad.system.Client;
-import org.openbravo.model.common.businesspartner.BusinessPartner;
-import org.openbravo.model.common.enterprise.DocumentType;
-import org.openbravo.model.common.enterprise.Organization;
 import org.openbravo.model.common.order.Order;
 import org.openbravo.model.common.order.OrderLine;
 import org.openbravo.model.common.plm.Product;
-import org.openbravo.model.financialmgmt.payment.PaymentTerm;
-import org.openbravo.model.financialmgmt.tax.TaxRate;
 import org.openbravo.model.pricing.pricelist.PriceList;
-import org.openbravo.model.pricing.pricelist.ProductPrice;
-import org.openbravo.model.project.Project;
-import org.openbravo.service.db.DalConnectionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.etendoerp.copilot.openapi.purchase.context.ContextCache;
+import com.etendoerp.copilot.openapi.purchase.context.ContextCache.SessionContext;
+import com.etendoerp.copilot.openapi.purchase.metrics.EndpointMetrics;
+import com.etendoerp.copilot.openapi.purchase.metrics.RequestRecorder;
+import com.etendoerp.copilot.openapi.purchase.pricing.OrderPriceCalculator;
+import com.etendoerp.copilot.openapi.purchase.pricing.PriceListIndex;
+import com.etendoerp.copilot.openapi.purchase.pricing.PriceListIndex.ProductPriceInfo;
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter.ReadScope;
+import com.etendoerp.copilot.openapi.purchase.search.SimilarityIndexManager;
+import com.etendoerp.copilot.openapi.purchase.search.SimilaritySearchCache;
+import com.etendoerp.copilot.openapi.purchase.search.SimilaritySearchPlan;
+import com.etendoerp.copilot.openapi.purchase.search.SimilaritySearchPlanRegistry;
 import com.smf.securewebservices.service.BaseWebService;
 import com.smf.securewebservices.utils.WSResult;
 import com.smf.securewebservices.utils.WSResult.Status;
@@ -59,6 +64,61 @@ public class CopilotWSServlet extends BaseWebService {
   public static final int MIN_SIM_PERCENT = 30;
   private static final Logger log = LoggerFactory.getLogger(CopilotWSServlet.class);
   public static final String MESSAGE_RESULT_PROPERTY = "message";
+  public static final String SEARCH_MODE_INDEXED = "indexed";
+  public static final String SEARCH_MODE_LEGACY = "legacy";
+  private static final String RECALC_TAXES_SUCCESS = "Taxes recalculated successfully.";
+  private static final String RECALC_TAXES_ERROR = "Error recalculating taxes, Adjust the price and taxes manually.";
+  private static final String MATCH_NOT_SUPPORTED_MESSAGE = "The match search mode is only supported for products";
+  private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+  private static final DateTimeFormatter CONTEXT_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final String[] GET_ENDPOINTS = { "/searchBySimilarity", "/getContext", "/searchIndexStats",
+      "/uploadStatus", "/attachmentJobStatus", "/attachmentJobStats", "/openApiSpec" };
+  private static final String[] POST_ENDPOINTS = { "/calcTaxes", "/searchBySimilarity", "/initiateUpload",
+      "/completeUpload", "/attachByHash", "/createPurchaseOrder", "/attachFile", "/uploadChunk" };
+
+  //@formatter:off
+  /**
+   * Top-K similarity search over the ETCPOPP_SIM_IDX shadow table. It returns the ID, the identifier and the
+   * similarity percent of each hit, so no further query is needed to build the response.
+   */
+  private static final String SIM_SEARCH_TOP_SQL = new StringBuilder()
+      .append("select i.record_id, i.identifier, ")
+      .append(" cast(similarity(i.identifier, :searchTerm) * 100 as numeric) as similarity_percent ")
+      .append(" from etcpopp_sim_idx i ")
+      .append(" where i.tablename = :tableName ")
+      .append(" and i.isactive = 'Y' ")
+      .append(" and i.ad_client_id in (:clientIds) ")
+      .append(" and i.ad_org_id in (:orgIds) ")
+      .append(" and i.identifier % :searchTerm ")
+      .append(" and similarity(i.identifier, :searchTerm) * 100 > :minSimPercent ")
+      .append(" order by i.identifier <-> :searchTerm, i.record_id")
+      .toString();
+
+  /**
+   * Batch version of SIM_SEARCH_TOP_SQL. The search terms of one table are received as a JSON array of
+   * {term, minSimPercent, qty} objects and resolved with a lateral top-K query per term, so the table is searched in
+   * a single statement. Each row carries the 1-based position of its term in the array.
+   */
+  private static final String SIM_SEARCH_TOP_BATCH_SQL = new StringBuilder()
+      .append("select q.ord, i.record_id, i.identifier, i.similarity_percent ")
+      .append(" from json_array_elements(cast(:items as json)) with ordinality as q(item, ord) ")
+      .append(" cross join lateral ( ")
+      .append("   select s.record_id, s.identifier, ")
+      .append("   cast(similarity(s.identifier, q.item ->> 'term') * 100 as numeric) as similarity_percent ")
+      .append("   from etcpopp_sim_idx s ")
+      .append("   where s.tablename = :tableName ")
+      .append("   and s.isactive = 'Y' ")
+      .append("   and s.ad_client_id in (:clientIds) ")
+      .append("   and s.ad_org_id in (:orgIds) ")
+      .append("   and s.identifier % (q.item ->> 'term') ")
+      .append("   and similarity(s.identifier, q.item ->> 'term') * 100 ")
+      .append("   > cast(q.item ->> 'minSimPercent' as integer) ")
+      .append("   order by s.identifier <-> (q.item ->> 'term'), s.record_id ")
+      .append("   limit cast(q.item ->> 'qty' as integer) ")
+      .append(" ) i ")
+      .append(" order by q.ord, i.similarity_percent desc, i.record_id")
+      .toString();
+  //@formatter:on
 
   @Override
   /**
@@ -67,33 +127,55 @@ public class CopilotWSServlet extends BaseWebService {
    * If the path is "/searchBySimilarity", it calls the handleSimSearch method with the request parameters.
    * If the path is "/getContext", it calls the handleGetContext method.
    * If the path is not recognized, it returns a WSResult object with a status of OK and a message indicating that the path is not supported.
-   * If an exception occurs during the execution of the method, it returns a WSResult object with a status of OK and a message containing the exception message.
+   * If an exception occurs during the execution of the method, it returns a WSResult object with a status of
+   * BAD_REQUEST for an {@link OBException} and INTERNAL_SERVER_ERROR otherwise, and the exception message.
+   * Every request is recorded in the {@link EndpointMetrics}, and the failed ones are logged. The reads of the
+   * similarity searches are routed by the {@link ReadReplicaRouter}.
    *
    * @param path The path of the request.
    * @param requestParams A map of request parameters where the key is the parameter name and the value is the parameter value.
    * @return A WSResult object containing the status of the operation and any data returned by the operation.
    * @throws Exception If an error occurs during the execution of the method.
    */ public WSResult get(String path, Map<String, String> requestParams) throws Exception {
-    try {
-      if (StringUtils.equalsIgnoreCase("/searchBySimilarity", path)) {
-        return handleSimSearch(requestParams);
-      } else if (StringUtils.equalsIgnoreCase("/getContext", path)) {
-        return handleGetContext();
-      } else {
-        WSResult wsResult = new WSResult();
-        wsResult.setStatus(Status.OK);
-        var data = new JSONObject();
-        data.put(MESSAGE_RESULT_PROPERTY, "The path is not supported");
-        wsResult.setData(data);
-        return wsResult;
-      }
+    RequestRecorder recorder = getMetrics().start("GET", metricsEndpoint(path, GET_ENDPOINTS));
+    boolean readOnly = StringUtils.equalsIgnoreCase("/searchBySimilarity", path);
+    try (ReadScope readScope = readOnly ? getRouter().openReadScope() : null) {
+      WSResult wsResult = handleGet(path, requestParams);
+      EndpointMetrics.finish(recorder, wsResult);
+      return wsResult;
     } catch (Exception e) {
+      log.error("Error handling GET {}", path, e);
+      recorder.finish(true, 0);
       WSResult wsResult = new WSResult();
-      wsResult.setStatus(Status.OK);
+      // OBExceptions report invalid parameters or unknown records, anything else is a failure of the service
+      wsResult.setStatus(e instanceof OBException ? Status.BAD_REQUEST : Status.INTERNAL_SERVER_ERROR);
       JSONObject errorJson = new JSONObject();
       errorJson.put("status", "error");
-      String errmsg = String.format(e.getMessage());
-      errorJson.put(MESSAGE_RESULT_PROPERTY, errmsg);
+      errorJson.put(MESSAGE_RESULT_PROPERTY, e.getMessage());
+      wsResult.setData(errorJson);
+      return wsResult;
+    }
+  }
+
+  private WSResult handleGet(String path, Map<String, String> requestParams) throws Exception {
+    if (StringUtils.equalsIgnoreCase("/searchBySimilarity", path)) {
+      return handleSimSearch(requestParams);
+    } else if (StringUtils.equalsIgnoreCase("/getContext", path)) {
+      return handleGetContext();
+    } else if (StringUtils.equalsIgnoreCase("/searchIndexStats", path)) {
+      return handleSearchIndexStats();
+    } else if (StringUtils.equalsIgnoreCase("/uploadStatus", path)) {
+      return AttachmentUploadHandler.handleUploadStatus(requestParams);
+    } else if (StringUtils.equalsIgnoreCase("/attachmentJobStatus", path)) {
+      return AttachmentUploadHandler.handleAttachmentJobStatus(requestParams);
+    } else if (StringUtils.equalsIgnoreCase("/attachmentJobStats", path)) {
+      return AttachmentUploadHandler.handleAttachmentJobStats();
+    } else {
+      WSResult wsResult = new WSResult();
+      wsResult.setStatus(Status.OK);
+      var data = new JSONObject();
+      data.put(MESSAGE_RESULT_PROPERTY, "The path is not supported");
+      wsResult.setData(data);
       return wsResult;
     }
   }
@@ -101,6 +183,8 @@ public class CopilotWSServlet extends BaseWebService {
   /**
    * Handles the retrieval of context information from the system.
    * It includes details like the current organization, client, warehouse, and the current date.
+   * Everything but the current date is read from the {@link ContextCache}, so the legal entity is only resolved the
+   * first time a session asks for it.
    *
    * @return a WSResult object containing the context information.
    * @throws JSONException
@@ -110,81 +194,334 @@ public class CopilotWSServlet extends BaseWebService {
     WSResult wsResult = new WSResult();
     wsResult.setStatus(Status.OK);
     JSONObject context = new JSONObject();
-    OBContext obContext = OBContext.getOBContext();
-    Client client = obContext.getCurrentClient();
-    Organization org = obContext.getCurrentOrganization();
-    Organization legalEntity = obContext.getOrganizationStructureProvider(client.getId()).getLegalEntity(org);
-    if (legalEntity == null) {
-      throw new OBException("Legal Entity not found");
-    }
-    context.put("legalEntity", legalEntity.getId());
-    context.put("warehouse", obContext.getWarehouse().getId());
-    context.put("currentOrganization", org.getId());
-    //get Date in the format yyyy-MM-dd HH:mm:ss
-    context.put("currentDate", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+    SessionContext sessionContext = getContextCache().get(OBContext.getOBContext());
+    context.put("legalEntity", sessionContext.getLegalEntityId());
+    context.put("warehouse", sessionContext.getWarehouseId());
+    context.put("currentOrganization", sessionContext.getOrganizationId());
+    context.put("currentDate", LocalDateTime.now().format(CONTEXT_DATE_FORMAT));
     wsResult.setData(context);
     return wsResult;
   }
 
+  /**
+   * Returns the state of the in-memory similarity index: whether it is enabled and loaded, the number of indexed
+   * records and its approximate memory footprint, in total and per table and client. It also includes the hit, miss
+   * and eviction counters of the similarity search cache.
+   *
+   * @return a WSResult object containing the statistics of the index.
+   * @throws JSONException
+   *     if there is an error creating the JSON response.
+   */
+  private WSResult handleSearchIndexStats() throws JSONException {
+    WSResult wsResult = new WSResult();
+    wsResult.setStatus(Status.OK);
+    JSONObject stats = WeldUtils.getInstanceFromStaticBeanManager(SimilarityIndexManager.class).getStats();
+    stats.put("cache", WeldUtils.getInstanceFromStaticBeanManager(SimilaritySearchCache.class).getStats());
+    wsResult.setData(stats);
+    return wsResult;
+  }
+
   /**
    * This method handles the search for similar entities based on the provided search term and entity name.
    * It first retrieves the search term and entity name from the request parameters.
-   * It then creates a map of entity names to their corresponding classes.
-   * If the entity name is not provided or is not in the map, it returns an error message.
-   * If the entity name is valid, it constructs a where clause for the search query based on the minimum similarity percent.
-   * It then calls the searchEntities method to perform the search and returns the results.
+   * It then looks up the precompiled search plan of the entity in the SimilaritySearchPlanRegistry.
+   * If the entity name is not provided or is not registered, it returns an error message.
+   * If the entity name is valid, the search is answered from the similarity search cache or, on a miss, by the
+   * in-memory similarity index when it is enabled and loaded, and otherwise resolved against the trigram indexed
+   * ETCPOPP_SIM_IDX table. When the searchMode parameter is "legacy", or the entity is not kept in ETCPOPP_SIM_IDX,
+   * it calls the searchEntities method, which computes the similarity of every record. When it is "match", the
+   * products are matched by search key, UPC, vendor product number and name in a single ranked query.
+   * With the businessPartnerId parameter, the products are first searched in the catalog of the vendor, see
+   * {@link VendorCatalogSearch}, and in all the products only if none of the catalog is similar enough.
+   * With the cursor or the pageSize parameter, it returns a page of results and the cursor of the next one, see
+   * {@link SimilaritySearchPageHandler}.
    *
    * @param requestParams
    *     A map of request parameters where the key is the parameter name and the value is the parameter value.
    * @return A WSResult object containing the status of the operation and the search results.
    * @throws JSONException
    *     If an error occurs while processing the JSON data.
-   * @throws NoSuchFieldException
-   *     If a field with the specified name is not found.
-   * @throws IllegalAccessException
-   *     If the currently executing method does not have access to the definition of the specified field.
    */
-  public static WSResult handleSimSearch(
-      Map<String, String> requestParams) throws JSONException, NoSuchFieldException, IllegalAccessException {
+  public static WSResult handleSimSearch(Map<String, String> requestParams) throws JSONException {
     String searchTerm = requestParams.get("searchTerm");
     String entityName = requestParams.get("entityName");
     Result result = new Result(searchTerm, entityName);
     int qtyResults = Integer.parseInt(requestParams.getOrDefault("qtyResults", "1"));
     String minSimmilarityPercent = requestParams.getOrDefault("minSimPercent", String.valueOf(MIN_SIM_PERCENT));
 
-    HashMap<String, Class<? extends BaseOBObject>> entityNameClassMap = new HashMap<>();
-    entityNameClassMap.put("Product", Product.class);
-    entityNameClassMap.put("BusinessPartner", BusinessPartner.class);
-    entityNameClassMap.put("PaymentTerm", PaymentTerm.class);
-    entityNameClassMap.put("DocumentType", DocumentType.class);
+    SimilaritySearchPlanRegistry planRegistry = WeldUtils.getInstanceFromStaticBeanManager(
+        SimilaritySearchPlanRegistry.class);
+    SimilaritySearchPlan plan = planRegistry.getPlan(result.entityName);
 
-    //if entityName is not provided or not in the map, return a message with error
-    if (result.entityName == null || !entityNameClassMap.containsKey(result.entityName)) {
+    //if entityName is not provided or not registered, return a message with error
+    if (plan == null) {
       WSResult wsResult = new WSResult();
       wsResult.setStatus(Status.OK);
-      JSONObject errorJson = new JSONObject();
-      errorJson.put("status", "error");
-      String entityList = entityNameClassMap.keySet().stream().reduce("", (a, b) -> a + ", " + b);
-      String errmsg = String.format(OBMessageUtils.messageBD("ETCPOPP_SearchEntityNotSupported"), entityList);
+      wsResult.setData(entityNotSupportedJson(planRegistry));
+      return wsResult;
+    }
+    String searchMode = requestParams.getOrDefault("searchMode", SEARCH_MODE_INDEXED);
+    if (ProductMatchHandler.isMatchMode(searchMode)) {
+      return handleProductMatch(result, Integer.parseInt(minSimmilarityPercent), qtyResults);
+    }
+    if (SimilaritySearchPageHandler.isPaged(requestParams)) {
+      return SimilaritySearchPageHandler.handlePage(plan, requestParams);
+    }
+    String businessPartnerId = requestParams.get("businessPartnerId");
+    if (VendorCatalogSearch.applies(result.entityName, businessPartnerId)) {
+      JSONArray vendorResults = VendorCatalogSearch.search(businessPartnerId, result.searchTerm,
+          Integer.parseInt(minSimmilarityPercent), qtyResults);
+      if (vendorResults.length() > 0) {
+        WSResult wsResult = new WSResult();
+        wsResult.setStatus(Status.OK);
+        wsResult.setData(vendorResults);
+        return wsResult;
+      }
+      // nothing in the catalog of the vendor is similar enough, all the products are searched
+    }
 
-      errorJson.put(MESSAGE_RESULT_PROPERTY, errmsg);
+    WSResult wsResult = new WSResult();
+    List<Object[]> rows;
+    if (StringUtils.equalsIgnoreCase(SEARCH_MODE_LEGACY, searchMode)) {
+      rows = searchEntities(plan, result.searchTerm, Integer.parseInt(minSimmilarityPercent), qtyResults);
+    } else {
+      rows = searchCached(plan, result.searchTerm, Integer.parseInt(minSimmilarityPercent), qtyResults);
+    }
+    JSONArray arrayResponse = new JSONArray();
+    for (Object[] row : rows) {
+      arrayResponse.put(toSearchResultJson((String) row[0], (String) row[1], (BigDecimal) row[2]));
+    }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(arrayResponse);
+    return wsResult;
+  }
 
-      wsResult.setData(errorJson);
+  /**
+   * Answers a search in the "match" mode, which is only supported for products, see {@link ProductMatchHandler}.
+   */
+  private static WSResult handleProductMatch(Result result, int minSimPercent, int qtyResults) throws JSONException {
+    WSResult wsResult = new WSResult();
+    if (!ProductMatchHandler.supports(result.entityName)) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(MATCH_NOT_SUPPORTED_MESSAGE);
       return wsResult;
     }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(ProductMatchHandler.match(result.searchTerm, minSimPercent, qtyResults));
+    return wsResult;
+  }
 
+  /**
+   * Handles a batch of similarity searches, so the entities referenced by a whole document can be resolved in one
+   * call. The body must contain an "items" array, each item with the same parameters as the GET searchBySimilarity
+   * endpoint: searchTerm, entityName and, optionally, qtyResults, minSimPercent and searchMode "match" for the
+   * products, which are then matched with {@link ProductMatchHandler}, and businessPartnerId, to search the products
+   * in the catalog of the vendor first.
+   * The items are grouped by entity, so each table is searched once: the items found in the similarity search cache
+   * are answered from it, and the rest with the in-memory similarity index when it is loaded, or with a single
+   * lateral query over ETCPOPP_SIM_IDX otherwise. The response has one element per item, in
+   * the same order as the request, with the search term, the entity name and either the results or an error.
+   *
+   * @param body
+   *     the body of the request, with the "items" array.
+   * @return a WSResult object containing the results of every search.
+   * @throws JSONException
+   *     If an error occurs while processing the JSON data.
+   */
+  private static WSResult handleSimSearchBatch(JSONObject body) throws JSONException {
     WSResult wsResult = new WSResult();
-    JSONArray arrayResponse;
-    String whereOrderByClause2 = String.format(
-        " as p where  etcpopp_sim_search(:tableName, p.id, :searchTerm) > %s order by etcpopp_sim_search(:tableName, p.id, :searchTerm) desc ",
-        Integer.parseInt(minSimmilarityPercent));
-    Class<? extends BaseOBObject> entityClass = entityNameClassMap.get(result.entityName);
-    arrayResponse = searchEntities(entityClass, whereOrderByClause2, result.searchTerm, qtyResults);
+    JSONArray items = body.optJSONArray("items");
+    if (items == null) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage("The body must contain an items array");
+      return wsResult;
+    }
+    SimilaritySearchPlanRegistry planRegistry = WeldUtils.getInstanceFromStaticBeanManager(
+        SimilaritySearchPlanRegistry.class);
+    JSONObject[] responseItems = new JSONObject[items.length()];
+    Map<String, List<SearchItem>> itemsByEntity = new LinkedHashMap<>();
+    for (int i = 0; i < items.length(); i++) {
+      JSONObject item = items.getJSONObject(i);
+      String entityName = item.optString("entityName", null);
+      String searchTerm = item.optString("searchTerm", null);
+      JSONObject responseItem = new JSONObject();
+      responseItem.put("searchTerm", searchTerm);
+      responseItem.put("entityName", entityName);
+      responseItems[i] = responseItem;
+      if (planRegistry.getPlan(entityName) == null) {
+        JSONObject errorJson = entityNotSupportedJson(planRegistry);
+        responseItem.put("status", errorJson.get("status"));
+        responseItem.put(MESSAGE_RESULT_PROPERTY, errorJson.get(MESSAGE_RESULT_PROPERTY));
+        continue;
+      }
+      if (ProductMatchHandler.isMatchMode(item.optString("searchMode"))) {
+        if (ProductMatchHandler.supports(entityName)) {
+          responseItem.put("results", ProductMatchHandler.match(searchTerm, item.optInt("minSimPercent",
+              MIN_SIM_PERCENT), item.optInt("qtyResults", 1)));
+        } else {
+          responseItem.put("status", "error");
+          responseItem.put(MESSAGE_RESULT_PROPERTY, MATCH_NOT_SUPPORTED_MESSAGE);
+        }
+        continue;
+      }
+      String businessPartnerId = item.optString("businessPartnerId", null);
+      if (VendorCatalogSearch.applies(entityName, businessPartnerId)) {
+        JSONArray vendorResults = VendorCatalogSearch.search(businessPartnerId, searchTerm,
+            item.optInt("minSimPercent", MIN_SIM_PERCENT), item.optInt("qtyResults", 1));
+        if (vendorResults.length() > 0) {
+          responseItem.put("results", vendorResults);
+          continue;
+        }
+      }
+      itemsByEntity.computeIfAbsent(entityName, k -> new ArrayList<>()).add(
+          new SearchItem(i, StringUtils.trim(searchTerm), item.optInt("minSimPercent", MIN_SIM_PERCENT),
+              item.optInt("qtyResults", 1)));
+    }
+
+    SimilarityIndexManager memoryIndex = WeldUtils.getInstanceFromStaticBeanManager(SimilarityIndexManager.class);
+    SimilaritySearchCache cache = WeldUtils.getInstanceFromStaticBeanManager(SimilaritySearchCache.class);
+    OBContext obContext = OBContext.getOBContext();
+    String[] clientIds = obContext.getReadableClients();
+    String[] orgIds = obContext.getReadableOrganizations();
+    for (Map.Entry<String, List<SearchItem>> entityItems : itemsByEntity.entrySet()) {
+      SimilaritySearchPlan plan = planRegistry.getPlan(entityItems.getKey());
+      String tableName = plan.getTableName();
+      long tableVersion = cache.currentVersion(tableName);
+      Map<Integer, List<Object[]>> rowsByPosition = new HashMap<>();
+      Map<Integer, String> cacheKeys = new HashMap<>();
+      List<SearchItem> pendingItems = new ArrayList<>();
+      for (SearchItem searchItem : entityItems.getValue()) {
+        String cacheKey = cache.buildKey(clientIds, orgIds, tableName, searchItem.searchTerm, searchItem.qtyResults,
+            searchItem.minSimPercent);
+        List<Object[]> cachedRows = cache.get(tableName, cacheKey);
+        if (cachedRows != null) {
+          rowsByPosition.put(searchItem.position, cachedRows);
+        } else {
+          cacheKeys.put(searchItem.position, cacheKey);
+          pendingItems.add(searchItem);
+        }
+      }
+      if (!pendingItems.isEmpty()) {
+        Map<Integer, List<Object[]>> foundRows;
+        if (plan.isIndexed() && !memoryIndex.isReady()) {
+          foundRows = searchEntitiesIndexedBatch(tableName, pendingItems);
+        } else {
+          foundRows = new HashMap<>();
+          for (SearchItem searchItem : pendingItems) {
+            foundRows.put(searchItem.position, plan.isIndexed()
+                ? memoryIndex.search(tableName, searchItem.searchTerm, searchItem.minSimPercent,
+                searchItem.qtyResults, clientIds, orgIds)
+                : searchEntities(plan, searchItem.searchTerm, searchItem.minSimPercent, searchItem.qtyResults));
+          }
+        }
+        for (SearchItem searchItem : pendingItems) {
+          List<Object[]> rows = foundRows.getOrDefault(searchItem.position, new ArrayList<>());
+          if (!ReadReplicaRouter.isRouted()) {
+            cache.put(tableName, cacheKeys.get(searchItem.position), tableVersion, rows);
+          }
+          rowsByPosition.put(searchItem.position, rows);
+        }
+      }
+      for (SearchItem searchItem : entityItems.getValue()) {
+        JSONArray results = new JSONArray();
+        for (Object[] row : rowsByPosition.getOrDefault(searchItem.position, new ArrayList<>())) {
+          results.put(toSearchResultJson((String) row[0], (String) row[1], (BigDecimal) row[2]));
+        }
+        responseItems[searchItem.position].put("results", results);
+      }
+    }
+
+    JSONArray arrayResponse = new JSONArray();
+    for (JSONObject responseItem : responseItems) {
+      arrayResponse.put(responseItem);
+    }
     wsResult.setStatus(Status.OK);
     wsResult.setData(arrayResponse);
     return wsResult;
   }
 
+  /**
+   * Runs a similarity search, going through the similarity search cache. On a cache miss, entities kept in
+   * ETCPOPP_SIM_IDX are searched with the in-memory similarity index when it is loaded, or with the ETCPOPP_SIM_IDX
+   * table otherwise; the rest of the entities compute the similarity of every record. The result is stored in the
+   * cache.
+   *
+   * @param plan
+   *     The search plan of the entity.
+   * @param searchTerm
+   *     The search term to be used in the similarity search.
+   * @param minSimPercent
+   *     The minimum similarity percent a record must reach to be returned.
+   * @param qtyResults
+   *     The maximum number of results to be returned by the search.
+   * @return A list of rows with the ID, the identifier and the similarity percent of each hit, sorted from the most
+   *     similar one.
+   */
+  private static List<Object[]> searchCached(SimilaritySearchPlan plan, String searchTerm, int minSimPercent,
+      int qtyResults) {
+    String tableName = plan.getTableName();
+    OBContext obContext = OBContext.getOBContext();
+    String[] clientIds = obContext.getReadableClients();
+    String[] orgIds = obContext.getReadableOrganizations();
+    SimilaritySearchCache cache = WeldUtils.getInstanceFromStaticBeanManager(SimilaritySearchCache.class);
+    String cacheKey = cache.buildKey(clientIds, orgIds, tableName, searchTerm, qtyResults, minSimPercent);
+    List<Object[]> rows = cache.get(tableName, cacheKey);
+    if (rows != null) {
+      return rows;
+    }
+    long tableVersion = cache.currentVersion(tableName);
+    SimilarityIndexManager memoryIndex = WeldUtils.getInstanceFromStaticBeanManager(SimilarityIndexManager.class);
+    if (!plan.isIndexed()) {
+      rows = searchEntities(plan, searchTerm, minSimPercent, qtyResults);
+    } else if (memoryIndex.isReady()) {
+      rows = memoryIndex.search(tableName, searchTerm, minSimPercent, qtyResults, clientIds, orgIds);
+    } else {
+      rows = searchEntitiesIndexed(tableName, searchTerm, minSimPercent, qtyResults);
+    }
+    // a lagging replica could cache results older than the last invalidation, they are not shared
+    if (!ReadReplicaRouter.isRouted()) {
+      cache.put(tableName, cacheKey, tableVersion, rows);
+    }
+    return rows;
+  }
+
+  /**
+   * Builds the error returned when the requested entity is not supported by the similarity search.
+   *
+   * @param planRegistry
+   *     the registry of the supported entities.
+   * @return a JSONObject with the error status and message.
+   * @throws JSONException
+   *     If an error occurs while processing the JSON data.
+   */
+  private static JSONObject entityNotSupportedJson(SimilaritySearchPlanRegistry planRegistry) throws JSONException {
+    JSONObject errorJson = new JSONObject();
+    errorJson.put("status", "error");
+    String entityList = planRegistry.getPlans().stream().map(SimilaritySearchPlan::getName).reduce("",
+        (a, b) -> a + ", " + b);
+    String errmsg = String.format(OBMessageUtils.messageBD("ETCPOPP_SearchEntityNotSupported"), entityList);
+
+    errorJson.put(MESSAGE_RESULT_PROPERTY, errmsg);
+    return errorJson;
+  }
+
+  /**
+   * One search of a batch request, with its position in the request.
+   */
+  private static class SearchItem {
+    private final int position;
+    private final String searchTerm;
+    private final int minSimPercent;
+    private final int qtyResults;
+
+    private SearchItem(int position, String searchTerm, int minSimPercent, int qtyResults) {
+      this.position = position;
+      this.searchTerm = searchTerm;
+      this.minSimPercent = minSimPercent;
+      this.qtyResults = qtyResults;
+    }
+  }
+
   /**
    * This is a helper class used to encapsulate the search term and entity name into a single object.
    * It is used in the handleSimSearch method to simplify the handling of these two parameters.
@@ -217,73 +554,355 @@ public class CopilotWSServlet extends BaseWebService {
 
   /**
    * This method is used to search for entities that are similar to the provided search term.
-   * It creates an OBQuery object for the specified entity class and sets the where clause and parameters for the query.
-   * The query is executed and the results are converted into a JSONArray of JSONObjects.
-   * Each JSONObject contains the ID and name of the entity and the similarity percent between the entity and the search term.
+   * It computes the similarity of every record of the entity, so it does not benefit from the trigram index. It is
+   * used by the "legacy" search mode and for the entities that are not kept in ETCPOPP_SIM_IDX. The query is the
+   * precompiled HQL of the search plan, which selects the entity together with its similarity, so the ID, identifier
+   * and similarity percent of every hit are obtained with a single query. As the query is not an OBQuery, the
+   * client, organization and active filters are applied explicitly.
    *
-   * @param <T>
-   *     The type of the entity to be searched. It must be a subclass of BaseOBObject.
-   * @param entityClass
-   *     The class of the entity to be searched.
-   * @param whereOrderByClause2
-   *     The where clause for the search query.
+   * @param plan
+   *     The search plan of the entity.
    * @param searchTerm
    *     The search term to be used in the similarity search.
+   * @param minSimPercent
+   *     The minimum similarity percent a record must reach to be returned.
    * @param qtyResults
    *     The maximum number of results to be returned by the search.
-   * @return A JSONArray of JSONObjects, each representing a search result.
+   * @return A list of rows with the ID, the identifier and the similarity percent of each hit, sorted from the most
+   *     similar one.
+   */
+  private static List<Object[]> searchEntities(SimilaritySearchPlan plan, String searchTerm, int minSimPercent,
+      int qtyResults) {
+    OBContext obContext = OBContext.getOBContext();
+    Query<Object[]> query = ReadReplicaRouter.getReadDal().getSession().createQuery(plan.getScanHql(), Object[].class)
+        .setParameter("searchTerm", searchTerm)
+        .setParameter("minSimPercent", BigDecimal.valueOf(minSimPercent))
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations())
+        .setMaxResults(qtyResults);
+    if (plan.scanUsesTableName()) {
+      query.setParameter("tableName", plan.getTableName());
+    }
+    List<Object[]> hits = query.list();
+    List<Object[]> rows = new ArrayList<>(hits.size());
+    for (Object[] hit : hits) {
+      BaseOBObject entity = (BaseOBObject) hit[0];
+      rows.add(new Object[] { entity.getId(), entity.getIdentifier(), hit[1] });
+    }
+    return rows;
+  }
+
+  /**
+   * Searches for entities similar to the provided search term using the ETCPOPP_SIM_IDX shadow table.
+   * The shadow table keeps the identifier of every record, maintained by database triggers, with a trigram index on
+   * it. The query filters the candidates with the pg_trgm % operator, so the index can be used, orders them by
+   * trigram distance and returns the ID, identifier and similarity percent of the top hits in a single round trip,
+   * with every value bound as a parameter.
+   *
+   * @param tableName
+   *     The lowercased name of the table of the entity.
+   * @param searchTerm
+   *     The search term to be used in the similarity search.
+   * @param minSimPercent
+   *     The minimum similarity percent a record must reach to be returned.
+   * @param qtyResults
+   *     The maximum number of results to be returned by the search.
+   * @return A list of rows with the ID, the identifier and the similarity percent of each hit, sorted from the most
+   *     similar one.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Object[]> searchEntitiesIndexed(String tableName, String searchTerm, int minSimPercent,
+      int qtyResults) {
+    OBContext obContext = OBContext.getOBContext();
+    Session session = ReadReplicaRouter.getReadDal().getSession();
+
+    // The % operator compares against pg_trgm.similarity_threshold, set it only for the current transaction
+    session.createNativeQuery("select set_config('pg_trgm.similarity_threshold', :threshold, true)")
+        .setParameter("threshold", String.valueOf(minSimPercent / 100.0))
+        .uniqueResult();
+    return session.createNativeQuery(SIM_SEARCH_TOP_SQL)
+        .setParameter("tableName", tableName)
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations())
+        .setParameter("searchTerm", StringUtils.trim(searchTerm))
+        .setParameter("minSimPercent", minSimPercent)
+        .setMaxResults(qtyResults)
+        .list();
+  }
+
+  /**
+   * Resolves several similarity searches over the same table with a single query on the ETCPOPP_SIM_IDX shadow
+   * table. The pg_trgm threshold used by the % operator is set to the lowest minimum similarity of the searches, and
+   * each search then applies its own minimum and number of results.
+   *
+   * @param tableName
+   *     The lowercased name of the table of the entity.
+   * @param searchItems
+   *     The searches to resolve.
+   * @return The rows found for every search, with the ID, the identifier and the similarity percent of each hit,
+   *     by the position of the search in the request.
    * @throws JSONException
    *     If an error occurs while processing the JSON data.
-   * @throws NoSuchFieldException
-   *     If a field with the specified name is not found.
-   * @throws IllegalAccessException
-   *     If the currently executing method does not have access to the definition of the specified field.
    */
-  private static <T extends BaseOBObject> JSONArray searchEntities(Class<T> entityClass, String whereOrderByClause2,
-      String searchTerm, int qtyResults) throws JSONException, NoSuchFieldException, IllegalAccessException {
-
-    OBQuery<T> searchQuery = OBDal.getInstance().createQuery(entityClass, whereOrderByClause2);
-    Field tableNameField = entityClass.getField("TABLE_NAME");
-    String tableName = (String) tableNameField.get(null);
-    searchQuery.setNamedParameter("tableName", StringUtils.lowerCase(tableName));
-    searchQuery.setNamedParameter("searchTerm", searchTerm);
-    searchQuery.setMaxResult(qtyResults);
-    var resultList = searchQuery.list();
-    JSONArray arrayResponse = new JSONArray();
-    for (T resultOBJ : resultList) {
-      JSONObject searchResultJson = new JSONObject();
-      searchResultJson.put("id", resultOBJ.getId());
-      searchResultJson.put("name", resultOBJ.getIdentifier());
-      BigDecimal percent = calcSimilarityPercent((String) resultOBJ.getId(), searchTerm, tableName);
-      searchResultJson.put("similarity_percent", percent.toString() + "%");
-      arrayResponse.put(searchResultJson);
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, List<Object[]>> searchEntitiesIndexedBatch(String tableName,
+      List<SearchItem> searchItems) throws JSONException {
+    JSONArray queryItems = new JSONArray();
+    int minThreshold = 100;
+    for (SearchItem searchItem : searchItems) {
+      JSONObject queryItem = new JSONObject();
+      queryItem.put("term", searchItem.searchTerm);
+      queryItem.put("minSimPercent", searchItem.minSimPercent);
+      queryItem.put("qty", searchItem.qtyResults);
+      queryItems.put(queryItem);
+      minThreshold = Math.min(minThreshold, searchItem.minSimPercent);
     }
-    return arrayResponse;
+    OBContext obContext = OBContext.getOBContext();
+    Session session = ReadReplicaRouter.getReadDal().getSession();
+    session.createNativeQuery("select set_config('pg_trgm.similarity_threshold', :threshold, true)")
+        .setParameter("threshold", String.valueOf(Math.max(minThreshold, 0) / 100.0))
+        .uniqueResult();
+    List<Object[]> rows = session.createNativeQuery(SIM_SEARCH_TOP_BATCH_SQL)
+        .setParameter("items", queryItems.toString())
+        .setParameter("tableName", tableName)
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations())
+        .list();
+
+    Map<Integer, List<Object[]>> rowsByPosition = new HashMap<>();
+    for (Object[] row : rows) {
+      SearchItem searchItem = searchItems.get(((Number) row[0]).intValue() - 1);
+      rowsByPosition.computeIfAbsent(searchItem.position, k -> new ArrayList<>()).add(
+          new Object[] { row[1], row[2], row[3] });
+    }
+    return rowsByPosition;
   }
 
   /**
-   * Calculates the similarity percentage between a provided ID and a search term for a specific table.
+   * Builds the JSON representation of a search result.
    *
    * @param id
-   *     the ID of the entity.
-   * @param searchTerm
-   *     the search term to compare against.
-   * @param tableName
-   *     the name of the table where the entity belongs.
-   * @return the similarity percentage as a BigDecimal.
+   *     The ID of the entity found by the search.
+   * @param identifier
+   *     The identifier of the entity.
+   * @param similarityPercent
+   *     The similarity percent between the entity and the search term.
+   * @return a JSONObject representing the search result.
+   * @throws JSONException
+   *     If an error occurs while processing the JSON data.
+   */
+  static JSONObject toSearchResultJson(String id, String identifier,
+      BigDecimal similarityPercent) throws JSONException {
+    JSONObject searchResultJson = new JSONObject();
+    searchResultJson.put("id", id);
+    searchResultJson.put("name", identifier);
+    searchResultJson.put("similarity_percent",
+        similarityPercent.setScale(4, RoundingMode.HALF_UP).toString() + "%");
+    return searchResultJson;
+  }
+
+  /**
+   * Handles the POST requests whose body is not JSON. If the path matches "/attachFile", the body is the binary
+   * content of a file to attach, and if it matches "/uploadChunk", it is a chunk of a chunked upload; the rest of
+   * the requests are handled by the post method. The binary requests are recorded in the {@link EndpointMetrics},
+   * as errors when they are answered with a 4xx or 5xx status. The conversation of the request is set in the
+   * {@link ReadReplicaRouter} while it is handled.
+   *
+   * @param path
+   *     the path of the POST request.
+   * @param request
+   *     the HTTP request.
+   * @param response
+   *     the HTTP response.
+   * @throws Exception
+   *     if an error occurs during execution.
+   */
+  @Override
+  public void doPost(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
+    getRouter().enterConversation(request);
+    try {
+      handleRawPost(path, request, response);
+    } finally {
+      getRouter().leaveConversation();
+    }
+  }
+
+  private void handleRawPost(String path, HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
+    boolean attachFile = StringUtils.equalsIgnoreCase("/attachFile", path);
+    if (!attachFile && !StringUtils.equalsIgnoreCase("/uploadChunk", path)) {
+      super.doPost(path, request, response);
+      return;
+    }
+    RequestRecorder recorder = getMetrics().start("POST", metricsEndpoint(path, POST_ENDPOINTS));
+    boolean error = true;
+    try {
+      if (attachFile) {
+        AttachmentUploadHandler.handleBinaryAttachment(request, response);
+      } else {
+        AttachmentUploadHandler.handleUploadChunk(request, response);
+      }
+      error = response.getStatus() >= HttpServletResponse.SC_BAD_REQUEST;
+    } finally {
+      recorder.finish(error, error ? 0 : 1);
+    }
+  }
+
+  /**
+   * Handles the GET requests answered with something else than JSON. If the path matches "/metrics", it returns the
+   * metrics of the endpoints in the Prometheus text format. If it matches "/getContext", it sets the ETag of the
+   * context and answers 304 Not Modified when the request already has it. If it matches "/openApiSpec", it returns a
+   * precomputed slice of the OpenAPI specification of the module. If it matches "/searchBySimilarity" with the stream
+   * parameter, it writes the results as they are read. The rest of the requests are handled by the get method. The
+   * conversation of the request is set in the {@link ReadReplicaRouter} while it is handled.
+   *
+   * @param path
+   *     the path of the GET request.
+   * @param request
+   *     the HTTP request.
+   * @param response
+   *     the HTTP response.
+   * @throws Exception
+   *     if an error occurs during execution.
+   */
+  @Override
+  public void doGet(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
+    getRouter().enterConversation(request);
+    try {
+      handleRawGet(path, request, response);
+    } finally {
+      getRouter().leaveConversation();
+    }
+  }
+
+  private void handleRawGet(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
+    if (StringUtils.equalsIgnoreCase("/getContext", path) && handleConditionalGetContext(request, response)) {
+      return;
+    }
+    if (StringUtils.equalsIgnoreCase("/metrics", path)) {
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType(PROMETHEUS_CONTENT_TYPE);
+      response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+      response.getWriter().write(getMetrics().toPrometheus());
+      return;
+    }
+    if (StringUtils.equalsIgnoreCase("/searchBySimilarity", path) && handleStreamedSimSearch(request, response)) {
+      return;
+    }
+    if (StringUtils.equalsIgnoreCase("/openApiSpec", path)) {
+      RequestRecorder recorder = getMetrics().start("GET", "/openApiSpec");
+      int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+      try {
+        status = OpenApiSpecHandler.handleGetSpec(request, response);
+      } finally {
+        boolean error = status >= HttpServletResponse.SC_BAD_REQUEST;
+        recorder.finish(error, status == HttpServletResponse.SC_OK ? 1 : 0);
+      }
+      return;
+    }
+    super.doGet(path, request, response);
+  }
+
+  /**
+   * Sets the ETag of the context of the session on the response and, if the request already has it in its
+   * If-None-Match header, answers 304 Not Modified without a body. The ETag covers the current day, so the date of a
+   * reused context is never from a previous day.
+   *
+   * @return true if the request was answered, false if the context must be returned.
+   */
+  private boolean handleConditionalGetContext(HttpServletRequest request, HttpServletResponse response) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    SessionContext sessionContext;
+    try {
+      sessionContext = getContextCache().get(OBContext.getOBContext());
+    } catch (OBException e) {
+      // the get method answers with the error
+      return false;
+    }
+    String contextETag = sessionContext.getETag();
+    response.setHeader("ETag", contextETag);
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String eTag : ifNoneMatch.split(",")) {
+      if (StringUtils.equals("*", eTag.trim()) || StringUtils.equals(contextETag, eTag.trim())) {
+        // only recorded if answered here, otherwise the get method records the request
+        getMetrics().start("GET", "/getContext").finish(false, 0);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Answers a similarity search in the streamed mode, writing the results as they are read from the database.
+   *
+   * @return true if the request was answered, false if it is not streamed or its entity is not supported, so the get
+   *     method answers it.
+   */
+  private static boolean handleStreamedSimSearch(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, JSONException {
+    Map<String, String> requestParams = new HashMap<>();
+    for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+      if (parameter.getValue().length > 0) {
+        requestParams.put(parameter.getKey(), parameter.getValue()[0]);
+      }
+    }
+    if (!SimilaritySearchPageHandler.isStreamed(requestParams)
+        || ProductMatchHandler.isMatchMode(requestParams.get("searchMode"))) {
+      return false;
+    }
+    SimilaritySearchPlan plan = WeldUtils.getInstanceFromStaticBeanManager(SimilaritySearchPlanRegistry.class)
+        .getPlan(requestParams.get("entityName"));
+    if (plan == null) {
+      return false;
+    }
+    RequestRecorder recorder = getMetrics().start("GET", "/searchBySimilarity");
+    int written = -1;
+    try (ReadScope readScope = getRouter().openReadScope()) {
+      written = SimilaritySearchPageHandler.handleStream(plan, requestParams, response);
+    } finally {
+      recorder.finish(written < 0, Math.max(written, 0));
+    }
+    return true;
+  }
+
+  private static ReadReplicaRouter getRouter() {
+    return WeldUtils.getInstanceFromStaticBeanManager(ReadReplicaRouter.class);
+  }
+
+  private static ContextCache getContextCache() {
+    return WeldUtils.getInstanceFromStaticBeanManager(ContextCache.class);
+  }
+
+  private static EndpointMetrics getMetrics() {
+    return WeldUtils.getInstanceFromStaticBeanManager(EndpointMetrics.class);
+  }
+
+  /**
+   * Returns the supported path that matches the path of a request, so the metrics are recorded under a fixed set of
+   * names whatever the client sends.
    */
-  private static BigDecimal calcSimilarityPercent(String id, String searchTerm, String tableName) {
-    String sql = String.format("select etcpopp_sim_search('%s', '%s', '%s')", tableName, id, searchTerm);
-    Query query = OBDal.getInstance().getSession().createSQLQuery(sql);
-    ScrollableResults scroll = query.scroll(ScrollMode.FORWARD_ONLY);
-    scroll.next();
-    BigDecimal percent = (BigDecimal) scroll.get(0);
-    return percent.setScale(4, RoundingMode.HALF_UP);
+  private static String metricsEndpoint(String path, String[] endpoints) {
+    for (String endpoint : endpoints) {
+      if (StringUtils.equalsIgnoreCase(endpoint, path)) {
+        return endpoint;
+      }
+    }
+    return "unsupported";
   }
 
   /**
    * Handles POST requests to the web service.
    * If the path matches "/calcTaxes", it recalculates the taxes for the provided order lines or order.
+   * With preview set, it previews the prices and taxes of prospective lines without saving them.
+   * If the path matches "/searchBySimilarity", it resolves a batch of similarity searches.
+   * If the path matches "/initiateUpload" or "/completeUpload", it starts or completes a chunked upload.
+   * If the path matches "/attachByHash", it attaches content already stored, identified by its SHA-256.
+   * If the path matches "/createPurchaseOrder", it creates a purchase order with all its lines in one transaction.
+   * Every request is recorded in the {@link EndpointMetrics}. The reads of the searches and the previews are routed
+   * by the {@link ReadReplicaRouter}.
    *
    * @param path
    *     the path of the POST request.
@@ -297,9 +916,33 @@ public class CopilotWSServlet extends BaseWebService {
    */
   @Override
   public WSResult post(String path, Map<String, String> parameters, JSONObject body) throws Exception {
+    RequestRecorder recorder = getMetrics().start("POST", metricsEndpoint(path, POST_ENDPOINTS));
+    boolean readOnly = StringUtils.equalsIgnoreCase("/searchBySimilarity", path) || (StringUtils.equalsIgnoreCase(
+        "/calcTaxes", path) && body.optBoolean("preview"));
+    try (ReadScope readScope = readOnly ? getRouter().openReadScope() : null) {
+      WSResult wsResult = handlePost(path, body);
+      EndpointMetrics.finish(recorder, wsResult);
+      return wsResult;
+    } catch (Exception e) {
+      recorder.finish(true, 0);
+      throw e;
+    }
+  }
+
+  private WSResult handlePost(String path, JSONObject body) throws Exception {
     WSResult wsResult = new WSResult();
     if (StringUtils.equalsIgnoreCase("/calcTaxes", path)) {
       return calcTaxes(body, wsResult);
+    } else if (StringUtils.equalsIgnoreCase("/searchBySimilarity", path)) {
+      return handleSimSearchBatch(body);
+    } else if (StringUtils.equalsIgnoreCase("/initiateUpload", path)) {
+      return AttachmentUploadHandler.handleInitiateUpload(body);
+    } else if (StringUtils.equalsIgnoreCase("/completeUpload", path)) {
+      return AttachmentUploadHandler.handleCompleteUpload(body);
+    } else if (StringUtils.equalsIgnoreCase("/attachByHash", path)) {
+      return AttachmentUploadHandler.handleAttachByHash(body);
+    } else if (StringUtils.equalsIgnoreCase("/createPurchaseOrder", path)) {
+      return PurchaseOrderCreationHandler.handleCreatePurchaseOrder(body);
     } else {
       wsResult.setStatus(Status.OK);
       var data = new JSONObject();
@@ -312,6 +955,12 @@ public class CopilotWSServlet extends BaseWebService {
 
   /**
    * Recalculates the taxes for the provided order or order lines.
+   * When an order is provided, all its lines are recalculated in bulk: the prices of all the products are loaded with
+   * a single query, the tax is resolved once per product tax category and the changes are flushed once at the end.
+   * When a list of orders is provided, they are recalculated in parallel by the OrderTaxRecalculationService, each
+   * one in its own transaction, and the result and timing of every order are returned.
+   * When preview is true, the prospective lines of the body are priced in memory and nothing is saved, see
+   * {@link PricePreviewHandler}.
    *
    * @param body
    *     a JSONObject containing the order or order line information.
@@ -322,8 +971,19 @@ public class CopilotWSServlet extends BaseWebService {
    *     if there is an error processing JSON data.
    */
   private WSResult calcTaxes(JSONObject body, WSResult wsResult) throws JSONException {
-    ArrayList<OrderLine> orderLinesList = new ArrayList<>();
-    if (body.has("orderLineId")) {
+    if (body.optBoolean("preview", false)) {
+      return PricePreviewHandler.handlePreview(body);
+    }
+    JSONArray arrayResponse = new JSONArray();
+    if (body.has("orderIds")) {
+      JSONArray orderIdsJson = body.getJSONArray("orderIds");
+      List<String> orderIds = new ArrayList<>(orderIdsJson.length());
+      for (int i = 0; i < orderIdsJson.length(); i++) {
+        orderIds.add(orderIdsJson.getString(i));
+      }
+      arrayResponse = WeldUtils.getInstanceFromStaticBeanManager(OrderTaxRecalculationService.class)
+          .recalculate(orderIds);
+    } else if (body.has("orderLineId")) {
       String orderLineId = body.getString("orderLineId");
       OrderLine ol = OBDal.getInstance().get(OrderLine.class, orderLineId);
       if (ol == null) {
@@ -331,7 +991,7 @@ public class CopilotWSServlet extends BaseWebService {
         wsResult.setMessage("OrderLine not found");
         return wsResult;
       }
-      orderLinesList.add(ol);
+      arrayResponse.put(recalcTaxesResultJson(ol, recalcTaxes(ol)));
     } else if (body.has("orderId")) {
       String orderId = body.getString("orderId");
       Order order = OBDal.getInstance().get(Order.class, orderId);
@@ -340,21 +1000,21 @@ public class CopilotWSServlet extends BaseWebService {
         wsResult.setMessage("Order not found");
         return wsResult;
       }
-      orderLinesList.addAll(order.getOrderLineList());
-    }
-
-    JSONArray arrayResponse = new JSONArray();
-    for (OrderLine orderLine : orderLinesList) {
-      String msg = recalcTaxes(orderLine);
-      var itemData = new JSONObject();
-      itemData.put(MESSAGE_RESULT_PROPERTY, String.format("OrderLine: %s %s", orderLine.getIdentifier(), msg));
-      arrayResponse.put(itemData);
+      for (Map.Entry<OrderLine, String> lineResult : recalcOrderTaxes(order).entrySet()) {
+        arrayResponse.put(recalcTaxesResultJson(lineResult.getKey(), lineResult.getValue()));
+      }
     }
     wsResult.setStatus(Status.OK);
     wsResult.setData(arrayResponse);
     return wsResult;
   }
 
+  static JSONObject recalcTaxesResultJson(OrderLine orderLine, String msg) throws JSONException {
+    var itemData = new JSONObject();
+    itemData.put(MESSAGE_RESULT_PROPERTY, String.format("OrderLine: %s %s", orderLine.getIdentifier(), msg));
+    return itemData;
+  }
+
   /**
    * Recalculates the taxes and prices for a specific order line.
    *
@@ -364,117 +1024,53 @@ public class CopilotWSServlet extends BaseWebService {
    */
   public static String recalcTaxes(OrderLine orderLine) {
     try {
-      Order order = orderLine.getSalesOrder();
-      BigDecimal priceActual;
-      String productPriceId = getProductPrice(order.getOrderDate(), order.getPriceList(), orderLine.getProduct());
-      BigDecimal priceList = BigDecimal.ZERO;
-      BigDecimal priceStd = BigDecimal.ZERO;
-      BigDecimal priceLimit = BigDecimal.ZERO;
-      if (productPriceId != null) {
-        ProductPrice productPrice = OBDal.getInstance().get(ProductPrice.class, productPriceId);
-
-        priceList = productPrice.getListPrice();
-        priceStd = productPrice.getStandardPrice();
-        priceLimit = productPrice.getPriceLimit();
-      }
-
-      boolean isTaxIncludedPriceList = order.getPriceList().isPriceIncludesTax();
-      boolean cancelPriceAd = orderLine.isCancelPriceAdjustment();
-
-      BigDecimal netPriceList = priceList;
-      BigDecimal grossPriceList = priceList;
-      BigDecimal grossBaseUnitPrice = priceStd;
-
-      Product product = orderLine.getProduct();
-      if (!cancelPriceAd) {
-        BigDecimal orderedQuantity = orderLine.getOrderedQuantity();
-        if (isTaxIncludedPriceList) {
-          priceActual = PriceAdjustment.calculatePriceActual(order, product, orderedQuantity, grossBaseUnitPrice);
-          netPriceList = BigDecimal.ZERO;
-        } else {
-          priceActual = PriceAdjustment.calculatePriceActual(order, product, orderedQuantity, priceStd);
-          grossPriceList = BigDecimal.ZERO;
-        }
-      } else {
-        priceActual = isTaxIncludedPriceList ? grossBaseUnitPrice : priceList;
-      }
-
-
-      // Prices
-      if (isTaxIncludedPriceList) {
-        //Gross Unit Price
-        orderLine.setGrossUnitPrice(priceActual);
-        //Gross Price List
-        orderLine.setGrossListPrice(grossPriceList);
-        //Gross Base Unit Price
-        orderLine.setBaseGrossUnitPrice(grossBaseUnitPrice);
-      } else {
-        //Net Price List
-        orderLine.setListPrice(netPriceList);
-        //Price Limit
-        orderLine.setPriceLimit(priceLimit);
-        //Price Std
-        orderLine.setStandardPrice(priceStd);
-        //Price Actual
-        orderLine.setUnitPrice(priceActual);
-      }
-      // Discount
-      BigDecimal calculatedDiscount = BigDecimal.ZERO;
-      BigDecimal price = isTaxIncludedPriceList ? grossPriceList : netPriceList;
-      if (!BigDecimal.ZERO.equals(price)) {
-        int precision = order.getCurrency().getPricePrecision().intValue();
-        calculatedDiscount = price.subtract(priceActual).multiply(BigDecimal.valueOf(100)).divide(price, precision,
-            RoundingMode.HALF_UP);
-      }
-
-
-      BigDecimal disc = orderLine.getDiscount();
-      if (calculatedDiscount.compareTo(disc) != 0) {
-        orderLine.setDiscount(calculatedDiscount);
-      }
-      taxSearchAndSet(orderLine, order, product);
+      OrderPriceCalculator calculator = new OrderPriceCalculator(orderLine.getSalesOrder(),
+          Collections.singleton(orderLine.getProduct()));
+      calculator.recalculate(orderLine);
       log.debug(String.format("OrderLine inserted: %s", orderLine.getId()));
-      OBDal.getInstance().save(orderLine);
       OBDal.getInstance().flush();
     } catch (Exception e) {
       log.error("Error recalculating taxes", e);
-      return "Error recalculating taxes, Adjust the price and taxes manually.";
+      return RECALC_TAXES_ERROR;
     }
-
-    return "Taxes recalculated successfully.";
+    return RECALC_TAXES_SUCCESS;
   }
 
   /**
-   * Searches and sets the appropriate tax rate for a given order line and product.
+   * Recalculates the taxes and prices of all the lines of an order, flushing once at the end. A line that cannot be
+   * calculated is left untouched and reported, without preventing the rest of the lines from being updated.
    *
-   * @param ol
-   *     the order line to update.
    * @param order
-   *     the order containing the order line.
-   * @param product
-   *     the product in the order line.
-   * @throws ServletException
-   *     if a servlet error occurs.
-   * @throws IOException
-   *     if an IO error occurs.
+   *     the order to recalculate.
+   * @return the result message of every line, in the order of the lines.
    */
-  private static void taxSearchAndSet(OrderLine ol, Order order, Product product) throws ServletException, IOException {
-    //formate order.getOrderDate to string year-month-day. Dont use FormatUtilities
-    String dateFromat = OBPropertiesProvider.getInstance().getOpenbravoProperties().getProperty("dateFormat.java");
-    SimpleDateFormat dateformat = new SimpleDateFormat(dateFromat);
-    String strOrderDate = dateformat.format(order.getOrderDate());
-    DalConnectionProvider connectionProvider = new DalConnectionProvider(false);
-    Project project = order.getProject();
-
-    String strCTaxID = Tax.get(connectionProvider, product.getId(), strOrderDate, order.getOrganization().getId(),
-        order.getWarehouse().getId(), order.getPartnerAddress().getId(), order.getPartnerAddress().getId(),
-        project != null ? project.getId() : null, order.isSalesTransaction());
-    TaxRate tax = OBDal.getInstance().get(TaxRate.class, strCTaxID);
-
-    log.debug(String.format("TaxRate: %s", tax.getName()));
-    ol.setTax(tax);
-
-
+  public static Map<OrderLine, String> recalcOrderTaxes(Order order) {
+    Map<OrderLine, String> results = new LinkedHashMap<>();
+    List<OrderLine> orderLines = order.getOrderLineList();
+    OrderPriceCalculator calculator;
+    try {
+      calculator = OrderPriceCalculator.forOrder(order);
+    } catch (Exception e) {
+      log.error("Error loading the prices of the order", e);
+      orderLines.forEach(orderLine -> results.put(orderLine, RECALC_TAXES_ERROR));
+      return results;
+    }
+    for (OrderLine orderLine : orderLines) {
+      try {
+        calculator.recalculate(orderLine);
+        results.put(orderLine, RECALC_TAXES_SUCCESS);
+      } catch (Exception e) {
+        log.error("Error recalculating taxes of order line " + orderLine.getId(), e);
+        results.put(orderLine, RECALC_TAXES_ERROR);
+      }
+    }
+    try {
+      OBDal.getInstance().flush();
+    } catch (Exception e) {
+      log.error("Error recalculating taxes", e);
+      results.replaceAll((orderLine, msg) -> RECALC_TAXES_ERROR);
+    }
+    return results;
   }
 
   /**
@@ -516,6 +1112,7 @@ public class CopilotWSServlet extends BaseWebService {
 
   /**
    * Retrieves the product price for a given product, price list, and date.
+   * The price is read from the PriceListIndex, which only runs a query when the product is not indexed yet.
    *
    * @param date
    *     the date of the price.
@@ -526,29 +1123,9 @@ public class CopilotWSServlet extends BaseWebService {
    * @return the ID of the product price, or null if not found.
    */
   public static String getProductPrice(Date date, PriceList priceList, Product product) {
-    try {
-      OBContext.setAdminMode(true);
-      //@formatter:off
-      String hql = new StringBuilder()
-          .append("select pp.id ")
-          .append(" from PricingProductPrice as pp ")
-          .append(" join pp.priceListVersion as plv ")
-          .append(" join plv.priceList as pl ")
-          .append(" where pp.product.id = :productId ")
-          .append(" and plv.validFromDate <= :date ")
-          .append(" and pl.id = :pricelistId ")
-          .append(" and pl.active = true ")
-          .append(" and pp.active = true ")
-          .append(" and plv.active = true ")
-          .append(" order by pl.default desc, plv.validFromDate desc")
-          .toString();
-      //@formatter:on
-      return OBDal.getInstance().getSession().createQuery(hql, String.class).setParameter("productId",
-              product.getId()).setParameter("date", date).setParameter("pricelistId", priceList.getId())
-          .setMaxResults(1).uniqueResult();
-    } finally {
-      OBContext.restorePreviousMode();
-    }
+    PriceListIndex priceListIndex = WeldUtils.getInstanceFromStaticBeanManager(PriceListIndex.class);
+    ProductPriceInfo productPrice = priceListIndex.getPrice(priceList.getId(), product.getId(), date);
+    return productPrice != null ? productPrice.getProductPriceId() : null;
   }
 
 }
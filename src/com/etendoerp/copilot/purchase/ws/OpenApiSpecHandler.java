@@ -0,0 +1,115 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.weld.WeldUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.etendoerp.copilot.openapi.purchase.spec.OpenApiSlice;
+import com.etendoerp.copilot.openapi.purchase.spec.OpenApiSpecIndex;
+
+/**
+ * Handles the /openApiSpec endpoint of the {@link CopilotWSServlet}, which serves the precomputed slices of the
+ * OpenAPI specification of the module: an operation, the operations of a tag or the overview of the API. The slices
+ * carry an ETag and are sent compressed when the client accepts gzip.
+ */
+class OpenApiSpecHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(OpenApiSpecHandler.class);
+
+  private OpenApiSpecHandler() {
+  }
+
+  /**
+   * Writes the slice requested by the endpoint parameter ("METHOD /path") or the tag parameter, or the overview if
+   * none of them is sent. It answers 304 Not Modified if the If-None-Match header has the ETag of the slice, and 404
+   * if the specification has no such endpoint or tag.
+   *
+   * @param request
+   *     the HTTP request.
+   * @param response
+   *     the HTTP response.
+   * @return the HTTP status of the response.
+   * @throws IOException
+   *     if there is an error writing the response.
+   * @throws JSONException
+   *     if there is an error building an error response.
+   */
+  static int handleGetSpec(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, JSONException {
+    String endpoint = request.getParameter("endpoint");
+    String tag = request.getParameter("tag");
+    OpenApiSlice slice;
+    try {
+      OpenApiSpecIndex index = WeldUtils.getInstanceFromStaticBeanManager(OpenApiSpecIndex.class);
+      if (StringUtils.isNotBlank(endpoint)) {
+        slice = index.getEndpoint(endpoint);
+      } else if (StringUtils.isNotBlank(tag)) {
+        slice = index.getTag(tag);
+      } else {
+        slice = index.getOverview();
+      }
+    } catch (RuntimeException e) {
+      log.error("Error loading the OpenAPI specification", e);
+      return writeError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+    if (slice == null) {
+      return writeError(response, HttpServletResponse.SC_NOT_FOUND, StringUtils.isNotBlank(endpoint)
+          ? "Endpoint not found: " + endpoint
+          : "Tag not found: " + tag);
+    }
+
+    response.setHeader("ETag", slice.getETag());
+    response.setHeader("Vary", "Accept-Encoding");
+    if (matchesETag(request.getHeader("If-None-Match"), slice.getETag())) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return HttpServletResponse.SC_NOT_MODIFIED;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    byte[] content = slice.getJson();
+    if (StringUtils.containsIgnoreCase(request.getHeader("Accept-Encoding"), "gzip")) {
+      response.setHeader("Content-Encoding", "gzip");
+      content = slice.getGzip();
+    }
+    response.setContentLength(content.length);
+    try (OutputStream out = response.getOutputStream()) {
+      out.write(content);
+    }
+    return HttpServletResponse.SC_OK;
+  }
+
+  private static boolean matchesETag(String ifNoneMatch, String eTag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = StringUtils.removeStart(candidate.trim(), "W/");
+      if (StringUtils.equals("*", trimmed) || StringUtils.equals(eTag, trimmed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int writeError(HttpServletResponse response, int status, String message)
+      throws IOException, JSONException {
+    JSONObject result = new JSONObject();
+    result.put(AttachmentUploadHandler.ERROR_PROPERTY, message);
+    response.setStatus(status);
+    response.setContentType("application/json");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.getWriter().write(result.toString());
+    return status;
+  }
+}
@@ -0,0 +1,162 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.order.OrderLine;
+
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Recalculates the taxes of several orders in parallel, on a bounded pool of worker threads shared by all the
+ * requests.
+ * <p>
+ * Every order is processed by a worker with its own OBContext, for the same user, role, client and organization as
+ * the request, and its own DAL session and transaction, so an order that fails is rolled back without affecting the
+ * others. As every worker holds a database connection while it runs, the number of workers defaults to a quarter of
+ * the connection pool (db.pool.maxActive), capped to the available processors. It can be set with
+ * copilot.purchase.calcTaxes.threads.
+ */
+@ApplicationScoped
+public class OrderTaxRecalculationService {
+
+  public static final String THREADS_PROPERTY = "copilot.purchase.calcTaxes.threads";
+  public static final String QUEUE_SIZE_PROPERTY = "copilot.purchase.calcTaxes.queueSize";
+  public static final String TIMEOUT_PROPERTY = "copilot.purchase.calcTaxes.timeoutSeconds";
+  private static final String POOL_SIZE_PROPERTY = "db.pool.maxActive";
+  private static final int DEFAULT_POOL_SIZE = 10;
+  private static final int DEFAULT_QUEUE_SIZE = 500;
+  private static final long DEFAULT_TIMEOUT_SECONDS = 300;
+  private static final String STATUS_PROPERTY = "status";
+  private static final Logger log = LogManager.getLogger();
+
+  private final ThreadPoolExecutor executor;
+  private final long timeoutSeconds = PurchaseConfig.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS);
+
+  public OrderTaxRecalculationService() {
+    int defaultThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+        PurchaseConfig.getInt(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE) / 4));
+    int threads = Math.max(1, PurchaseConfig.getInt(THREADS_PROPERTY, defaultThreads));
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(PurchaseConfig.getInt(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE)), runnable -> {
+          Thread thread = new Thread(runnable, "copilot-purchase-calctaxes-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Recalculates the taxes of the given orders and waits for all of them.
+   *
+   * @param orderIds
+   *     the IDs of the orders.
+   * @return one JSONObject per order, in the same order as the IDs, with its status, the result of every line and
+   *     the time it took.
+   * @throws JSONException
+   *     if there is an error building the JSON.
+   */
+  public JSONArray recalculate(List<String> orderIds) throws JSONException {
+    OBContext obContext = OBContext.getOBContext();
+    String userId = obContext.getUser().getId();
+    String roleId = obContext.getRole().getId();
+    String clientId = obContext.getCurrentClient().getId();
+    String orgId = obContext.getCurrentOrganization().getId();
+
+    List<Future<JSONObject>> futures = new ArrayList<>(orderIds.size());
+    for (String orderId : orderIds) {
+      try {
+        futures.add(executor.submit(() -> recalculateOrder(orderId, userId, roleId, clientId, orgId)));
+      } catch (RejectedExecutionException e) {
+        futures.add(null);
+      }
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    JSONArray results = new JSONArray();
+    for (int i = 0; i < orderIds.size(); i++) {
+      Future<JSONObject> future = futures.get(i);
+      if (future == null) {
+        results.put(errorJson(orderIds.get(i), "Too many orders being recalculated, try again later."));
+        continue;
+      }
+      try {
+        results.put(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        results.put(errorJson(orderIds.get(i), "The recalculation is still running."));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        results.put(errorJson(orderIds.get(i), "The recalculation was interrupted."));
+      } catch (ExecutionException e) {
+        results.put(errorJson(orderIds.get(i), e.getCause().getMessage()));
+      }
+    }
+    return results;
+  }
+
+  private JSONObject recalculateOrder(String orderId, String userId, String roleId, String clientId,
+      String orgId) throws JSONException {
+    long start = System.currentTimeMillis();
+    JSONObject result = new JSONObject();
+    result.put("orderId", orderId);
+    OBContext.setOBContext(userId, roleId, clientId, orgId);
+    try {
+      Order order = OBDal.getInstance().get(Order.class, orderId);
+      if (order == null) {
+        result.put(STATUS_PROPERTY, "error");
+        result.put(CopilotWSServlet.MESSAGE_RESULT_PROPERTY, "Order not found");
+      } else {
+        JSONArray lines = new JSONArray();
+        for (Map.Entry<OrderLine, String> lineResult : CopilotWSServlet.recalcOrderTaxes(order).entrySet()) {
+          lines.put(CopilotWSServlet.recalcTaxesResultJson(lineResult.getKey(), lineResult.getValue()));
+        }
+        result.put(STATUS_PROPERTY, "ok");
+        result.put("lines", lines);
+      }
+      OBDal.getInstance().commitAndClose();
+    } catch (Exception e) {
+      log.error("Error recalculating taxes of order " + orderId, e);
+      OBDal.getInstance().rollbackAndClose();
+      result.put(STATUS_PROPERTY, "error");
+      result.put(CopilotWSServlet.MESSAGE_RESULT_PROPERTY, e.getMessage());
+      result.remove("lines");
+    } finally {
+      OBContext.setOBContext((OBContext) null);
+    }
+    result.put("elapsedMillis", System.currentTimeMillis() - start);
+    return result;
+  }
+
+  private static JSONObject errorJson(String orderId, String message) throws JSONException {
+    JSONObject result = new JSONObject();
+    result.put("orderId", orderId);
+    result.put(STATUS_PROPERTY, "error");
+    result.put(CopilotWSServlet.MESSAGE_RESULT_PROPERTY, message);
+    return result;
+  }
+}
@@ -0,0 +1,170 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.financialmgmt.tax.TaxRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.etendoerp.copilot.openapi.purchase.pricing.OrderPriceCalculator;
+import com.etendoerp.copilot.openapi.purchase.pricing.OrderPriceCalculator.LinePrices;
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Previews the prices, discount and tax of prospective order lines without saving anything.
+ * <p>
+ * The lines are calculated with the same {@link OrderPriceCalculator} used by calcTaxes, but only its read methods
+ * are called and the results are returned instead of being set on order lines. The order context is either an
+ * existing order, sent in orderId, or a header built in memory from the same properties accepted by
+ * createPurchaseOrder. The DAL session is switched to manual flush while the preview runs, so no row of C_ORDER or
+ * C_ORDERLINE is written or locked and concurrent previews do not contend with each other.
+ */
+class PricePreviewHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(PricePreviewHandler.class);
+
+  private PricePreviewHandler() {
+  }
+
+  /**
+   * Previews the prices and taxes of the lines of the body.
+   *
+   * @param body
+   *     the lines to preview and either the orderId of an existing order or the header properties of a new one, see
+   *     {@link PurchaseOrderDocument}.
+   * @return a WSResult with the prices, discount, tax and amounts of every line and the totals, or with the error
+   *     that prevented calculating them. A line that cannot be calculated is returned with its error.
+   * @throws JSONException
+   *     if there is an error processing the JSON data.
+   */
+  static WSResult handlePreview(JSONObject body) throws JSONException {
+    WSResult wsResult = new WSResult();
+    Session session = OBDal.getInstance().getSession();
+    FlushMode flushMode = session.getHibernateFlushMode();
+    session.setHibernateFlushMode(FlushMode.MANUAL);
+    try {
+      Order order;
+      List<PurchaseOrderDocument.LineSpec> lines;
+      if (body.has("orderId")) {
+        order = ReadReplicaRouter.get(Order.class, body.getString("orderId"));
+        if (order == null) {
+          throw new OBException("Order not found");
+        }
+        lines = PurchaseOrderDocument.parseLines(body);
+      } else {
+        PurchaseOrderDocument document = PurchaseOrderDocument.fromJson(body);
+        order = document.newOrder(false);
+        lines = document.getLines();
+      }
+      wsResult.setStatus(Status.OK);
+      wsResult.setData(preview(order, lines));
+    } catch (Exception e) {
+      log.error("Error previewing the prices and taxes", e);
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(e.getMessage());
+    } finally {
+      session.setHibernateFlushMode(flushMode);
+    }
+    return wsResult;
+  }
+
+  private static JSONObject preview(Order order, List<PurchaseOrderDocument.LineSpec> lines)
+      throws JSONException {
+    Set<Product> products = new LinkedHashSet<>();
+    for (PurchaseOrderDocument.LineSpec line : lines) {
+      products.add(line.getProduct());
+    }
+    OrderPriceCalculator calculator = new OrderPriceCalculator(order, products);
+    int precision = order.getCurrency().getStandardPrecision().intValue();
+    BigDecimal totalNet = BigDecimal.ZERO;
+    BigDecimal totalTax = BigDecimal.ZERO;
+    JSONArray linesJson = new JSONArray();
+    for (PurchaseOrderDocument.LineSpec line : lines) {
+      JSONObject lineJson = new JSONObject();
+      lineJson.put("lineNo", (line.getPosition() + 1) * 10L);
+      lineJson.put("productId", line.getProduct().getId());
+      lineJson.put("quantity", line.getQuantity());
+      try {
+        LinePrices linePrices = calculator.calculatePrices(line.getProduct(), line.getQuantity(),
+            line.isCancelPriceAdjustment());
+        TaxRate tax = calculator.resolveTax(line.getProduct());
+        LineAmounts amounts = new LineAmounts(linePrices, tax, line.getQuantity(), precision);
+        putLinePrices(lineJson, linePrices, tax, amounts);
+        totalNet = totalNet.add(amounts.net);
+        totalTax = totalTax.add(amounts.tax);
+      } catch (Exception e) {
+        log.debug("Error previewing line {}", line.getPosition() + 1, e);
+        lineJson.put("error", e.getMessage());
+      }
+      linesJson.put(lineJson);
+    }
+    JSONObject result = new JSONObject();
+    result.put("preview", true);
+    result.put("priceIncludesTax", order.getPriceList().isPriceIncludesTax());
+    result.put("currency", order.getCurrency().getISOCode());
+    result.put("lines", linesJson);
+    result.put("totalNetAmount", totalNet);
+    result.put("totalTaxAmount", totalTax);
+    result.put("grandTotalAmount", totalNet.add(totalTax));
+    return result;
+  }
+
+  private static void putLinePrices(JSONObject lineJson, LinePrices linePrices, TaxRate tax, LineAmounts amounts)
+      throws JSONException {
+    lineJson.put("priceFound", linePrices.isPriceFound());
+    if (linePrices.isPriceIncludesTax()) {
+      lineJson.put("listPrice", linePrices.getGrossListPrice());
+      lineJson.put("standardPrice", linePrices.getGrossBaseUnitPrice());
+    } else {
+      lineJson.put("listPrice", linePrices.getNetListPrice());
+      lineJson.put("standardPrice", linePrices.getStandardPrice());
+      lineJson.put("priceLimit", linePrices.getPriceLimit());
+    }
+    lineJson.put("unitPrice", linePrices.getPriceActual());
+    lineJson.put("discount", linePrices.getDiscount());
+    lineJson.put("taxId", tax.getId());
+    lineJson.put("taxName", tax.getName());
+    lineJson.put("taxRate", tax.getRate());
+    lineJson.put("lineNetAmount", amounts.net);
+    lineJson.put("taxAmount", amounts.tax);
+    lineJson.put("lineGrossAmount", amounts.net.add(amounts.tax));
+  }
+
+  /**
+   * Net and tax amounts of a line. The tax is calculated with the rate of the line tax, the exact amounts of summary
+   * taxes and of taxes with a different base are calculated by the database when the line is saved.
+   */
+  private static class LineAmounts {
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private final BigDecimal net;
+    private final BigDecimal tax;
+
+    private LineAmounts(LinePrices linePrices, TaxRate taxRate, BigDecimal quantity, int precision) {
+      BigDecimal rate = taxRate.getRate() != null ? taxRate.getRate() : BigDecimal.ZERO;
+      BigDecimal amount = linePrices.getPriceActual().multiply(quantity).setScale(precision, RoundingMode.HALF_UP);
+      if (linePrices.isPriceIncludesTax()) {
+        net = amount.multiply(HUNDRED).divide(HUNDRED.add(rate), precision, RoundingMode.HALF_UP);
+        tax = amount.subtract(net);
+      } else {
+        net = amount;
+        tax = amount.multiply(rate).divide(HUNDRED, precision, RoundingMode.HALF_UP);
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.Session;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Handles the "match" search mode of the products in the {@link CopilotWSServlet}. Supplier documents identify a
+ * product by its search key, its EAN/UPC, the product number of the vendor or a free text name, so the term is
+ * looked up in all of them at once:
+ * <ul>
+ * <li>exact matches on the search key and the UPC of the product and on the vendor product number of its approved
+ * vendors, resolved with their indexes;</li>
+ * <li>trigram similarity on the identifier of the product, with the trigram index of ETCPOPP_SIM_IDX.</li>
+ * </ul>
+ * Each field has a weight, read from copilot.purchase.productMatch.weight.{value,upc,vendorProductNo,name}. The score
+ * of a product is the highest weighted score of its fields, the weight itself for an exact match and the weight
+ * times the similarity for the name, so the four lookups are ranked together in a single query.
+ */
+class ProductMatchHandler {
+
+  public static final String SEARCH_MODE_MATCH = "match";
+  public static final String VALUE_WEIGHT_PROPERTY = "copilot.purchase.productMatch.weight.value";
+  public static final String UPC_WEIGHT_PROPERTY = "copilot.purchase.productMatch.weight.upc";
+  public static final String VENDOR_PRODUCT_NO_WEIGHT_PROPERTY =
+      "copilot.purchase.productMatch.weight.vendorProductNo";
+  public static final String NAME_WEIGHT_PROPERTY = "copilot.purchase.productMatch.weight.name";
+  private static final String PRODUCT_ENTITY = "Product";
+
+  //@formatter:off
+  /**
+   * Weighted match of a term against the search key, the UPC, the vendor product numbers and the identifier of the
+   * products. Every branch is resolved with an index: the exact matches with the indexes on M_PRODUCT.VALUE,
+   * M_PRODUCT.UPC and M_PRODUCT_PO.VENDORPRODUCTNO, and the name with a top-K trigram search over ETCPOPP_SIM_IDX.
+   * Each row has the ID, the name and the score of a product, and the field with the highest score.
+   */
+  private static final String PRODUCT_MATCH_SQL = new StringBuilder()
+      .append("select c.record_id, p.name, max(c.score) as similarity_percent, ")
+      .append(" (array_agg(c.field order by c.score desc))[1] as matched_by ")
+      .append(" from ( ")
+      .append("   select v.m_product_id as record_id, cast(:valueWeight as numeric) as score, ")
+      .append("   cast('value' as varchar) as field ")
+      .append("   from m_product v ")
+      .append("   where v.value = :searchTerm ")
+      .append("   union all ")
+      .append("   select u.m_product_id, cast(:upcWeight as numeric), cast('upc' as varchar) ")
+      .append("   from m_product u ")
+      .append("   where u.upc = :searchTerm ")
+      .append("   union all ")
+      .append("   select po.m_product_id, cast(:vendorProductNoWeight as numeric), ")
+      .append("   cast('vendorProductNo' as varchar) ")
+      .append("   from m_product_po po ")
+      .append("   where po.vendorproductno = :searchTerm ")
+      .append("   and po.isactive = 'Y' ")
+      .append("   and po.ad_client_id in (:clientIds) ")
+      .append("   and po.ad_org_id in (:orgIds) ")
+      .append("   union all ")
+      .append("   (select i.record_id, cast(similarity(i.identifier, :searchTerm) * :nameWeight as numeric), ")
+      .append("   cast('name' as varchar) ")
+      .append("   from etcpopp_sim_idx i ")
+      .append("   where i.tablename = 'm_product' ")
+      .append("   and i.isactive = 'Y' ")
+      .append("   and i.ad_client_id in (:clientIds) ")
+      .append("   and i.ad_org_id in (:orgIds) ")
+      .append("   and i.identifier % :searchTerm ")
+      .append("   order by i.identifier <-> :searchTerm, i.record_id ")
+      .append("   limit :qtyResults) ")
+      .append(" ) c ")
+      .append(" join m_product p on p.m_product_id = c.record_id ")
+      .append(" where p.isactive = 'Y' ")
+      .append(" and p.ad_client_id in (:clientIds) ")
+      .append(" and p.ad_org_id in (:orgIds) ")
+      .append(" group by c.record_id, p.name ")
+      .append(" having max(c.score) > :minSimPercent ")
+      .append(" order by similarity_percent desc, c.record_id ")
+      .append(" limit :qtyResults")
+      .toString();
+  //@formatter:on
+
+  private ProductMatchHandler() {
+  }
+
+  /**
+   * @return true if the search mode is the product match.
+   */
+  static boolean isMatchMode(String searchMode) {
+    return StringUtils.equalsIgnoreCase(SEARCH_MODE_MATCH, searchMode);
+  }
+
+  /**
+   * @return true if the product match supports the entity.
+   */
+  static boolean supports(String entityName) {
+    return StringUtils.equals(PRODUCT_ENTITY, entityName);
+  }
+
+  /**
+   * Matches a term against the products, ranking the exact matches on the search key, the UPC and the vendor
+   * product numbers together with the name similarity.
+   *
+   * @param searchTerm
+   *     the term to match.
+   * @param minSimPercent
+   *     the minimum score a product must reach to be returned.
+   * @param qtyResults
+   *     the maximum number of products to return.
+   * @return the matches, from the highest score, each one with its id, name, similarity_percent and matched_by, the
+   *     field with the highest score.
+   * @throws JSONException
+   *     if an error occurs while processing the JSON data.
+   */
+  static JSONArray match(String searchTerm, int minSimPercent, int qtyResults) throws JSONException {
+    JSONArray results = new JSONArray();
+    String term = StringUtils.trim(searchTerm);
+    if (StringUtils.isEmpty(term) || qtyResults < 1) {
+      return results;
+    }
+    int nameWeight = PurchaseConfig.getInt(NAME_WEIGHT_PROPERTY, 95);
+    OBContext obContext = OBContext.getOBContext();
+    Session session = ReadReplicaRouter.getReadDal().getSession();
+
+    // The % operator compares against pg_trgm.similarity_threshold, set it only for the current transaction. The
+    // threshold is relative to the weight of the name, so a name match can reach the minimum score
+    double threshold = nameWeight > 0 ? Math.min(1.0, minSimPercent / (double) nameWeight) : 1.0;
+    session.createNativeQuery("select set_config('pg_trgm.similarity_threshold', :threshold, true)")
+        .setParameter("threshold", String.valueOf(threshold))
+        .uniqueResult();
+    @SuppressWarnings("unchecked")
+    List<Object[]> rows = session.createNativeQuery(PRODUCT_MATCH_SQL)
+        .setParameter("searchTerm", term)
+        .setParameter("valueWeight", PurchaseConfig.getInt(VALUE_WEIGHT_PROPERTY, 100))
+        .setParameter("upcWeight", PurchaseConfig.getInt(UPC_WEIGHT_PROPERTY, 100))
+        .setParameter("vendorProductNoWeight", PurchaseConfig.getInt(VENDOR_PRODUCT_NO_WEIGHT_PROPERTY, 98))
+        .setParameter("nameWeight", nameWeight)
+        .setParameter("minSimPercent", minSimPercent)
+        .setParameter("qtyResults", qtyResults)
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations())
+        .list();
+    for (Object[] row : rows) {
+      JSONObject result = CopilotWSServlet.toSearchResultJson((String) row[0], (String) row[1],
+          (BigDecimal) row[2]);
+      result.put("matched_by", row[3]);
+      results.put(result);
+    }
+    return results;
+  }
+}
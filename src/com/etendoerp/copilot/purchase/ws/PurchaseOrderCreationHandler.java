@@ -0,0 +1,145 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.dal.service.OBDal;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.order.OrderLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.etendoerp.copilot.openapi.purchase.pricing.OrderPriceCalculator;
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Creates a purchase order with all its lines in one request, instead of one request for the header, one per line
+ * and one to recalculate the taxes.
+ * <p>
+ * The prices of all the products are loaded once and the tax is resolved once per tax category, through the same
+ * {@link OrderPriceCalculator} used by calcTaxes. The lines are flushed in batches of
+ * copilot.purchase.createOrder.batchSize, so Hibernate can group their inserts, and everything is rolled back if any
+ * line fails, so an order is never left half created.
+ */
+class PurchaseOrderCreationHandler {
+
+  public static final String BATCH_SIZE_PROPERTY = "copilot.purchase.createOrder.batchSize";
+  public static final String MAX_LINES_PROPERTY = "copilot.purchase.createOrder.maxLines";
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int DEFAULT_MAX_LINES = 1000;
+  private static final Logger log = LoggerFactory.getLogger(PurchaseOrderCreationHandler.class);
+
+  private PurchaseOrderCreationHandler() {
+  }
+
+  /**
+   * Creates a purchase order from a whole order document, see {@link PurchaseOrderDocument} for its properties.
+   *
+   * @param body
+   *     the order document, with its lines.
+   * @return a WSResult with the IDs of the order and its lines, their prices and taxes and the totals of the order,
+   *     or with the error that prevented creating it.
+   * @throws JSONException
+   *     if there is an error processing the JSON data.
+   */
+  static WSResult handleCreatePurchaseOrder(JSONObject body) throws JSONException {
+    WSResult wsResult = new WSResult();
+    long start = System.currentTimeMillis();
+    try {
+      PurchaseOrderDocument document = PurchaseOrderDocument.fromJson(body);
+      int maxLines = PurchaseConfig.getInt(MAX_LINES_PROPERTY, DEFAULT_MAX_LINES);
+      if (document.getLines().size() > maxLines) {
+        throw new OBException(String.format("The order has %d lines, the maximum is %d",
+            document.getLines().size(), maxLines));
+      }
+      List<OrderLine> orderLines = new ArrayList<>(document.getLines().size());
+      Order order = create(document, orderLines);
+      wsResult.setStatus(Status.OK);
+      wsResult.setData(toResultJson(order, orderLines, System.currentTimeMillis() - start));
+    } catch (Exception e) {
+      log.error("Error creating the purchase order", e);
+      OBDal.getInstance().rollbackAndClose();
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(e.getMessage());
+    }
+    return wsResult;
+  }
+
+  private static Order create(PurchaseOrderDocument document, List<OrderLine> orderLines) {
+    OBDal obDal = OBDal.getInstance();
+    Order order = document.newOrder(true);
+    obDal.save(order);
+    OrderPriceCalculator calculator = new OrderPriceCalculator(order, document.getProducts());
+    int batchSize = Math.max(1, PurchaseConfig.getInt(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE));
+    int amountPrecision = order.getCurrency().getStandardPrecision().intValue();
+    for (PurchaseOrderDocument.LineSpec line : document.getLines()) {
+      OrderLine orderLine = document.newOrderLine(order, line);
+      try {
+        calculator.recalculate(orderLine);
+      } catch (Exception e) {
+        throw new OBException(String.format("Line %d: %s", line.getPosition() + 1, e.getMessage()), e);
+      }
+      setLineAmounts(orderLine, amountPrecision);
+      order.getOrderLineList().add(orderLine);
+      orderLines.add(orderLine);
+      if ((line.getPosition() + 1) % batchSize == 0) {
+        obDal.flush();
+      }
+    }
+    obDal.flush();
+    // the totals of the header and the amounts of the lines are calculated by the database
+    obDal.getSession().refresh(order);
+    log.debug("Purchase order {} created with {} lines", order.getDocumentNo(), document.getLines().size());
+    return order;
+  }
+
+  private static void setLineAmounts(OrderLine orderLine, int precision) {
+    BigDecimal quantity = orderLine.getOrderedQuantity();
+    if (orderLine.getSalesOrder().getPriceList().isPriceIncludesTax()) {
+      orderLine.setLineGrossAmount(orderLine.getGrossUnitPrice().multiply(quantity)
+          .setScale(precision, RoundingMode.HALF_UP));
+    } else {
+      orderLine.setLineNetAmount(orderLine.getUnitPrice().multiply(quantity)
+          .setScale(precision, RoundingMode.HALF_UP));
+    }
+  }
+
+  private static JSONObject toResultJson(Order order, List<OrderLine> orderLines,
+      long elapsedMillis) throws JSONException {
+    JSONObject result = new JSONObject();
+    result.put("orderId", order.getId());
+    result.put("documentNo", order.getDocumentNo());
+    result.put("summedLineAmount", order.getSummedLineAmount());
+    result.put("grandTotalAmount", order.getGrandTotalAmount());
+    result.put("priceIncludesTax", order.getPriceList().isPriceIncludesTax());
+    JSONArray lines = new JSONArray();
+    for (OrderLine orderLine : orderLines) {
+      JSONObject line = new JSONObject();
+      line.put("orderLineId", orderLine.getId());
+      line.put("lineNo", orderLine.getLineNo());
+      line.put("productId", orderLine.getProduct().getId());
+      line.put("quantity", orderLine.getOrderedQuantity());
+      // only the header is refreshed, the lines have the amounts set by setLineAmounts for their kind of price list
+      if (order.getPriceList().isPriceIncludesTax()) {
+        line.put("grossUnitPrice", orderLine.getGrossUnitPrice());
+        line.put("lineGrossAmount", orderLine.getLineGrossAmount());
+      } else {
+        line.put("unitPrice", orderLine.getUnitPrice());
+        line.put("lineNetAmount", orderLine.getLineNetAmount());
+      }
+      line.put("taxId", orderLine.getTax().getId());
+      lines.put(line);
+    }
+    result.put("lines", lines);
+    result.put("elapsedMillis", elapsedMillis);
+    return result;
+  }
+}
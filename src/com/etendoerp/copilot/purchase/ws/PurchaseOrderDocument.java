@@ -0,0 +1,323 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.advpaymentmngt.utility.FIN_Utility;
+import org.openbravo.base.exception.OBException;
+import org.openbravo.base.provider.OBProvider;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.dal.core.OBContext;
+import org.openbravo.model.common.businesspartner.BusinessPartner;
+import org.openbravo.model.common.businesspartner.Location;
+import org.openbravo.model.common.enterprise.DocumentType;
+import org.openbravo.model.common.enterprise.Organization;
+import org.openbravo.model.common.enterprise.Warehouse;
+import org.openbravo.model.common.order.Order;
+import org.openbravo.model.common.order.OrderLine;
+import org.openbravo.model.common.plm.Product;
+import org.openbravo.model.common.uom.UOM;
+import org.openbravo.model.financialmgmt.payment.FIN_PaymentMethod;
+import org.openbravo.model.financialmgmt.payment.PaymentTerm;
+import org.openbravo.model.pricing.pricelist.PriceList;
+
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+
+/**
+ * A purchase order sent as a whole document, with its header and lines, resolved to the entities it references.
+ * <p>
+ * Only the business partner and the product and quantity of every line are required. The rest of the header
+ * defaults to the purchase settings of the business partner (price list, payment terms and payment method, first
+ * active bill to address), the organization and warehouse of the context, the default purchase order document type
+ * of the organization and the current date.
+ */
+class PurchaseOrderDocument {
+
+  static final String FROM_COPILOT_PROPERTY = "etcpoppFromCopilot";
+  private static final String PURCHASE_ORDER_DOC_CATEGORY = "POO";
+  private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+  private final Organization organization;
+  private final BusinessPartner businessPartner;
+  private final Location partnerAddress;
+  private final DocumentType documentType;
+  private final PriceList priceList;
+  private final PaymentTerm paymentTerms;
+  private final FIN_PaymentMethod paymentMethod;
+  private final Warehouse warehouse;
+  private final Date orderDate;
+  private final Date scheduledDeliveryDate;
+  private final String description;
+  private final String orderReference;
+  private final List<LineSpec> lines;
+
+  private PurchaseOrderDocument(JSONObject body) throws JSONException {
+    OBContext obContext = OBContext.getOBContext();
+    businessPartner = getRequired(BusinessPartner.class, body, "businessPartnerId");
+    organization = getOptional(Organization.class, body, "organizationId", obContext.getCurrentOrganization());
+    warehouse = getOptional(Warehouse.class, body, "warehouseId", obContext.getWarehouse());
+    partnerAddress = getOptional(Location.class, body, "partnerAddressId", getDefaultAddress(businessPartner));
+    priceList = getOptional(PriceList.class, body, "priceListId", businessPartner.getPurchasePricelist());
+    paymentTerms = getOptional(PaymentTerm.class, body, "paymentTermsId", businessPartner.getPOPaymentTerms());
+    paymentMethod = getOptional(FIN_PaymentMethod.class, body, "paymentMethodId",
+        businessPartner.getPOPaymentMethod());
+    documentType = getOptional(DocumentType.class, body, "documentTypeId",
+        FIN_Utility.getDocumentType(organization, PURCHASE_ORDER_DOC_CATEGORY));
+    orderDate = getDate(body, "orderDate", new Date());
+    scheduledDeliveryDate = getDate(body, "scheduledDeliveryDate", orderDate);
+    description = body.optString("description", null);
+    orderReference = body.optString("orderReference", null);
+
+    List<String> missing = new ArrayList<>();
+    addIfMissing(missing, partnerAddress, "partnerAddressId");
+    addIfMissing(missing, priceList, "priceListId");
+    addIfMissing(missing, paymentTerms, "paymentTermsId");
+    addIfMissing(missing, paymentMethod, "paymentMethodId");
+    addIfMissing(missing, warehouse, "warehouseId");
+    addIfMissing(missing, documentType, "documentTypeId");
+    if (!missing.isEmpty()) {
+      throw new OBException("The business partner has no default for " + String.join(", ", missing)
+          + ", send it in the request");
+    }
+
+    lines = parseLines(body);
+  }
+
+  /**
+   * Parses and resolves an order document.
+   *
+   * @param body
+   *     the order document: businessPartnerId and lines are required, every line with a productId and a quantity.
+   * @return the resolved document.
+   * @throws OBException
+   *     if a required property is missing, a referenced record does not exist or has no default.
+   * @throws JSONException
+   *     if the document is not well formed.
+   */
+  static PurchaseOrderDocument fromJson(JSONObject body) throws JSONException {
+    return new PurchaseOrderDocument(body);
+  }
+
+  /**
+   * Parses and resolves the lines of an order document.
+   *
+   * @param body
+   *     the order document, its lines property must have at least one line with a productId and a quantity.
+   * @return the resolved lines, in the order of the document.
+   * @throws OBException
+   *     if there are no lines, or a line misses a required property or references a record that does not exist.
+   * @throws JSONException
+   *     if the lines are not well formed.
+   */
+  static List<LineSpec> parseLines(JSONObject body) throws JSONException {
+    JSONArray linesJson = body.optJSONArray("lines");
+    if (linesJson == null || linesJson.length() == 0) {
+      throw new OBException("The order has no lines");
+    }
+    List<LineSpec> parsedLines = new ArrayList<>(linesJson.length());
+    for (int i = 0; i < linesJson.length(); i++) {
+      parsedLines.add(new LineSpec(i, linesJson.getJSONObject(i)));
+    }
+    return Collections.unmodifiableList(parsedLines);
+  }
+
+  /**
+   * Builds the header of the order, flagged as created from the Copilot. The order is not saved.
+   *
+   * @param withDocumentNo
+   *     true to take the next document number of the document type, false to leave it empty.
+   * @return the new order.
+   */
+  Order newOrder(boolean withDocumentNo) {
+    Order order = OBProvider.getInstance().get(Order.class);
+    order.setClient(organization.getClient());
+    order.setOrganization(organization);
+    order.setSalesTransaction(false);
+    order.setDocumentType(documentType);
+    order.setTransactionDocument(documentType);
+    if (withDocumentNo) {
+      order.setDocumentNo(FIN_Utility.getDocumentNo(documentType, Order.TABLE_NAME));
+    }
+    order.setDocumentStatus("DR");
+    order.setDocumentAction("CO");
+    order.setProcessed(false);
+    order.setBusinessPartner(businessPartner);
+    order.setPartnerAddress(partnerAddress);
+    order.setInvoiceAddress(partnerAddress);
+    order.setPriceList(priceList);
+    order.setCurrency(priceList.getCurrency());
+    order.setPaymentTerms(paymentTerms);
+    order.setPaymentMethod(paymentMethod);
+    order.setWarehouse(warehouse);
+    order.setOrderDate(orderDate);
+    order.setAccountingDate(orderDate);
+    order.setScheduledDeliveryDate(scheduledDeliveryDate);
+    order.setDescription(description);
+    order.setOrderReference(orderReference);
+    order.set(FROM_COPILOT_PROPERTY, true);
+    return order;
+  }
+
+  /**
+   * Builds a line of the order, without prices nor tax. The line is not saved.
+   *
+   * @param order
+   *     the order of the line.
+   * @param line
+   *     the line of the document.
+   * @return the new line.
+   */
+  OrderLine newOrderLine(Order order, LineSpec line) {
+    OrderLine orderLine = OBProvider.getInstance().get(OrderLine.class);
+    orderLine.setClient(order.getClient());
+    orderLine.setOrganization(order.getOrganization());
+    orderLine.setSalesOrder(order);
+    orderLine.setLineNo((line.getPosition() + 1) * 10L);
+    orderLine.setOrderDate(order.getOrderDate());
+    orderLine.setScheduledDeliveryDate(order.getScheduledDeliveryDate());
+    orderLine.setWarehouse(order.getWarehouse());
+    orderLine.setCurrency(order.getCurrency());
+    orderLine.setBusinessPartner(order.getBusinessPartner());
+    orderLine.setPartnerAddress(order.getPartnerAddress());
+    orderLine.setProduct(line.getProduct());
+    orderLine.setUOM(line.getUom());
+    orderLine.setOrderedQuantity(line.getQuantity());
+    orderLine.setDescription(line.getDescription());
+    orderLine.setCancelPriceAdjustment(line.isCancelPriceAdjustment());
+    return orderLine;
+  }
+
+  /**
+   * @return the products of all the lines, without duplicates.
+   */
+  Set<Product> getProducts() {
+    Set<Product> products = new LinkedHashSet<>();
+    for (LineSpec line : lines) {
+      products.add(line.getProduct());
+    }
+    return products;
+  }
+
+  List<LineSpec> getLines() {
+    return lines;
+  }
+
+  private static Location getDefaultAddress(BusinessPartner businessPartner) {
+    for (Location location : businessPartner.getBusinessPartnerLocationList()) {
+      if (location.isActive() && location.isInvoiceToAddress()) {
+        return location;
+      }
+    }
+    return null;
+  }
+
+  private static <T extends BaseOBObject> T getRequired(Class<T> entityClass, JSONObject json,
+      String property) throws JSONException {
+    if (!json.has(property) || json.isNull(property)) {
+      throw new OBException("Missing required property " + property);
+    }
+    return getOptional(entityClass, json, property, null);
+  }
+
+  private static <T extends BaseOBObject> T getOptional(Class<T> entityClass, JSONObject json, String property,
+      T defaultValue) throws JSONException {
+    if (!json.has(property) || json.isNull(property)) {
+      return defaultValue;
+    }
+    T entity = ReadReplicaRouter.get(entityClass, json.getString(property));
+    if (entity == null) {
+      throw new OBException(String.format("%s not found: %s", property, json.getString(property)));
+    }
+    return entity;
+  }
+
+  private static Date getDate(JSONObject json, String property, Date defaultValue) throws JSONException {
+    if (!json.has(property)) {
+      return defaultValue;
+    }
+    try {
+      return new SimpleDateFormat(DATE_FORMAT).parse(json.getString(property));
+    } catch (ParseException e) {
+      throw new OBException(String.format("%s must be a date in the format %s", property, DATE_FORMAT));
+    }
+  }
+
+  private static void addIfMissing(List<String> missing, Object value, String property) {
+    if (value == null) {
+      missing.add(property);
+    }
+  }
+
+  /**
+   * A line of the document: a product, its quantity and optionally its unit of measure, a description and whether
+   * the price adjustments are skipped.
+   */
+  static class LineSpec {
+    private final int position;
+    private final Product product;
+    private final BigDecimal quantity;
+    private final UOM uom;
+    private final String description;
+    private final boolean cancelPriceAdjustment;
+
+    private LineSpec(int position, JSONObject json) throws JSONException {
+      this.position = position;
+      if (!json.has("productId") || json.isNull("productId") || !json.has("quantity")
+          || json.isNull("quantity")) {
+        throw new OBException(String.format("Line %d: productId and quantity are required", position + 1));
+      }
+      try {
+        product = getOptional(Product.class, json, "productId", null);
+        quantity = new BigDecimal(json.getString("quantity"));
+        uom = getOptional(UOM.class, json, "uomId", product.getUOM());
+      } catch (NumberFormatException e) {
+        throw new OBException(String.format("Line %d: the quantity is not a number", position + 1));
+      } catch (OBException e) {
+        throw new OBException(String.format("Line %d: %s", position + 1, e.getMessage()));
+      }
+      description = StringUtils.defaultIfEmpty(json.optString("description", null), null);
+      cancelPriceAdjustment = json.optBoolean("cancelPriceAdjustment", false);
+    }
+
+    /**
+     * @return the position of the line in the document, starting at 0.
+     */
+    int getPosition() {
+      return position;
+    }
+
+    Product getProduct() {
+      return product;
+    }
+
+    BigDecimal getQuantity() {
+      return quantity;
+    }
+
+    UOM getUom() {
+      return uom;
+    }
+
+    String getDescription() {
+      return description;
+    }
+
+    /**
+     * @return true to skip the price adjustments of the line.
+     */
+    boolean isCancelPriceAdjustment() {
+      return cancelPriceAdjustment;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+import org.openbravo.base.structure.BaseOBObject;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+import com.etendoerp.copilot.openapi.purchase.search.SimilaritySearchPlan;
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+import com.smf.securewebservices.utils.WSResult;
+import com.smf.securewebservices.utils.WSResult.Status;
+
+/**
+ * Handles the paginated and streamed modes of the similarity search of the {@link CopilotWSServlet}.
+ * <p>
+ * Both modes use keyset pagination: the results are sorted by their score and their ID, and a page ends with an
+ * opaque cursor with the score and the ID of its last row. The next page only returns the rows that sort after it,
+ * without an offset. Entities kept in ETCPOPP_SIM_IDX are sorted by the trigram distance and the rest by the score
+ * of the scan HQL of their search plan. The GIN trigram index only serves the % filter, not the ordering by
+ * distance, so every page computes and sorts the distance of all the matches above the similarity threshold. The
+ * cache and the in-memory similarity index only hold the top results, so these modes always query the database.
+ * <p>
+ * The streamed mode writes the rows as they are read from a forward-only scroll, so browsing a large catalog takes
+ * constant memory.
+ */
+class SimilaritySearchPageHandler {
+
+  public static final String MAX_RESULTS_PROPERTY = "copilot.purchase.search.maxResults";
+  public static final String FETCH_SIZE_PROPERTY = "copilot.purchase.search.stream.fetchSize";
+  private static final int DEFAULT_MAX_RESULTS = 10000;
+  private static final int DEFAULT_FETCH_SIZE = 500;
+  private static final String INDEXED_CURSOR = "i";
+  private static final String SCAN_CURSOR = "s";
+  // sorts before any row, so the first page uses the same query as the rest
+  private static final float FIRST_DISTANCE = -1f;
+  private static final BigDecimal FIRST_SCORE = BigDecimal.valueOf(101);
+
+  //@formatter:off
+  /**
+   * Page of a similarity search over the ETCPOPP_SIM_IDX shadow table. It returns the same columns as
+   * SIM_SEARCH_TOP_SQL plus the trigram distance, the sort key of the cursor, and only reads the rows that sort after
+   * the cursor.
+   */
+  private static final String SIM_SEARCH_PAGE_SQL = new StringBuilder()
+      .append("select i.record_id, i.identifier, ")
+      .append(" cast(similarity(i.identifier, :searchTerm) * 100 as numeric) as similarity_percent, ")
+      .append(" i.identifier <-> :searchTerm as distance ")
+      .append(" from etcpopp_sim_idx i ")
+      .append(" where i.tablename = :tableName ")
+      .append(" and i.isactive = 'Y' ")
+      .append(" and i.ad_client_id in (:clientIds) ")
+      .append(" and i.ad_org_id in (:orgIds) ")
+      .append(" and i.identifier % :searchTerm ")
+      .append(" and similarity(i.identifier, :searchTerm) * 100 > :minSimPercent ")
+      .append(" and (i.identifier <-> :searchTerm > cast(:cursorDistance as real) ")
+      .append("  or (i.identifier <-> :searchTerm = cast(:cursorDistance as real) and i.record_id > :cursorId)) ")
+      .append(" order by i.identifier <-> :searchTerm, i.record_id")
+      .toString();
+  //@formatter:on
+
+  private SimilaritySearchPageHandler() {
+  }
+
+  /**
+   * @return true if the request asks for a page of results, with the cursor or the pageSize parameter, or for the
+   *     streamed mode.
+   */
+  static boolean isPaged(Map<String, String> requestParams) {
+    return requestParams.containsKey("cursor") || requestParams.containsKey("pageSize") || isStreamed(
+        requestParams);
+  }
+
+  /**
+   * @return true if the request asks for the streamed mode, with the stream parameter.
+   */
+  static boolean isStreamed(Map<String, String> requestParams) {
+    return StringUtils.equalsIgnoreCase("true", requestParams.get("stream"));
+  }
+
+  /**
+   * Returns a page of a similarity search: the results after the cursor, if any, and the cursor of the next page,
+   * which is not returned when there are no more results.
+   *
+   * @param plan
+   *     the search plan of the entity.
+   * @param requestParams
+   *     the parameters of the request: searchTerm, minSimPercent, searchMode, cursor and pageSize, qtyResults if
+   *     pageSize is not sent.
+   * @return a WSResult with the results and the next cursor, or with an error if the cursor is not valid.
+   * @throws JSONException
+   *     if an error occurs while processing the JSON data.
+   */
+  static WSResult handlePage(SimilaritySearchPlan plan, Map<String, String> requestParams) throws JSONException {
+    WSResult wsResult = new WSResult();
+    PageRequest pageRequest;
+    try {
+      pageRequest = new PageRequest(plan, requestParams);
+    } catch (IllegalArgumentException e) {
+      wsResult.setStatus(Status.BAD_REQUEST);
+      wsResult.setMessage(e.getMessage());
+      return wsResult;
+    }
+    List<Object[]> rows = pageRequest.createQuery().setMaxResults(pageRequest.pageSize + 1).list();
+    JSONArray results = new JSONArray();
+    String nextCursor = null;
+    for (int i = 0; i < rows.size() && i < pageRequest.pageSize; i++) {
+      Object[] row = pageRequest.toRow(rows.get(i));
+      results.put(CopilotWSServlet.toSearchResultJson((String) row[0], (String) row[1], (BigDecimal) row[2]));
+      if (i == pageRequest.pageSize - 1 && rows.size() > pageRequest.pageSize) {
+        nextCursor = pageRequest.encodeCursor(row);
+      }
+    }
+    JSONObject data = new JSONObject();
+    data.put("results", results);
+    if (nextCursor != null) {
+      data.put("nextCursor", nextCursor);
+    }
+    wsResult.setStatus(Status.OK);
+    wsResult.setData(data);
+    return wsResult;
+  }
+
+  /**
+   * Writes the results of a similarity search to the response as they are read from a forward-only scroll, as a
+   * JSON object with the results array and, if the results do not fit in pageSize, the cursor to continue.
+   *
+   * @param plan
+   *     the search plan of the entity.
+   * @param requestParams
+   *     the same parameters as {@link #handlePage(SimilaritySearchPlan, Map)}.
+   * @param response
+   *     the HTTP response.
+   * @return the number of results written, or -1 if the request was not valid.
+   * @throws IOException
+   *     if there is an error writing the response.
+   * @throws JSONException
+   *     if an error occurs while processing the JSON data.
+   */
+  static int handleStream(SimilaritySearchPlan plan, Map<String, String> requestParams,
+      HttpServletResponse response) throws IOException, JSONException {
+    PageRequest pageRequest;
+    try {
+      pageRequest = new PageRequest(plan, requestParams);
+    } catch (IllegalArgumentException e) {
+      JSONObject error = new JSONObject();
+      error.put(AttachmentUploadHandler.ERROR_PROPERTY, e.getMessage());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.setContentType("application/json");
+      response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+      response.getWriter().write(error.toString());
+      return -1;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    Writer writer = response.getWriter();
+    Session session = ReadReplicaRouter.getReadDal().getSession();
+    int written = 0;
+    String nextCursor = null;
+    writer.write("{\"results\":[");
+    try (ScrollableResults scroll = pageRequest.createQuery()
+        .setFetchSize(PurchaseConfig.getInt(FETCH_SIZE_PROPERTY, DEFAULT_FETCH_SIZE))
+        .setMaxResults(pageRequest.pageSize + 1)
+        .scroll(ScrollMode.FORWARD_ONLY)) {
+      Object[] previous = null;
+      while (scroll.next()) {
+        Object[] scrolled = scroll.get();
+        if (written == pageRequest.pageSize) {
+          nextCursor = pageRequest.encodeCursor(previous);
+          break;
+        }
+        Object[] row = pageRequest.toRow(scrolled);
+        if (scrolled[0] instanceof BaseOBObject) {
+          // the scan loads the entities, they are not kept in the session
+          session.evict(scrolled[0]);
+        }
+        if (written > 0) {
+          writer.write(',');
+        }
+        writer.write(CopilotWSServlet.toSearchResultJson((String) row[0], (String) row[1], (BigDecimal) row[2])
+            .toString());
+        written++;
+        previous = row;
+      }
+    }
+    writer.write(']');
+    if (nextCursor != null) {
+      writer.write(",\"nextCursor\":");
+      writer.write(JSONObject.quote(nextCursor));
+    }
+    writer.write('}');
+    return written;
+  }
+
+  /**
+   * The parameters of a page and the query that reads it.
+   */
+  private static class PageRequest {
+    private final SimilaritySearchPlan plan;
+    private final boolean indexed;
+    private final String searchTerm;
+    private final int minSimPercent;
+    private final int pageSize;
+    private final Object cursorKey;
+    private final String cursorId;
+
+    private PageRequest(SimilaritySearchPlan plan, Map<String, String> requestParams) {
+      this.plan = plan;
+      this.indexed = plan.isIndexed() && !StringUtils.equalsIgnoreCase(CopilotWSServlet.SEARCH_MODE_LEGACY,
+          requestParams.get("searchMode"));
+      this.searchTerm = StringUtils.trim(requestParams.get("searchTerm"));
+      if (StringUtils.isEmpty(searchTerm)) {
+        throw new IllegalArgumentException("The searchTerm parameter is required");
+      }
+      this.minSimPercent = parseInt(requestParams.get("minSimPercent"), CopilotWSServlet.MIN_SIM_PERCENT);
+      int maxResults = PurchaseConfig.getInt(MAX_RESULTS_PROPERTY, DEFAULT_MAX_RESULTS);
+      int size = parseInt(requestParams.getOrDefault("pageSize", requestParams.get("qtyResults")), 1);
+      if (size < 1 || size > maxResults) {
+        throw new IllegalArgumentException("The page size must be between 1 and " + maxResults);
+      }
+      this.pageSize = size;
+
+      String cursor = requestParams.get("cursor");
+      if (StringUtils.isBlank(cursor)) {
+        this.cursorKey = indexed ? (Object) FIRST_DISTANCE : FIRST_SCORE;
+        this.cursorId = "";
+        return;
+      }
+      String[] parts;
+      try {
+        parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", -1);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("The cursor is not valid");
+      }
+      // a cursor is only valid for the search that returned it
+      if (parts.length != 4 || !StringUtils.equals(parts[0], indexed ? INDEXED_CURSOR : SCAN_CURSOR)
+          || !StringUtils.equals(parts[3], searchHash())) {
+        throw new IllegalArgumentException("The cursor is not valid for this search");
+      }
+      try {
+        this.cursorKey = indexed ? (Object) Float.valueOf(parts[1]) : new BigDecimal(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("The cursor is not valid");
+      }
+      this.cursorId = parts[2];
+    }
+
+    private Query<Object[]> createQuery() {
+      OBContext obContext = OBContext.getOBContext();
+      Session session = ReadReplicaRouter.getReadDal().getSession();
+      Query<Object[]> query;
+      if (indexed) {
+        // The % operator compares against pg_trgm.similarity_threshold, set it only for the current transaction
+        session.createNativeQuery("select set_config('pg_trgm.similarity_threshold', :threshold, true)")
+            .setParameter("threshold", String.valueOf(minSimPercent / 100.0))
+            .uniqueResult();
+        @SuppressWarnings("unchecked")
+        Query<Object[]> nativeQuery = session.createNativeQuery(SIM_SEARCH_PAGE_SQL)
+            .setParameter("tableName", plan.getTableName())
+            .setParameter("minSimPercent", minSimPercent)
+            .setParameter("cursorDistance", cursorKey);
+        query = nativeQuery;
+      } else {
+        query = session.createQuery(plan.getScanPageHql(), Object[].class)
+            .setParameter("minSimPercent", BigDecimal.valueOf(minSimPercent))
+            .setParameter("cursorScore", cursorKey);
+        if (plan.scanUsesTableName()) {
+          query.setParameter("tableName", plan.getTableName());
+        }
+      }
+      return query.setParameter("searchTerm", searchTerm)
+          .setParameter("cursorId", cursorId)
+          .setParameterList("clientIds", obContext.getReadableClients())
+          .setParameterList("orgIds", obContext.getReadableOrganizations());
+    }
+
+    /**
+     * Converts a row of the query to the ID, the identifier, the similarity percent and the sort key of a result.
+     */
+    private Object[] toRow(Object[] queried) {
+      if (indexed) {
+        return new Object[] { queried[0], queried[1], queried[2], queried[3] };
+      }
+      BaseOBObject entity = (BaseOBObject) queried[0];
+      return new Object[] { entity.getId(), entity.getIdentifier(), queried[1], queried[1] };
+    }
+
+    private String encodeCursor(Object[] row) {
+      String cursor = String.join("|", indexed ? INDEXED_CURSOR : SCAN_CURSOR, String.valueOf(row[3]),
+          (String) row[0], searchHash());
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String searchHash() {
+      String search = String.join("|", plan.getName(), StringUtils.defaultString(searchTerm),
+          String.valueOf(minSimPercent));
+      return Integer.toHexString(search.hashCode());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+      if (StringUtils.isBlank(value)) {
+        return defaultValue;
+      }
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Not a number: " + value);
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.etendoerp.copilot.purchase.ws;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.openbravo.dal.core.OBContext;
+
+import com.etendoerp.copilot.openapi.purchase.replica.ReadReplicaRouter;
+import com.etendoerp.copilot.openapi.purchase.utils.PurchaseConfig;
+
+/**
+ * Similarity search of the products restricted to the catalog of a vendor, for the businessPartnerId parameter of the
+ * searchBySimilarity endpoint of the {@link CopilotWSServlet}.
+ * <p>
+ * The catalog of every vendor is kept in ETCPOPP_VENDOR_PRODUCT by database triggers: the products it is an approved
+ * vendor of, and the products of its completed purchase orders, with the number of orders and the date of the last
+ * one. A vendor supplies a few hundred products at most, so the similarity of its whole catalog is computed, with the
+ * unique index of the table, instead of searching every product. The results with the same similarity are told
+ * apart by a boost: a fixed one for the approved products, one that grows with the number of purchases and one that
+ * halves every copilot.purchase.vendorCatalog.recencyHalfLifeDays since the last purchase. The weights are read from
+ * copilot.purchase.vendorCatalog.boost.{approved,frequency,recency}.
+ */
+class VendorCatalogSearch {
+
+  public static final String APPROVED_BOOST_PROPERTY = "copilot.purchase.vendorCatalog.boost.approved";
+  public static final String FREQUENCY_BOOST_PROPERTY = "copilot.purchase.vendorCatalog.boost.frequency";
+  public static final String RECENCY_BOOST_PROPERTY = "copilot.purchase.vendorCatalog.boost.recency";
+  public static final String RECENCY_HALF_LIFE_PROPERTY = "copilot.purchase.vendorCatalog.recencyHalfLifeDays";
+  private static final String PRODUCT_ENTITY = "Product";
+
+  //@formatter:off
+  /**
+   * Similarity search over the catalog of a vendor. The minimum similarity applies to the similarity alone, and the
+   * results are sorted by the similarity plus the boost of the purchase history.
+   */
+  private static final String VENDOR_CATALOG_SEARCH_SQL = new StringBuilder()
+      .append("select i.record_id, i.identifier, ")
+      .append(" cast(similarity(i.identifier, :searchTerm) * 100 as numeric) as similarity_percent, ")
+      .append(" vp.purchase_count, vp.last_purchased, vp.isapproved, ")
+      .append(" similarity(i.identifier, :searchTerm) * 100 ")
+      .append(" + case when vp.isapproved = 'Y' then :approvedBoost else 0 end ")
+      .append(" + :frequencyBoost * (1 - 1 / (1 + cast(vp.purchase_count as double precision))) ")
+      .append(" + coalesce(:recencyBoost * power(cast(0.5 as double precision), ")
+      .append("   cast(extract(epoch from (now() - vp.last_purchased)) as double precision) / 86400 / :halfLifeDays), ")
+      .append("   0) as score ")
+      .append(" from etcpopp_vendor_product vp ")
+      .append(" join etcpopp_sim_idx i on i.tablename = 'm_product' and i.record_id = vp.m_product_id ")
+      .append(" where vp.c_bpartner_id = :businessPartnerId ")
+      .append(" and vp.isactive = 'Y' ")
+      .append(" and i.isactive = 'Y' ")
+      .append(" and i.ad_client_id in (:clientIds) ")
+      .append(" and i.ad_org_id in (:orgIds) ")
+      .append(" and similarity(i.identifier, :searchTerm) * 100 > :minSimPercent ")
+      .append(" order by score desc, i.record_id ")
+      .append(" limit :qtyResults")
+      .toString();
+  //@formatter:on
+
+  private VendorCatalogSearch() {
+  }
+
+  /**
+   * @return true if the search can be restricted to the catalog of a vendor: the entity is the product and the
+   *     business partner is sent.
+   */
+  static boolean applies(String entityName, String businessPartnerId) {
+    return StringUtils.equals(PRODUCT_ENTITY, entityName) && StringUtils.isNotBlank(businessPartnerId);
+  }
+
+  /**
+   * Searches the products of the catalog of a vendor.
+   *
+   * @param businessPartnerId
+   *     the ID of the vendor.
+   * @param searchTerm
+   *     the search term.
+   * @param minSimPercent
+   *     the minimum similarity percent a product must reach to be returned.
+   * @param qtyResults
+   *     the maximum number of results.
+   * @return the results, from the best ranked, each with its id, name and similarity_percent, as in the global
+   *     search, and the purchase_count, last_purchased and approved_vendor of the product for the vendor. It is empty
+   *     if no product of the catalog reaches the minimum similarity.
+   * @throws JSONException
+   *     if an error occurs while processing the JSON data.
+   */
+  static JSONArray search(String businessPartnerId, String searchTerm, int minSimPercent, int qtyResults)
+      throws JSONException {
+    JSONArray results = new JSONArray();
+    if (StringUtils.isBlank(searchTerm) || qtyResults < 1) {
+      return results;
+    }
+    OBContext obContext = OBContext.getOBContext();
+    @SuppressWarnings("unchecked")
+    List<Object[]> rows = ReadReplicaRouter.getReadDal().getSession().createNativeQuery(VENDOR_CATALOG_SEARCH_SQL)
+        .setParameter("businessPartnerId", businessPartnerId)
+        .setParameter("searchTerm", StringUtils.trim(searchTerm))
+        .setParameter("minSimPercent", minSimPercent)
+        .setParameter("qtyResults", qtyResults)
+        .setParameter("approvedBoost", PurchaseConfig.getInt(APPROVED_BOOST_PROPERTY, 5))
+        .setParameter("frequencyBoost", PurchaseConfig.getInt(FREQUENCY_BOOST_PROPERTY, 10))
+        .setParameter("recencyBoost", PurchaseConfig.getInt(RECENCY_BOOST_PROPERTY, 10))
+        .setParameter("halfLifeDays", Math.max(1, PurchaseConfig.getInt(RECENCY_HALF_LIFE_PROPERTY, 90)))
+        .setParameterList("clientIds", obContext.getReadableClients())
+        .setParameterList("orgIds", obContext.getReadableOrganizations())
+        .list();
+    for (Object[] row : rows) {
+      JSONObject result = CopilotWSServlet.toSearchResultJson((String) row[0], (String) row[1],
+          (BigDecimal) row[2]);
+      result.put("purchase_count", ((Number) row[3]).longValue());
+      if (row[4] != null) {
+        result.put("last_purchased", ((Timestamp) row[4]).toLocalDateTime().toLocalDate().toString());
+      }
+      result.put("approved_vendor", StringUtils.equals("Y", String.valueOf(row[5])));
+      results.put(result);
+    }
+    return results;
+  }
+}
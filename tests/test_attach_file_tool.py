@@ -1,7 +1,23 @@
+import gzip
+import hashlib
+import os
+import shutil
+import tempfile
 import unittest
-from unittest.mock import patch, mock_open
+from unittest.mock import patch, mock_open, MagicMock
 
-from tools.AttachFileTool import AttachFileTool
+import requests
+
+from tools.AttachFileTool import (AttachFileTool, ATTACH_FILE_ENDPOINT, ATTACH_BY_HASH_ENDPOINT,
+                                  INITIATE_UPLOAD_ENDPOINT, UPLOAD_CHUNK_ENDPOINT, COMPLETE_UPLOAD_ENDPOINT,
+                                  UPLOAD_STATUS_ENDPOINT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT)
+
+
+def _response(status_code, json_data):
+    response = MagicMock()
+    response.status_code = status_code
+    response.json.return_value = json_data
+    return response
 
 
 class TestAttachFileTool(unittest.TestCase):
@@ -52,5 +68,168 @@ class TestAttachFileTool(unittest.TestCase):
             self.assertIn('No access token provided', str(e))
 
 
+    @patch('os.path.getsize', return_value=1024)
+    @patch('tools.AttachFileTool.requests.post')
+    @patch('builtins.open', new_callable=mock_open, read_data=b'%PDF-1.4 binary content')
+    def test_attach_file_streams_binary_body(self, mock_file, mock_post, mock_getsize):
+        mock_post.return_value.json.return_value = {'message': 'Attachment created successfully'}
+        result = AttachFileTool().attach_file('http://etendo', 'dummy_token', 'tab', 'record', 'invoice.pdf',
+                                              '/path/to/invoice.pdf')
+        self.assertEqual(result, {'message': 'Attachment created successfully'})
+        args, kwargs = mock_post.call_args
+        self.assertEqual(args[0], 'http://etendo' + ATTACH_FILE_ENDPOINT)
+        self.assertEqual(kwargs['params'], {'adTabId': 'tab', 'recordId': 'record', 'fileName': 'invoice.pdf',
+                                            'sha256': hashlib.sha256(b'%PDF-1.4 binary content').hexdigest()})
+        self.assertEqual(kwargs['headers']['Content-Type'], 'application/octet-stream')
+        self.assertEqual(kwargs['headers']['Authorization'], 'Bearer dummy_token')
+        self.assertNotIn('Content-Encoding', kwargs['headers'])
+        self.assertIs(kwargs['data'], mock_file.return_value)
+
+    @patch('os.path.getsize', return_value=1024)
+    @patch('tools.AttachFileTool.requests.post')
+    @patch('builtins.open', new_callable=mock_open, read_data=b'code,qty\nWB-1,10\n')
+    def test_attach_file_compresses_text(self, mock_file, mock_post, mock_getsize):
+        mock_post.return_value.json.return_value = {'message': 'Attachment created successfully'}
+        AttachFileTool().attach_file('http://etendo', 'dummy_token', 'tab', 'record', 'lines.csv', '/path/to/lines.csv')
+        _, kwargs = mock_post.call_args
+        self.assertEqual(kwargs['headers']['Content-Encoding'], 'gzip')
+        self.assertEqual(gzip.decompress(b''.join(kwargs['data'])), b'code,qty\nWB-1,10\n')
+
+    @patch('os.path.getsize', return_value=1024)
+    @patch('tools.AttachFileTool.requests.post')
+    @patch('builtins.open', new_callable=mock_open, read_data=b'content')
+    def test_attach_file_unexpected_response(self, mock_file, mock_post, mock_getsize):
+        mock_post.return_value.status_code = 502
+        mock_post.return_value.json.side_effect = ValueError()
+        result = AttachFileTool().attach_file('http://etendo', 'dummy_token', 'tab', 'record', 'a.pdf', '/path/a.pdf')
+        self.assertEqual(result, {'error': 'Unexpected response from the server: 502'})
+
+    @patch('os.path.getsize', return_value=1024)
+    @patch('tools.AttachFileTool.requests.post')
+    @patch('builtins.open', new_callable=mock_open, read_data=b'%PDF-1.4 binary content')
+    def test_attach_file_content_already_stored(self, mock_file, mock_post, mock_getsize):
+        mock_post.return_value = _response(200, {'data': {'message': 'Attachment created from stored content',
+                                                          'attachmentId': 'A1', 'dedup': True,
+                                                          'dedupType': 'storedContent'}})
+        result = AttachFileTool().attach_file('http://etendo', 'dummy_token', 'tab', 'record', 'invoice.pdf',
+                                              '/path/to/invoice.pdf')
+        self.assertEqual(result['attachmentId'], 'A1')
+        self.assertTrue(result['dedup'])
+        mock_post.assert_called_once()
+        args, kwargs = mock_post.call_args
+        self.assertEqual(args[0], 'http://etendo' + ATTACH_BY_HASH_ENDPOINT)
+        self.assertEqual(kwargs['json']['sha256'], hashlib.sha256(b'%PDF-1.4 binary content').hexdigest())
+
+
+@patch('tools.AttachFileTool.UPLOAD_CHUNK_SIZE', 8)
+@patch('tools.AttachFileTool.CHUNKED_UPLOAD_THRESHOLD', 10)
+class TestAttachFileToolChunked(unittest.TestCase):
+    content = b'0123456789abcdefghij'
+
+    def setUp(self):
+        self.work_dir = tempfile.mkdtemp()
+        self.file_path = os.path.join(self.work_dir, 'big.pdf')
+        with open(self.file_path, 'wb') as file:
+            file.write(self.content)
+        state_dir_patch = patch('tools.AttachFileTool.UPLOAD_STATE_DIR', os.path.join(self.work_dir, 'state'))
+        state_dir_patch.start()
+        self.addCleanup(state_dir_patch.stop)
+        self.addCleanup(shutil.rmtree, self.work_dir)
+        # the content is not stored on the server, so it is always uploaded
+        attach_by_hash_patch = patch('tools.AttachFileTool._attach_by_hash', return_value=None)
+        attach_by_hash_patch.start()
+        self.addCleanup(attach_by_hash_patch.stop)
+
+    def _attach(self):
+        return AttachFileTool().attach_file('http://etendo', 'dummy_token', 'tab', 'record', 'big.pdf',
+                                            self.file_path)
+
+    @staticmethod
+    def _chunk_response(url, params=None, data=None, headers=None, json=None, timeout=None):
+        if url.endswith(INITIATE_UPLOAD_ENDPOINT):
+            return _response(200, {'data': {'uploadId': 'u1', 'offset': 0}})
+        if url.endswith(UPLOAD_CHUNK_ENDPOINT):
+            return _response(200, {'uploadId': 'u1', 'offset': params['offset'] + len(data)})
+        return _response(200, {'data': {'message': 'Attachment created successfully'}})
+
+    @patch('tools.AttachFileTool.requests.get')
+    @patch('tools.AttachFileTool.requests.post')
+    def test_chunked_upload(self, mock_post, mock_get):
+        mock_post.side_effect = self._chunk_response
+        result = self._attach()
+        self.assertEqual(result, {'data': {'message': 'Attachment created successfully'}})
+        mock_get.assert_not_called()
+        urls = [call.args[0] for call in mock_post.call_args_list]
+        self.assertEqual(urls[0], 'http://etendo' + INITIATE_UPLOAD_ENDPOINT)
+        self.assertEqual(urls[1:4], ['http://etendo' + UPLOAD_CHUNK_ENDPOINT] * 3)
+        self.assertEqual(urls[4], 'http://etendo' + COMPLETE_UPLOAD_ENDPOINT)
+        chunks = [call.kwargs for call in mock_post.call_args_list[1:4]]
+        self.assertEqual(b''.join(chunk['data'] for chunk in chunks), self.content)
+        self.assertEqual([chunk['params']['offset'] for chunk in chunks], [0, 8, 16])
+        self.assertEqual(chunks[0]['params']['sha256'], hashlib.sha256(self.content[:8]).hexdigest())
+        self.assertEqual(mock_post.call_args_list[4].kwargs['json'],
+                         {'uploadId': 'u1', 'sha256': hashlib.sha256(self.content).hexdigest()})
+        self.assertEqual(os.listdir(os.path.join(self.work_dir, 'state')), [])
+
+    @patch('tools.AttachFileTool.requests.get')
+    @patch('tools.AttachFileTool.requests.post')
+    def test_chunked_upload_resumes_after_failure(self, mock_post, mock_get):
+        calls = {'failed': False}
+
+        def post(url, params=None, data=None, headers=None, json=None, timeout=None):
+            if url.endswith(UPLOAD_CHUNK_ENDPOINT) and params['offset'] == 8 and not calls['failed']:
+                calls['failed'] = True
+                return _response(500, {'error': 'Broken pipe'})
+            return self._chunk_response(url, params, data, headers, json, timeout)
+
+        mock_post.side_effect = post
+        mock_get.return_value = _response(200, {'data': {'uploadId': 'u1', 'offset': 8}})
+        result = self._attach()
+        self.assertEqual(result, {'data': {'message': 'Attachment created successfully'}})
+        self.assertEqual(mock_get.call_args.args[0], 'http://etendo' + UPLOAD_STATUS_ENDPOINT)
+        offsets = [call.kwargs['params']['offset'] for call in mock_post.call_args_list
+                   if call.args[0].endswith(UPLOAD_CHUNK_ENDPOINT)]
+        self.assertEqual(offsets, [0, 8, 8, 16])
+
+    @patch('tools.AttachFileTool.requests.get')
+    @patch('tools.AttachFileTool.requests.post')
+    def test_chunked_upload_resumes_after_timeout(self, mock_post, mock_get):
+        calls = {'timed_out': False}
+
+        def post(url, params=None, data=None, headers=None, json=None, timeout=None):
+            self.assertEqual(timeout, (DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT))
+            if url.endswith(UPLOAD_CHUNK_ENDPOINT) and params['offset'] == 8 and not calls['timed_out']:
+                calls['timed_out'] = True
+                raise requests.Timeout('Read timed out')
+            return self._chunk_response(url, params, data, headers, json, timeout)
+
+        mock_post.side_effect = post
+        mock_get.return_value = _response(200, {'data': {'uploadId': 'u1', 'offset': 8}})
+        result = self._attach()
+        self.assertEqual(result, {'data': {'message': 'Attachment created successfully'}})
+        self.assertEqual(mock_get.call_args.kwargs['timeout'], (DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT))
+        offsets = [call.kwargs['params']['offset'] for call in mock_post.call_args_list
+                   if call.args[0].endswith(UPLOAD_CHUNK_ENDPOINT)]
+        self.assertEqual(offsets, [0, 8, 8, 16])
+
+    @patch('tools.AttachFileTool.requests.get')
+    @patch('tools.AttachFileTool.requests.post')
+    def test_chunked_upload_resumes_previous_run(self, mock_post, mock_get):
+        mock_post.side_effect = lambda url, **kwargs: _response(500, {'error': 'Unavailable'}) \
+            if url.endswith(UPLOAD_CHUNK_ENDPOINT) else self._chunk_response(url, **kwargs)
+        mock_get.return_value = _response(200, {'data': {'uploadId': 'u1', 'offset': 0}})
+        self.assertEqual(self._attach(), {'error': 'Unavailable'})
+
+        mock_post.reset_mock()
+        mock_post.side_effect = self._chunk_response
+        mock_get.return_value = _response(200, {'data': {'uploadId': 'u1', 'offset': 16}})
+        result = self._attach()
+        self.assertEqual(result, {'data': {'message': 'Attachment created successfully'}})
+        urls = [call.args[0] for call in mock_post.call_args_list]
+        self.assertNotIn('http://etendo' + INITIATE_UPLOAD_ENDPOINT, urls)
+        self.assertEqual(mock_post.call_args_list[0].kwargs['params']['offset'], 16)
+        self.assertEqual(mock_post.call_args_list[0].kwargs['data'], self.content[16:])
+
+
 if __name__ == '__main__':
     unittest.main()
@@ -1,14 +1,39 @@
-import base64
+import hashlib
+import json
 import os
-from typing import Type, Optional, Dict
+import tempfile
+import zlib
+from typing import Type, Optional, Dict, Iterator, Tuple
+
+import requests
 
 from copilot.core import utils
-from copilot.core.etendo_utils import call_webhook, get_etendo_token
+from copilot.core.etendo_utils import get_etendo_token
 from copilot.core.tool_input import ToolInput, ToolField
 from copilot.core.tool_wrapper import ToolWrapper
 from copilot.core.utils import copilot_debug
 
 
+COPILOT_WS_PATH = "/sws/com.etendoerp.copilot.openapi.purchase.copilotws"
+ATTACH_FILE_ENDPOINT = COPILOT_WS_PATH + "/attachFile"
+INITIATE_UPLOAD_ENDPOINT = COPILOT_WS_PATH + "/initiateUpload"
+UPLOAD_CHUNK_ENDPOINT = COPILOT_WS_PATH + "/uploadChunk"
+COMPLETE_UPLOAD_ENDPOINT = COPILOT_WS_PATH + "/completeUpload"
+UPLOAD_STATUS_ENDPOINT = COPILOT_WS_PATH + "/uploadStatus"
+ATTACH_BY_HASH_ENDPOINT = COPILOT_WS_PATH + "/attachByHash"
+CHUNK_SIZE = 64 * 1024
+# Files bigger than this are sent with the chunked upload, which can be resumed after a failure
+CHUNKED_UPLOAD_THRESHOLD = 8 * 1024 * 1024
+UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024
+MAX_CHUNK_RETRIES = 3
+# Seconds to wait for the connection and for every read of the response, so a stalled request never hangs the tool
+DEFAULT_CONNECT_TIMEOUT = 10
+DEFAULT_READ_TIMEOUT = 120
+UPLOAD_STATE_DIR = os.path.join(tempfile.gettempdir(), "etendo_chunked_uploads")
+# Formats that are already compressed (PDF streams, images, office documents) are sent as they are
+COMPRESSIBLE_EXTENSIONS = {".txt", ".csv", ".xml", ".json", ".html", ".htm", ".md", ".svg", ".tsv", ".log"}
+
+
 class AttachFileInput(ToolInput):
     filepath: str = ToolField(description="The path of the file to upload")
     ad_tab_id: str = ToolField(description="A string of 32 chars which is the ID of the Tab")
@@ -44,26 +69,225 @@ class AttachFileTool(ToolWrapper):
         if not os.path.isfile(full_file_path) or not os.access(full_file_path, os.R_OK):
             return {"error": "File does not exist or is not accessible"}
 
-        # Read the file and encode it in base64
-        with open(full_file_path, "rb") as file:
-            file_content = file.read()
-            file_base64 = base64.b64encode(file_content).decode('utf-8')
         file_name = os.path.basename(filepath)
         access_token = get_etendo_token()
         etendo_host = utils.read_optional_env_var("ETENDO_HOST", "http://host.docker.internal:8080/etendo")
         copilot_debug(f"ETENDO_HOST: {etendo_host}")
-        return self.attach_file(etendo_host, access_token, ad_tab_id, record_id, file_name, file_base64)
-
-    def attach_file(self, url, access_token, ad_tab_id, record_id, file_name, file_base64):
-        webhook_name = "AttachFile"
-        body_params = {
-            "ADTabId": ad_tab_id,
-            "RecordId": record_id,
-            "FileName": file_name,
-            "FileContent": file_base64
-        }
-        post_result = call_webhook(access_token, body_params, url, webhook_name)
-        return post_result
+        return self.attach_file(etendo_host, access_token, ad_tab_id, record_id, file_name, full_file_path)
+
+    def attach_file(self, url, access_token, ad_tab_id, record_id, file_name, file_path):
+        """
+        Uploads the file as the binary body of the request, streaming it from disk. Text formats are compressed
+        on the fly with gzip, the rest are sent as they are. Big files are sent in chunks with attach_file_chunked.
+        The SHA-256 of the file is sent first: if the server already stores that content, it is attached without
+        uploading the file again.
+        """
+        file_size = os.path.getsize(file_path)
+        sha256 = _file_sha256(file_path)
+        dedup = _attach_by_hash(url, access_token, ad_tab_id, record_id, file_name, sha256)
+        if dedup is not None:
+            return dedup
+        if file_size > CHUNKED_UPLOAD_THRESHOLD:
+            return self.attach_file_chunked(url, access_token, ad_tab_id, record_id, file_name, file_path, file_size,
+                                            sha256)
+        headers = _get_headers(access_token)
+        headers["Content-Type"] = "application/octet-stream"
+        params = {"adTabId": ad_tab_id, "recordId": record_id, "fileName": file_name, "sha256": sha256}
+        with open(file_path, "rb") as file:
+            if os.path.splitext(file_name)[1].lower() in COMPRESSIBLE_EXTENSIONS:
+                headers["Content-Encoding"] = "gzip"
+                body = _gzip_chunks(file)
+            else:
+                body = file
+            try:
+                response = requests.post(url + ATTACH_FILE_ENDPOINT, params=params, data=body, headers=headers,
+                                         timeout=_timeout())
+            except requests.Timeout:
+                return {"error": "The upload timed out, run the tool again"}
+        copilot_debug(f"AttachFile response: {response.status_code}")
+        try:
+            return response.json()
+        except ValueError:
+            return {"error": f"Unexpected response from the server: {response.status_code}"}
+
+    def attach_file_chunked(self, url, access_token, ad_tab_id, record_id, file_name, file_path, file_size,
+                            sha256=None):
+        """
+        Uploads the file in chunks: the upload is initiated, every chunk is sent with its SHA-256 at the offset
+        acknowledged by the server, and the upload is completed with the SHA-256 of the whole file. A failed or timed
+        out chunk is retried from the offset reported by the server. The upload id is kept in a local state file until the
+        upload is completed, so a later run for the same file resumes from the last acknowledged chunk.
+        """
+        headers = _get_headers(access_token)
+        state_file = _upload_state_file(file_path, file_size, ad_tab_id, record_id)
+        upload_id, offset = _resume_upload(url, headers, state_file)
+        if upload_id is None:
+            body = {"adTabId": ad_tab_id, "recordId": record_id, "fileName": file_name, "size": file_size}
+            try:
+                response = requests.post(url + INITIATE_UPLOAD_ENDPOINT, json=body, headers=headers,
+                                         timeout=_timeout())
+            except requests.Timeout:
+                return {"error": "The upload timed out, run the tool again"}
+            status = _response_data(response)
+            if status is None or "uploadId" not in status:
+                return _error_response(response)
+            upload_id, offset = status["uploadId"], status["offset"]
+            with open(state_file, "w") as state:
+                json.dump({"uploadId": upload_id}, state)
+        copilot_debug(f"AttachFile chunked upload {upload_id} starting at offset {offset} of {file_size}")
+
+        chunk_headers = dict(headers)
+        chunk_headers["Content-Type"] = "application/octet-stream"
+        failures = 0
+        with open(file_path, "rb") as file:
+            while offset < file_size:
+                file.seek(offset)
+                chunk = file.read(UPLOAD_CHUNK_SIZE)
+                params = {"uploadId": upload_id, "offset": offset, "sha256": hashlib.sha256(chunk).hexdigest()}
+                try:
+                    response = requests.post(url + UPLOAD_CHUNK_ENDPOINT, params=params, data=chunk,
+                                             headers=chunk_headers, timeout=_timeout())
+                    acknowledged = _response_data(response) if response.status_code == 200 else None
+                except requests.RequestException as e:
+                    copilot_debug(f"AttachFile chunk at offset {offset} failed: {e}")
+                    response, acknowledged = None, None
+                if acknowledged is not None and "offset" in acknowledged:
+                    offset, failures = acknowledged["offset"], 0
+                    continue
+                failures += 1
+                if failures > MAX_CHUNK_RETRIES:
+                    return _error_response(response) if response is not None else {
+                        "error": "The upload failed, run the tool again to resume it"}
+                _, server_offset = _resume_upload(url, headers, state_file)
+                if server_offset is None:
+                    return {"error": "The upload is no longer available on the server"}
+                offset = server_offset
+
+        body = {"uploadId": upload_id, "sha256": sha256 or _file_sha256(file_path)}
+        try:
+            response = requests.post(url + COMPLETE_UPLOAD_ENDPOINT, json=body, headers=headers, timeout=_timeout())
+        except requests.Timeout:
+            # the state file is kept, the next run resumes the upload or finds its content already stored
+            return {"error": "The upload timed out while completing, run the tool again to resume it"}
+        copilot_debug(f"AttachFile complete upload response: {response.status_code}")
+        if response.status_code == 200:
+            os.remove(state_file)
+        try:
+            return response.json()
+        except ValueError:
+            return {"error": f"Unexpected response from the server: {response.status_code}"}
+
+
+def _attach_by_hash(url, access_token, ad_tab_id, record_id, file_name, sha256) -> Optional[Dict]:
+    """
+    Asks the server to attach the content with the given SHA-256 if it already stores it.
+
+    Returns:
+    dict: the response of the server when the content was deduplicated, or None if the file must be uploaded.
+    """
+    body = {"adTabId": ad_tab_id, "recordId": record_id, "fileName": file_name, "sha256": sha256}
+    try:
+        response = requests.post(url + ATTACH_BY_HASH_ENDPOINT, json=body, headers=_get_headers(access_token),
+                                 timeout=_timeout())
+    except requests.RequestException as e:
+        copilot_debug(f"AttachFile dedup check failed: {e}")
+        return None
+    result = _response_data(response) if response.status_code == 200 else None
+    if result is not None and result.get("dedup") is True:
+        copilot_debug(f"AttachFile content already stored: {result.get('dedupType')}")
+        return result
+    return None
+
+
+def _upload_state_file(file_path, file_size, ad_tab_id, record_id) -> str:
+    """
+    Returns the path of the file that keeps the id of the chunked upload of a file. The upload is identified by
+    the file, its size and modification time and the record it is attached to, so a modified file starts over.
+    """
+    os.makedirs(UPLOAD_STATE_DIR, exist_ok=True)
+    key = f"{os.path.abspath(file_path)}|{file_size}|{os.path.getmtime(file_path)}|{ad_tab_id}|{record_id}"
+    return os.path.join(UPLOAD_STATE_DIR, hashlib.sha256(key.encode("utf-8")).hexdigest() + ".json")
+
+
+def _resume_upload(url, headers, state_file):
+    """
+    Reads the upload id of a previous run and asks the server for the offset of its next chunk.
+
+    Returns:
+    tuple: the upload id and its offset, or (None, None) if there is no upload to resume. The state file of an
+     upload that no longer exists on the server is deleted.
+    """
+    if not os.path.isfile(state_file):
+        return None, None
+    with open(state_file) as state:
+        upload_id = json.load(state).get("uploadId")
+    try:
+        response = requests.get(url + UPLOAD_STATUS_ENDPOINT, params={"uploadId": upload_id}, headers=headers,
+                                timeout=_timeout())
+    except requests.RequestException as e:
+        copilot_debug(f"AttachFile status of upload {upload_id} failed: {e}")
+        return None, None
+    status = _response_data(response) if response.status_code == 200 else None
+    if status is None or "offset" not in status:
+        os.remove(state_file)
+        return None, None
+    return upload_id, status["offset"]
+
+
+def _timeout() -> Tuple[float, float]:
+    """
+    Returns the connect and read timeouts of the requests, read from the ATTACH_FILE_CONNECT_TIMEOUT and
+    ATTACH_FILE_READ_TIMEOUT environment variables, in seconds.
+    """
+    connect_timeout = utils.read_optional_env_var("ATTACH_FILE_CONNECT_TIMEOUT", str(DEFAULT_CONNECT_TIMEOUT))
+    read_timeout = utils.read_optional_env_var("ATTACH_FILE_READ_TIMEOUT", str(DEFAULT_READ_TIMEOUT))
+    return float(connect_timeout), float(read_timeout)
+
+
+def _response_data(response) -> Optional[Dict]:
+    """
+    Returns the JSON of a response, unwrapping the data of the web service results.
+    """
+    try:
+        result = response.json()
+    except ValueError:
+        return None
+    if isinstance(result, dict) and isinstance(result.get("data"), dict):
+        return result["data"]
+    return result if isinstance(result, dict) else None
+
+
+def _error_response(response) -> Dict:
+    try:
+        result = response.json()
+    except ValueError:
+        result = None
+    if isinstance(result, dict) and ("error" in result or "message" in result):
+        return {"error": result.get("error", result.get("message"))}
+    return {"error": f"Unexpected response from the server: {response.status_code}"}
+
+
+def _file_sha256(file_path) -> str:
+    digest = hashlib.sha256()
+    with open(file_path, "rb") as file:
+        for chunk in iter(lambda: file.read(CHUNK_SIZE), b""):
+            digest.update(chunk)
+    return digest.hexdigest()
+
+
+def _gzip_chunks(file) -> Iterator[bytes]:
+    """
+    Reads a file in chunks and yields it compressed with gzip, so it is never fully loaded in memory.
+    """
+    compressor = zlib.compressobj(wbits=zlib.MAX_WBITS | 16)
+    while True:
+        chunk = file.read(CHUNK_SIZE)
+        if not chunk:
+            break
+        compressed = compressor.compress(chunk)
+        if compressed:
+            yield compressed
+    yield compressor.flush()
 
 
 def _get_headers(access_token: Optional[str]) -> Dict: